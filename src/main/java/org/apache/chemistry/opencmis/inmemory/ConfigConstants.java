@@ -29,6 +29,39 @@ public final class ConfigConstants {
     public static final String TEMP_DIR = "persistenceDirectory";
     public static final String MAX_CONTENT_SIZE = "InMemoryServer.MaxContentSize";
     public static final String ENCRYPT_TEMP_FILES = "InMemoryServer.EncryptTempFiles";
+    // number of threads loading the persistence directory at startup
+    public static final String LOADER_THREADS = "InMemoryServer.LoaderThreads";
+    // minutes between two snapshots of the metadata for a fast startup, 0 to disable
+    public static final String SNAPSHOT_INTERVAL = "InMemoryServer.SnapshotIntervalMinutes";
+    // true to append metadata changes to a journal instead of rewriting the metadata files
+    public static final String METADATA_JOURNAL = "InMemoryServer.MetadataJournal";
+    // sync, group or async: whether a request waits for its metadata to be written
+    public static final String METADATA_DURABILITY = "InMemoryServer.MetadataDurability";
+    // milliseconds the metadata writers collect changes before writing them
+    public static final String METADATA_FLUSH_MILLIS = "InMemoryServer.MetadataFlushMillis";
+    // number of objects waiting for the metadata writers
+    public static final String METADATA_QUEUE_SIZE = "InMemoryServer.MetadataQueueSize";
+    // block or write: what a request does when the metadata queue is full
+    public static final String METADATA_QUEUE_FULL_POLICY = "InMemoryServer.MetadataQueueFullPolicy";
+    // number of threads writing queued metadata
+    public static final String METADATA_WRITER_THREADS = "InMemoryServer.MetadataWriterThreads";
+    // comma separated lists of custom property ids to index
+    public static final String HASH_INDEXES = "InMemoryServer.HashIndexes";
+    public static final String SORTED_INDEXES = "InMemoryServer.SortedIndexes";
+    // number of objects from which on a query scans in parallel, 0 to disable
+    public static final String PARALLEL_QUERY_THRESHOLD = "InMemoryServer.ParallelQueryThreshold";
+    // maximum number of parsed query statements kept per repository, 0 to disable
+    public static final String QUERY_PLAN_CACHE_SIZE = "InMemoryServer.QueryPlanCacheSize";
+    // false to stop queries without ORDER BY after the requested page, leaving out numItems
+    public static final String QUERY_EXACT_COUNT = "InMemoryServer.QueryExactCount";
+    // seconds the sorted result of a query is kept for its following pages, 0 to disable
+    public static final String QUERY_CURSOR_TTL = "InMemoryServer.QueryCursorTTL";
+    // true to drop the query cursors of a repository on every change
+    public static final String QUERY_CURSOR_STRICT = "InMemoryServer.QueryCursorStrict";
+    // true to return the profile of every query as extension of its result
+    public static final String QUERY_PROFILE = "InMemoryServer.QueryProfile";
+    // milliseconds from which on a query is logged with its profile, 0 to disable
+    public static final String SLOW_QUERY_THRESHOLD = "InMemoryServer.SlowQueryThreshold";
 
     // Helper constants that allow to fill a repository with data on
     // initialization
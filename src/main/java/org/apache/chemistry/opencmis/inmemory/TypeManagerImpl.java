@@ -22,9 +22,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
@@ -50,6 +54,18 @@ public class TypeManagerImpl implements TypeManager {
      */
     private final Map<String, TypeDefinitionContainer> fTypesMap = new HashMap<String, TypeDefinitionContainer>();
 
+    /**
+     * Incremented on each change of the type system, lets caches of derived
+     * data detect that they are outdated.
+     */
+    private final AtomicLong fModificationCount = new AtomicLong();
+
+    /**
+     * Ids of a type and of all its subtypes by type id, computed on first use
+     * and dropped on each change of the type system.
+     */
+    private final Map<String, Set<String>> fTypeAndSubTypeIds = new ConcurrentHashMap<String, Set<String>>();
+
     /*
      * (non-Javadoc)
      * 
@@ -166,6 +182,7 @@ public class TypeManagerImpl implements TypeManager {
         }
         // add type to type map
         fTypesMap.put(cmisType.getId(), typeContainer);
+        typesChanged();
     }
 
     /*
@@ -195,6 +212,7 @@ public class TypeManagerImpl implements TypeManager {
         TypeDefinitionContainer parentTypeContainer = fTypesMap.get(typeDef.getTypeDefinition().getParentTypeId());
         parentTypeContainer.getChildren().remove(typeDef);
         fTypesMap.remove(typeId);
+        typesChanged();
     }
 
     /**
@@ -207,6 +225,57 @@ public class TypeManagerImpl implements TypeManager {
     public void clearTypeSystem() {
         fTypesMap.clear();
         createCmisDefaultTypes();
+        typesChanged();
+    }
+
+    /**
+     * Get the number of changes of the type system so far.
+     * 
+     * @return a value that changes whenever a type is added or removed
+     */
+    public long getModificationCount() {
+        return fModificationCount.get();
+    }
+
+    /**
+     * Get the ids of a type and of all types derived from it at any depth.
+     * Checking if an object is of a type or one of its subtypes is then a
+     * single lookup in this set.
+     * 
+     * @param typeId
+     *            id of the type
+     * @return the ids, empty if the type does not exist
+     */
+    public Set<String> getTypeAndSubTypeIds(String typeId) {
+        Set<String> ids = fTypeAndSubTypeIds.get(typeId);
+        if (null != ids) {
+            return ids;
+        }
+        long modificationCount = fModificationCount.get();
+        TypeDefinitionContainer tc = fTypesMap.get(typeId);
+        if (null == tc) {
+            return Collections.emptySet();
+        }
+        Set<String> res = new HashSet<String>();
+        collectTypeIds(tc, res);
+        ids = Collections.unmodifiableSet(res);
+        // do not cache a set computed while the type system changed
+        if (modificationCount == fModificationCount.get()) {
+            fTypeAndSubTypeIds.put(typeId, ids);
+        }
+        return ids;
+    }
+
+    private static void collectTypeIds(TypeDefinitionContainer tc, Set<String> ids) {
+        ids.add(tc.getTypeDefinition().getId());
+        for (TypeDefinitionContainer child : tc.getChildren()) {
+            collectTypeIds(child, ids);
+        }
+    }
+
+    private void typesChanged() {
+        fModificationCount.incrementAndGet();
+        fTypeAndSubTypeIds.clear();
     }
 
     /*
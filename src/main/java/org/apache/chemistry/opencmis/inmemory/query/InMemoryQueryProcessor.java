@@ -22,15 +22,20 @@
  */
 package org.apache.chemistry.opencmis.inmemory.query;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.antlr.runtime.tree.Tree;
@@ -45,14 +50,15 @@ import org.apache.chemistry.opencmis.commons.enums.PropertyType;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisRuntimeException;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectListImpl;
+import org.apache.chemistry.opencmis.inmemory.TypeManagerImpl;
+import org.apache.chemistry.opencmis.inmemory.server.InMemoryServiceContext;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.Content;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.DocumentVersion;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.Filing;
-import org.apache.chemistry.opencmis.inmemory.storedobj.api.Folder;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.ObjectStore;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.VersionedDocument;
-import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ContentStreamDataImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.FullTextIndex;
 import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
 import org.apache.chemistry.opencmis.inmemory.types.PropertyCreationHelper;
 import org.apache.chemistry.opencmis.server.support.TypeManager;
@@ -62,7 +68,6 @@ import org.apache.chemistry.opencmis.server.support.query.CmisSelector;
 import org.apache.chemistry.opencmis.server.support.query.ColumnReference;
 import org.apache.chemistry.opencmis.server.support.query.QueryObject;
 import org.apache.chemistry.opencmis.server.support.query.QueryObject.JoinSpec;
-import org.apache.chemistry.opencmis.server.support.query.QueryObject.SortSpec;
 import org.apache.chemistry.opencmis.server.support.query.QueryUtilStrict;
 import org.apache.chemistry.opencmis.server.support.query.StringUtil;
 import org.slf4j.Logger;
@@ -71,22 +76,84 @@ import org.slf4j.LoggerFactory;
 /**
  * A processor for a CMIS query for the In-Memory server. During tree traversal
  * conditions are checked against the data contained in the central hash map
- * with all objects. In a first pass one time setup is performed, in a custom
- * walk across the query expression tree an object is checked if it matches. In
- * case of a match it is appended to a list of matching objects.
+ * with all objects. In a first pass one time setup is performed and the WHERE
+ * clause is compiled into predicates, then each object is checked against the
+ * predicates. In case of a match it is appended to a list of matching objects.
  */
 public class InMemoryQueryProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(InMemoryQueryProcessor.class);
 
+    /**
+     * Threads checking the objects of large queries, shared by all
+     * repositories and bounded to the number of cores.
+     */
+    private static final ForkJoinPool QUERY_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final int PARTITIONS_PER_THREAD = 4;
+    private static final int MIN_PARTITION_SIZE = 256;
+
     private List<StoredObject> matches = new ArrayList<StoredObject>();
     private QueryObject queryObj;
     private Tree whereTree;
+    private WhereClauseCompiler.Predicate wherePredicate;
+    private List<String[]> searchTerms;
+    private TypeDefinition mainType;
+    private Set<String> typeIds;
     private ObjectStoreImpl objStore;
     private List<TypeDefinition> secondaryTypeIds;
+    private final QueryPlanCache planCache;
+    private final QueryCursorCache cursorCache;
+    private String cursorKey;
+    private long modificationCount;
+    private boolean scanComplete = true;
+    private QueryPlanner planner;
+    private boolean planCached;
+    private boolean profileRequested;
+    private QueryProfile profile;
 
     public InMemoryQueryProcessor(ObjectStoreImpl objStore) {
+        this(objStore, null, null);
+    }
+
+    /**
+     * Create a processor reusing the plans of statements processed before.
+     * 
+     * @param objStore
+     *            object store of the repository
+     * @param planCache
+     *            plans of the repository, null to parse each statement
+     */
+    public InMemoryQueryProcessor(ObjectStoreImpl objStore, QueryPlanCache planCache) {
+        this(objStore, planCache, null);
+    }
+
+    /**
+     * Create a processor reusing the plans of statements processed before
+     * and reading the following pages of a query from a cursor.
+     * 
+     * @param objStore
+     *            object store of the repository
+     * @param planCache
+     *            plans of the repository, null to parse each statement
+     * @param cursorCache
+     *            cursors of the repository, null to run the query again for
+     *            each page
+     */
+    public InMemoryQueryProcessor(ObjectStoreImpl objStore, QueryPlanCache planCache, QueryCursorCache cursorCache) {
         this.objStore = objStore;
+        this.planCache = planCache;
+        this.cursorCache = cursorCache;
+    }
+
+    /**
+     * Return the profile of the next query with its result, as requested by
+     * the extension element {@link QueryProfile#REQUEST_ELEMENT}.
+     * 
+     * @param requested
+     *            true to add the profile to the result
+     */
+    public void setProfileRequested(boolean requested) {
+        profileRequested = requested;
     }
 
     /**
@@ -121,23 +188,132 @@ public class InMemoryQueryProcessor {
             IncludeRelationships includeRelationships, String renditionFilter, BigInteger maxItems, 
             BigInteger skipCount) {
 
+        if (profileRequested || objStore.isProfileQueries() || objStore.getSlowQueryThreshold() > 0) {
+            profile = new QueryProfile(statement);
+        }
+        long time = System.nanoTime();
         processQueryAndCatchExc(statement, tm); // calls query processor
-
-        // iterate over all the objects and check for each if the query matches
-        for (String objectId : ((ObjectStoreImpl) objectStore).getIds()) {
-        	// keep only id map entries
-        	if (!objectId.startsWith("/")) {
-	            StoredObject so = objectStore.getObjectById(objectId);
-	            match(so, user, searchAllVersions == null ? true : searchAllVersions.booleanValue());
-        	}
+        if (null != profile) {
+            profile.parsed(System.nanoTime() - time, planCached);
+        }
+        boolean allVersions = searchAllVersions == null ? true : searchAllVersions.booleanValue();
+        // read before the objects so that a cursor is never newer than its
+        // content
+        modificationCount = objStore.getModificationCount();
+        if (null != cursorCache) {
+            cursorKey = QueryCursorCache.key(user, statement, allVersions);
+            // the first page always runs the query and starts a new cursor
+            if (null != skipCount && skipCount.signum() > 0) {
+                QueryCursorCache.Cursor cursor = cursorCache.get(cursorKey, modificationCount);
+                if (null != cursor) {
+                    if (null != profile) {
+                        profile.readFromCursor();
+                    }
+                    ObjectList objList = buildResultList(cursor, tm, user, includeAllowableActions,
+                            includeRelationships, renditionFilter, maxItems, skipCount);
+                    LOG.debug("Query result from cursor, number of matching objects: " + objList.getNumItems());
+                    return finishProfile(objList);
+                }
+            }
         }
+        findMatches(objectStore, user, allVersions, getScanLimit(maxItems, skipCount));
 
         ObjectList objList = buildResultList(tm, user, includeAllowableActions, includeRelationships, renditionFilter,
                 maxItems, skipCount);
         LOG.debug("Query result, number of matching objects: " + objList.getNumItems());
+        return finishProfile(objList);
+    }
+
+    /*
+     * Add the profile to the result if it was asked for, and log it if the
+     * query took longer than the slow query threshold of the repository.
+     */
+    private ObjectList finishProfile(ObjectList objList) {
+        if (null == profile) {
+            return objList;
+        }
+        profile.finish();
+        if (profileRequested || objStore.isProfileQueries()) {
+            objList.setExtensions(Collections.singletonList(profile.toExtension()));
+        }
+        long threshold = objStore.getSlowQueryThreshold();
+        if (threshold > 0 && profile.getTotalMillis() >= threshold) {
+            LOG.warn("Slow query:\n" + profile);
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug("Query profile:\n" + profile);
+        }
         return objList;
     }
 
+    /**
+     * Run a query and describe how it was run: the driving set chosen by the
+     * planner from the statistics of the indexes, the estimated and actual
+     * number of objects of each possible driving set, and the number of
+     * matches.
+     * 
+     * @param tm
+     *            type manager for the given repository
+     * @param objectStore
+     *            object store to gets object from
+     * @param user
+     *            user execuing the query
+     * @param statement
+     *            query statement
+     * @param searchAllVersions
+     *            search in all versions of objects
+     * @return the description of the plan, one line per step
+     */
+    public String explain(TypeManager tm, ObjectStore objectStore, String user, String statement,
+            Boolean searchAllVersions) {
+        processQueryAndCatchExc(statement, tm);
+        boolean allVersions = searchAllVersions == null ? true : searchAllVersions.booleanValue();
+        findMatches(objectStore, user, allVersions, -1);
+        return planner.explain() + "matches: " + matches.size() + "\n";
+    }
+
+    /*
+     * Iterate over the objects an index selects, or over all objects if no
+     * index applies, and check for each if the query matches.
+     */
+    private void findMatches(ObjectStore objectStore, String user, boolean allVersions, int scanLimit) {
+        if (null != searchTerms) {
+            // see all content set before the query
+            objStore.getFullTextIndex().awaitIndexing();
+        }
+
+        long time = System.nanoTime();
+        planner = new QueryPlanner(queryObj, objStore, typeIds);
+        Collection<String> objectIds = planner.getCandidateIds(whereTree);
+        if (null == objectIds) {
+            objectIds = objStore.getIds();
+        }
+        if (null != profile) {
+            long now = System.nanoTime();
+            profile.planned(now - time, planner.explain(), null == wherePredicate ? null : wherePredicate.toString());
+            time = now;
+        }
+        int parallelThreshold = objStore.getParallelQueryThreshold();
+        if (scanLimit < 0 && parallelThreshold > 0 && objectIds.size() >= parallelThreshold) {
+            matchParallel(objectIds.toArray(new String[0]), user, allVersions);
+        } else {
+            for (String objectId : objectIds) {
+                StoredObject so = objectStore.getObjectById(objectId);
+                if (null != so && match(so, user, allVersions)) {
+                    matches.add(so);
+                    if (matches.size() == scanLimit) {
+                        // one more match than requested tells that there
+                        // are more items
+                        scanComplete = false;
+                        break;
+                    }
+                }
+            }
+        }
+        if (null != profile) {
+            profile.scanned(System.nanoTime() - time, matches.size());
+        }
+    }
+
     /**
      * Process a query.
      * @param statement
@@ -146,13 +322,51 @@ public class InMemoryQueryProcessor {
      *      type manager for the repository
      */
     public void processQueryAndCatchExc(String statement, TypeManager tm) {
+        QueryPlanCache.Shape shape = null == planCache ? null : QueryPlanCache.shape(statement);
+        QueryPlan plan = null == shape ? null : planCache.get(shape);
+        planCached = null != plan;
+        if (null == plan) {
+            long typesVersion = null == planCache ? 0 : planCache.getTypesVersion();
+            plan = parseStatement(statement, tm, shape);
+            if (null != planCache) {
+                planCache.put(shape, plan, typesVersion);
+            }
+        } else {
+            queryObj = plan.getQueryObject();
+            secondaryTypeIds = plan.getSecondaryTypeIds();
+            if (plan.hasParameters()) {
+                // the plan was compiled with the literals of another statement
+                compileWhereClause(plan.bindWhereTree(shape.getLiterals()));
+            } else {
+                whereTree = plan.getWhereTree();
+                wherePredicate = plan.getWherePredicate();
+                searchTerms = plan.getSearchTerms();
+            }
+        }
+        // as we don't support joins take first type
+        String queryName = queryObj.getTypes().values().iterator().next();
+        mainType = queryObj.getTypeDefinitionFromQueryName(queryName);
+        typeIds = tm instanceof TypeManagerImpl ? ((TypeManagerImpl) tm).getTypeAndSubTypeIds(mainType.getId())
+                : null;
+    }
+
+    private QueryPlan parseStatement(String statement, TypeManager tm, QueryPlanCache.Shape shape) {
         QueryUtilStrict queryUtil = new QueryUtilStrict(statement, tm, null);
         queryUtil.processStatementUsingCmisExceptions();
         CmisQueryWalker walker = queryUtil.getWalker();
         queryObj = queryUtil.getQueryObject();
-        whereTree = walker.getWherePredicateTree();
         secondaryTypeIds = queryObj.getJoinedSecondaryTypes();
         doAdditionalChecks(walker);
+        compileWhereClause(walker.getWherePredicateTree());
+        return new QueryPlan(queryObj, whereTree, secondaryTypeIds, wherePredicate, searchTerms,
+                null == shape ? null : shape.getParameters(whereTree));
+    }
+
+    private void compileWhereClause(Tree tree) {
+        whereTree = tree;
+        WhereClauseCompiler compiler = new WhereClauseCompiler(this, objStore);
+        wherePredicate = compiler.compile(whereTree);
+        searchTerms = compiler.getSearchTerms();
     }
 
     /**
@@ -178,10 +392,108 @@ public class InMemoryQueryProcessor {
             IncludeRelationships includeRelationships, String renditionFilter, BigInteger maxItems, 
             BigInteger skipCount) {
 
-        sortMatches();
+        int numMatches = matches.size();
+        ObjectListImpl res = new ObjectListImpl();
+        // the total is unknown if the scan stopped after the requested page
+        res.setNumItems(scanComplete ? BigInteger.valueOf(numMatches) : null);
+        int start = getPageStart(skipCount, numMatches);
+        int stop = getPageStop(start, maxItems, numMatches);
+        res.setHasMoreItems(stop < numMatches);
+
+        long time = System.nanoTime();
+        Map<String, Double> scores = null;
+        if (null != searchTerms) {
+            List<String> ids = new ArrayList<String>(numMatches);
+            for (StoredObject so : matches) {
+                ids.add(so.getId());
+            }
+            scores = objStore.getFullTextIndex().score(ids, searchTerms);
+        }
+
+        // only the matches up to the requested page need to be in order,
+        // unless the following pages are read from a cursor
+        boolean keepCursor = null != cursorKey && scanComplete && stop < numMatches;
+        matches = new ResultSorter(queryObj, scores).sort(matches, stop < numMatches && !keepCursor ? stop : -1);
+        if (keepCursor) {
+            String[] ids = new String[numMatches];
+            double[] cursorScores = null == scores ? null : new double[numMatches];
+            for (int i = 0; i < numMatches; i++) {
+                ids[i] = matches.get(i).getId();
+                if (null != cursorScores) {
+                    cursorScores[i] = scores.get(ids[i]);
+                }
+            }
+            cursorCache.put(cursorKey, new QueryCursorCache.Cursor(ids, cursorScores, modificationCount));
+        }
+        if (start > 0 || stop > 0) {
+            matches = matches.subList(start, stop);
+        }
+        if (null != profile) {
+            long now = System.nanoTime();
+            profile.sorted(now - time);
+            time = now;
+        }
+
+        List<ObjectData> objDataList = new ArrayList<ObjectData>();
+        Map<String, String> props = queryObj.getRequestedPropertiesByAlias();
+        Map<String, String> funcs = queryObj.getRequestedFuncsByAlias();
 
+        for (StoredObject so : matches) {
+            double score = null == scores ? 1.0 : scores.get(so.getId());
+            objDataList.add(getObjectData(tm, so, user, props, funcs, score, includeAllowableActions,
+                    includeRelationships, renditionFilter));
+        }
+        res.setObjects(objDataList);
+        if (null != profile) {
+            profile.built(System.nanoTime() - time);
+        }
+        return res;
+    }
+
+    /*
+     * Build a page from the cursor of a query run before. Objects deleted or
+     * no longer readable since are left out, the number of items stays the
+     * one of the first page.
+     */
+    private ObjectList buildResultList(QueryCursorCache.Cursor cursor, TypeManager tm, String user,
+            Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
+            BigInteger maxItems, BigInteger skipCount) {
+
+        int numMatches = cursor.size();
         ObjectListImpl res = new ObjectListImpl();
-        res.setNumItems(BigInteger.valueOf(matches.size()));
+        res.setNumItems(BigInteger.valueOf(numMatches));
+        int start = getPageStart(skipCount, numMatches);
+        int stop = getPageStop(start, maxItems, numMatches);
+        res.setHasMoreItems(stop < numMatches);
+
+        List<ObjectData> objDataList = new ArrayList<ObjectData>();
+        Map<String, String> props = queryObj.getRequestedPropertiesByAlias();
+        Map<String, String> funcs = queryObj.getRequestedFuncsByAlias();
+
+        long time = System.nanoTime();
+        for (int i = start; i < stop; i++) {
+            StoredObject so = objStore.getObjectById(cursor.getId(i));
+            if (null != so && objStore.hasReadAccess(user, so)) {
+                objDataList.add(getObjectData(tm, so, user, props, funcs, cursor.getScore(i),
+                        includeAllowableActions, includeRelationships, renditionFilter));
+            }
+        }
+        res.setObjects(objDataList);
+        if (null != profile) {
+            profile.built(System.nanoTime() - time);
+        }
+        return res;
+    }
+
+    private ObjectData getObjectData(TypeManager tm, StoredObject so, String user, Map<String, String> props,
+            Map<String, String> funcs, double score, Boolean includeAllowableActions,
+            IncludeRelationships includeRelationships, String renditionFilter) {
+        return PropertyCreationHelper.getObjectDataQueryResult(tm, objStore, mainType, so, user, props, funcs,
+                BigDecimal.valueOf(score), secondaryTypeIds, includeAllowableActions, includeRelationships,
+                renditionFilter);
+    }
+
+    private static int getPageStart(BigInteger skipCount, int numMatches) {
         int start = 0;
         if (skipCount != null) {
             start = (int) skipCount.longValue();
@@ -189,38 +501,57 @@ public class InMemoryQueryProcessor {
         if (start < 0) {
             start = 0;
         }
-        if (start > matches.size()) {
-            start = matches.size();
+        if (start > numMatches) {
+            start = numMatches;
         }
+        return start;
+    }
+
+    private static int getPageStop(int start, BigInteger maxItems, int numMatches) {
         int stop = 0;
         if (maxItems != null) {
             stop = start + (int) maxItems.longValue();
         }
-        if (stop <= 0 || stop > matches.size()) {
-            stop = matches.size();
+        if (stop <= 0 || stop > numMatches) {
+            stop = numMatches;
         }
-        res.setHasMoreItems(stop < matches.size());
-        if (start > 0 || stop > 0) {
-            matches = matches.subList(start, stop);
-        }
-
-        List<ObjectData> objDataList = new ArrayList<ObjectData>();
-        Map<String, String> props = queryObj.getRequestedPropertiesByAlias();
-        Map<String, String> funcs = queryObj.getRequestedFuncsByAlias();
-
-        for (StoredObject so : matches) {
-            String queryName = queryObj.getTypes().values().iterator().next();
-            TypeDefinition td = queryObj.getTypeDefinitionFromQueryName(queryName);
+        return stop;
+    }
 
-            ObjectData od = PropertyCreationHelper.getObjectDataQueryResult(tm, objStore, td, so, user, props, funcs,
-                    secondaryTypeIds, includeAllowableActions, includeRelationships, renditionFilter);
-            objDataList.add(od);
+    /*
+     * Get the number of matches after which the scan can stop, -1 to check
+     * all objects. A query without ORDER BY needs only the objects up to the
+     * requested page if the repository does not count all matches.
+     */
+    private int getScanLimit(BigInteger maxItems, BigInteger skipCount) {
+        if (objStore.isExactQueryCount() || !queryObj.getOrderBys().isEmpty() || null == maxItems
+                || maxItems.signum() <= 0) {
+            return -1;
         }
-        res.setObjects(objDataList);
-        return res;
+        long limit = maxItems.longValue() + 1;
+        if (null != skipCount && skipCount.signum() > 0) {
+            limit += skipCount.longValue();
+        }
+        return limit > Integer.MAX_VALUE ? -1 : (int) limit;
     }
 
     private boolean typeMatches(TypeDefinition td, StoredObject so) {
+        if (null != typeIds) {
+            if (typeIds.contains(so.getTypeId())) {
+                return true;
+            }
+            List<String> secTypeIds = so.getSecondaryTypeIds();
+            if (null != secTypeIds) {
+                for (String secTypeId : secTypeIds) {
+                    if (typeIds.contains(secTypeId)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // without the subtypes of the type walk up the hierarchy of the object
         String typeId = so.getTypeId();
         while (typeId != null) {
             if (typeId.equals(td.getId())) {
@@ -240,99 +571,103 @@ public class InMemoryQueryProcessor {
         return false;
     }
 
-    private void sortMatches() {
-        final List<SortSpec> orderBy = queryObj.getOrderBys();
-        if (orderBy.size() > 1) {
-            LOG.warn("ORDER BY has more than one sort criterium, all but the first are ignored.");
-        }
-        class ResultComparator implements Comparator<StoredObject> {
-
-            
-            @SuppressWarnings("unchecked")
-            public int compare(StoredObject so1, StoredObject so2) {
-                SortSpec s = orderBy.get(0);
-                CmisSelector sel = s.getSelector();
-                int result;
-
-                if (queryObj.isPredfinedQueryName(sel.getName())) {
-                    // must be SEARCH_SCORE which is currently ignored
-                    result = 0;
-                } else if (sel instanceof ColumnReference) {
-                    String propId = ((ColumnReference) sel).getPropertyId();
-                    PropertyDefinition<?> pd = ((ColumnReference) sel).getPropertyDefinition();
-
-                    Object propVal1 = PropertyQueryUtil.getProperty(so1, propId, pd);
-                    Object propVal2 = PropertyQueryUtil.getProperty(so2, propId, pd);
-
-                    if (propVal1 == null && propVal2 == null) {
-                        result = 0;
-                    } else if (propVal1 == null) {
-                        result = -1;
-                    } else if (propVal2 == null) {
-                        result = 1;
-                    } else {
-                        result = ((Comparable<Object>) propVal1).compareTo(propVal2);
+    /*
+     * Split the objects into partitions checked in parallel. The matches of
+     * each partition are appended in partition order, so that the result is
+     * the same as for a sequential scan.
+     */
+    private void matchParallel(final String[] objectIds, final String user, final boolean searchAllVersions) {
+        int partitions = Math.min(QUERY_POOL.getParallelism() * PARTITIONS_PER_THREAD,
+                (objectIds.length + MIN_PARTITION_SIZE - 1) / MIN_PARTITION_SIZE);
+        List<Callable<List<StoredObject>>> tasks = new ArrayList<Callable<List<StoredObject>>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            final int from = (int) ((long) objectIds.length * i / partitions);
+            final int to = (int) ((long) objectIds.length * (i + 1) / partitions);
+            tasks.add(InMemoryServiceContext.withCurrentContext(new Callable<List<StoredObject>>() {
+                public List<StoredObject> call() {
+                    List<StoredObject> res = new ArrayList<StoredObject>();
+                    for (int j = from; j < to; j++) {
+                        StoredObject so = objStore.getObjectById(objectIds[j]);
+                        if (null != so && match(so, user, searchAllVersions)) {
+                            res.add(so);
+                        }
                     }
-                } else {
-                    // evaluate function here, currently ignore
-                    result = 0;
+                    return res;
                 }
-                if (!s.isAscending()) {
-                    result = -result;
-                }
-                return result;
-            }
+            }));
         }
 
-        if (orderBy.size() > 0) {
-            Collections.sort(matches, new ResultComparator());
+        try {
+            for (Future<List<StoredObject>> partition : QUERY_POOL.invokeAll(tasks)) {
+                matches.addAll(partition.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CmisRuntimeException("Query was interrupted", e);
+        } catch (ExecutionException e) {
+            // report errors of the where clause like a sequential scan
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CmisRuntimeException(cause.getMessage(), cause);
         }
-
     }
 
     /*
-     * Check for each object contained in the in-memory repository if it matches
-     * the current query expression. If yes add it to the list of matched
-     * objects.
+     * Check if an object contained in the in-memory repository matches the
+     * current query expression.
      */
-    private void match(StoredObject so, String user, boolean searchAllVersions) {
-        // first check if type is matching...
-        // as we don't support joins take first type
-        String queryName = queryObj.getTypes().values().iterator().next();
-
-        TypeDefinition td = queryObj.getTypeDefinitionFromQueryName(queryName);
-
+    private boolean match(StoredObject so, String user, boolean searchAllVersions) {
+        if (null != profile) {
+            profile.scanned.increment();
+        }
         // we are only interested in versions not in the series
         boolean skip = so instanceof VersionedDocument;
 
-        boolean typeMatches = typeMatches(td, so);
+        // first check if type is matching...
+        boolean typeMatches = typeMatches(mainType, so);
         if (!searchAllVersions && so instanceof DocumentVersion
                 && ((DocumentVersion) so).getParentDocument().getLatestVersion(false) != so) {
             skip = true;
         }
         // ... then check expression...
-        if (typeMatches && !skip) {
-            evalWhereTree(whereTree, user, so);
-        }
+        return typeMatches && !skip && evalWhereTree(user, so);
     }
 
-    private void evalWhereTree(Tree node, String user, StoredObject so) {
-        boolean match = true;
-        if (null != node) {
-            match = evalWhereNode(so, user, node);
+    /*
+     * Check the object against the WHERE clause compiled for this query.
+     */
+    private boolean evalWhereTree(String user, StoredObject so) {
+        // the access check is a cheap lookup, do it before evaluating the
+        // expression
+        if (!objStore.hasReadAccess(user, so)) {
+            if (null != profile) {
+                profile.aclRejected.increment();
+            }
+            return false;
         }
-        if (match && objStore.hasReadAccess(user, so)) {
-            matches.add(so); // add to list
+        if (null == wherePredicate) {
+            return true;
         }
+        if (null != profile) {
+            profile.evaluated.increment();
+        }
+        return wherePredicate.matches(so, user);
     }
 
     /*
-     * For each object check if it matches and append it to match-list if it
-     * does. We do here our own walking mechanism so that we can pass additional
-     * parameters and define the return types.
+     * Check an object against the WHERE clause of the processed statement,
+     * with the compiled predicates or by walking the tree, to compare both.
      */
-    private boolean evalWhereNode(StoredObject so, String user, Tree node) {
-        return new InMemoryWhereClauseWalker(so, user).walkPredicate(node);
+    boolean matchesWhereClause(StoredObject so, String user, boolean compiled) {
+        if (null == whereTree) {
+            return true;
+        }
+        return compiled ? wherePredicate.matches(so, user) : new InMemoryWhereClauseWalker(so, user)
+                .walkPredicate(whereTree);
     }
 
     public class InMemoryWhereClauseWalker extends AbstractPredicateWalker {
@@ -565,7 +900,7 @@ public class InMemoryQueryProcessor {
 
             // check if object is in folder
             if (so instanceof Filing) {
-                return hasParent(so, folderId, user);
+                return hasParent(objStore, so, folderId, user);
             } else {
                 return false;
             }
@@ -586,7 +921,7 @@ public class InMemoryQueryProcessor {
 
             // check if object is in folder
             if (so instanceof Filing) {
-                return hasAncestor(so, folderId, user);
+                return hasAncestor(objStore, so, folderId, user);
             } else {
                 return false;
             }
@@ -663,45 +998,33 @@ public class InMemoryQueryProcessor {
         }
 
         private boolean findText(String nodeText) {
-            Content cont = (Content) so;
             String pattern = StringUtil.unescape(nodeText, "\\'-");
             if (null == pattern) {
                 throw new CmisInvalidArgumentException("Illegal Escape sequence in text search expression " + nodeText);
             }
-
-            if (so instanceof Content && cont.hasContent()) {
-                ContentStreamDataImpl cdi = (ContentStreamDataImpl) cont.getContent();
-                if (cdi.getMimeType().startsWith("text/")) {
-                    byte[] ba = cdi.getBytes();
-                    String text;
-                    try {
-                        text = new String(ba, "UTF-8");
-                    } catch (UnsupportedEncodingException e) {
-                        throw new CmisRuntimeException("Internal error: Unsupported encoding UTF-8", e);
-                    }
-                    int match = text.indexOf(pattern);
-                    return match >= 0;
-                } else {
-                    return false;
-                }
-            }
-            return false;
+            return InMemoryQueryProcessor.findText(so, pattern);
         }
 
     }
 
-    private boolean hasParent(StoredObject objInFolder, String folderId, String user) {
-        List<String> parents = objStore.getParentIds(objInFolder, user);
-
-        for (String parentId : parents) {
-            if (folderId.equals(parentId)) {
-                return true;
+    /*
+     * Check if the content of a text document contains a string. Compiled
+     * queries use the full text index instead.
+     */
+    static boolean findText(StoredObject so, String pattern) {
+        if (so instanceof Content && ((Content) so).hasContent()) {
+            String text;
+            try {
+                text = FullTextIndex.readText(((Content) so).getContent());
+            } catch (IOException e) {
+                throw new CmisRuntimeException("Failed to read content of object " + so.getId(), e);
             }
+            return null != text && text.indexOf(pattern) >= 0;
         }
         return false;
     }
 
-    private boolean hasAncestor(StoredObject objInFolder, String folderId, String user) {
+    static boolean hasParent(ObjectStoreImpl objStore, StoredObject objInFolder, String folderId, String user) {
         List<String> parents = objStore.getParentIds(objInFolder, user);
 
         for (String parentId : parents) {
@@ -709,16 +1032,18 @@ public class InMemoryQueryProcessor {
                 return true;
             }
         }
-        for (String parentId : parents) {
-            Folder parentFolder = (Folder) objStore.getObjectById(parentId);
-            if (hasAncestor(parentFolder, folderId, user)) {
-                return true;
-            }
-        }
         return false;
     }
 
+    static boolean hasAncestor(ObjectStoreImpl objStore, StoredObject objInFolder, String folderId, String user) {
+        return objStore.isInTree(objInFolder, folderId, user);
+    }
+
     protected int compareTo(PropertyDefinition<?> td, Object lValue, Object rVal) {
+        return compareValues(td, lValue, rVal);
+    }
+
+    static int compareValues(PropertyDefinition<?> td, Object lValue, Object rVal) {
         switch (td.getPropertyType()) {
         case BOOLEAN:
             if (rVal instanceof Boolean) {
@@ -769,7 +1094,7 @@ public class InMemoryQueryProcessor {
         return 0;
     }
 
-    private ColumnReference getColumnReference(Tree columnNode) {
+    ColumnReference getColumnReference(Tree columnNode) {
         CmisSelector sel = queryObj.getColumnReference(columnNode.getTokenStartIndex());
         if (null == sel) {
             throw new IllegalStateException("Unknown property query name " + columnNode.getChild(0));
@@ -780,7 +1105,7 @@ public class InMemoryQueryProcessor {
         }
     }
 
-    private String getTableReference(Tree tableNode) {
+    String getTableReference(Tree tableNode) {
         String typeQueryName = queryObj.getTypeQueryName(tableNode.getText());
         if (null == typeQueryName) {
             throw new IllegalStateException("Inavlid type in IN_FOLDER() or IN_TREE(), must be in FROM list: "
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server side cursors over the sorted results of the queries of one
+ * repository. The first page of a query keeps the ids of all matching
+ * objects in their order, the following pages of the same query by the same
+ * user are read from the cursor instead of running the query again.
+ * <p>
+ * A cursor expires when it was not read for the configured time, and may be
+ * dropped any time before if memory gets low. In strict mode a cursor is
+ * also discarded as soon as any object of the repository has changed,
+ * otherwise later pages skip objects deleted or no longer readable since
+ * the first page.
+ */
+public class QueryCursorCache {
+
+    private final long fTimeToLive;
+    private final boolean fStrict;
+    private final Map<String, Entry> fCursors = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Create an empty cache.
+     *
+     * @param timeToLive
+     *            milliseconds a cursor is kept after it was last read
+     * @param strict
+     *            true to discard cursors on every change of the repository
+     */
+    public QueryCursorCache(long timeToLive, boolean strict) {
+        fTimeToLive = timeToLive;
+        fStrict = strict;
+    }
+
+    /**
+     * Build the key of the cursor of a query. Only what decides on the
+     * matching objects and their order is part of the key.
+     *
+     * @param user
+     *            user executing the query
+     * @param statement
+     *            query statement
+     * @param searchAllVersions
+     *            true if all versions of documents are searched
+     * @return the key
+     */
+    static String key(String user, String statement, boolean searchAllVersions) {
+        return user + '\n' + searchAllVersions + '\n' + QueryPlanCache.normalize(statement);
+    }
+
+    /**
+     * Get the cursor of a query.
+     *
+     * @param key
+     *            key of the query
+     * @param modificationCount
+     *            current modification count of the repository
+     * @return the cursor or null if there is none or it expired
+     */
+    Cursor get(String key, long modificationCount) {
+        Entry entry = fCursors.get(key);
+        if (null == entry) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Cursor cursor = entry.cursor.get();
+        if (null == cursor || now > entry.expires || (fStrict && cursor.modificationCount != modificationCount)) {
+            fCursors.remove(key, entry);
+            return null;
+        }
+        entry.expires = now + fTimeToLive;
+        return cursor;
+    }
+
+    /**
+     * Keep the cursor of a query, replacing an older one of the same query.
+     *
+     * @param key
+     *            key of the query
+     * @param cursor
+     *            sorted result of the query
+     */
+    void put(String key, Cursor cursor) {
+        long now = System.currentTimeMillis();
+        purge(now);
+        fCursors.put(key, new Entry(cursor, now + fTimeToLive));
+    }
+
+    public int size() {
+        return fCursors.size();
+    }
+
+    public void clear() {
+        fCursors.clear();
+    }
+
+    private void purge(long now) {
+        for (Iterator<Entry> it = fCursors.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (now > entry.expires || null == entry.cursor.get()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final SoftReference<Cursor> cursor;
+        private volatile long expires;
+
+        Entry(Cursor cursor, long expires) {
+            this.cursor = new SoftReference<Cursor>(cursor);
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The sorted ids of the objects matching a query.
+     */
+    static final class Cursor {
+        private final String[] ids;
+        private final double[] scores;
+        private final long modificationCount;
+
+        /**
+         * @param ids
+         *            ids of the matching objects in result order
+         * @param scores
+         *            search score of each object, null without CONTAINS()
+         * @param modificationCount
+         *            modification count of the repository read before the
+         *            query was evaluated
+         */
+        Cursor(String[] ids, double[] scores, long modificationCount) {
+            this.ids = ids;
+            this.scores = scores;
+            this.modificationCount = modificationCount;
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        String getId(int index) {
+            return ids[index];
+        }
+
+        double getScore(int index) {
+            return null == scores ? 1.0 : scores[index];
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject;
+
+/**
+ * A parsed and validated query statement with its compiled WHERE clause. A
+ * plan is not changed after it was created and can be shared by concurrent
+ * queries.
+ * <p>
+ * The plan is shared by the statements of the same shape, see
+ * {@link QueryPlanCache#shape(String)}. Such a statement binds its literals
+ * into a copy of the WHERE clause, which is compiled again as the order of
+ * the conditions depends on the literals.
+ */
+final class QueryPlan {
+
+    private final QueryObject queryObj;
+    private final Tree whereTree;
+    private final List<TypeDefinition> secondaryTypeIds;
+    private final WhereClauseCompiler.Predicate wherePredicate;
+    private final List<String[]> searchTerms;
+    private final Map<Tree, Integer> parameters;
+
+    QueryPlan(QueryObject queryObj, Tree whereTree, List<TypeDefinition> secondaryTypeIds,
+            WhereClauseCompiler.Predicate wherePredicate, List<String[]> searchTerms, Map<Tree, Integer> parameters) {
+        this.queryObj = queryObj;
+        this.whereTree = whereTree;
+        this.secondaryTypeIds = secondaryTypeIds;
+        this.wherePredicate = wherePredicate;
+        this.searchTerms = searchTerms;
+        this.parameters = parameters;
+    }
+
+    QueryObject getQueryObject() {
+        return queryObj;
+    }
+
+    Tree getWhereTree() {
+        return whereTree;
+    }
+
+    List<TypeDefinition> getSecondaryTypeIds() {
+        return secondaryTypeIds;
+    }
+
+    /**
+     * @return true if the WHERE clause has literals bound by each statement
+     */
+    boolean hasParameters() {
+        return null != parameters && !parameters.isEmpty();
+    }
+
+    /**
+     * Copy the WHERE clause with the literals of a statement of the same
+     * shape. The copy keeps the token positions the column references of the
+     * query object are found by.
+     * 
+     * @param literals
+     *            literals of the statement in the order of the statement
+     * @return the WHERE clause of the statement
+     */
+    Tree bindWhereTree(List<String> literals) {
+        return bind(whereTree, literals);
+    }
+
+    private Tree bind(Tree node, List<String> literals) {
+        Integer number = parameters.get(node);
+        Tree copy;
+        if (null == number) {
+            copy = node.dupNode();
+        } else {
+            CommonTree literal = new CommonTree(new CommonToken(node.getType(), literals.get(number)));
+            literal.setTokenStartIndex(node.getTokenStartIndex());
+            literal.setTokenStopIndex(node.getTokenStopIndex());
+            copy = literal;
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            copy.addChild(bind(node.getChild(i), literals));
+        }
+        return copy;
+    }
+
+    /**
+     * @return the compiled WHERE clause, only valid for the literals of the
+     *         statement the plan was created from
+     */
+    WhereClauseCompiler.Predicate getWherePredicate() {
+        return wherePredicate;
+    }
+
+    /**
+     * @return the words and phrases of CONTAINS(), null if the query has no
+     *         CONTAINS()
+     */
+    List<String[]> getSearchTerms() {
+        return searchTerms;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.tree.Tree;
+import org.apache.chemistry.opencmis.inmemory.TypeManagerImpl;
+import org.apache.chemistry.opencmis.server.support.query.CmisQlStrictLexer;
+
+/**
+ * Least recently used cache of the query plans of one repository, keyed by
+ * the shape of the statement: its tokens with the literals replaced by
+ * placeholders. A statement differing from a cached one only in white space
+ * or in its literals is neither parsed nor validated again, its literals are
+ * bound into the cached plan.
+ * <p>
+ * The search expression of CONTAINS() is part of the shape, the words it
+ * searches for are taken from the parsed statement.
+ * <p>
+ * A plan refers to the type definitions it was validated against, all plans
+ * are dropped when the type system of the repository changes.
+ */
+public class QueryPlanCache {
+
+    public static final int DEFAULT_SIZE = 256;
+
+    private final TypeManagerImpl fTypeManager;
+    private final Map<String, QueryPlan> fPlans;
+    private long fTypesVersion;
+
+    /**
+     * Create an empty cache.
+     * 
+     * @param typeManager
+     *            type manager of the repository
+     * @param maxSize
+     *            maximum number of cached plans
+     */
+    public QueryPlanCache(TypeManagerImpl typeManager, final int maxSize) {
+        fTypeManager = typeManager;
+        fTypesVersion = typeManager.getModificationCount();
+        fPlans = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the version of the type system, to be read before a statement is
+     * parsed and passed to {@link #put}.
+     * 
+     * @return the modification count of the type manager
+     */
+    long getTypesVersion() {
+        return fTypeManager.getModificationCount();
+    }
+
+    /**
+     * Get the plan of a statement.
+     * 
+     * @param shape
+     *            shape of the query statement
+     * @return the plan or null if the statement is not cached
+     */
+    synchronized QueryPlan get(Shape shape) {
+        checkTypesVersion();
+        return null == shape.getKey() ? null : fPlans.get(shape.getKey());
+    }
+
+    /**
+     * Cache the plan of a statement.
+     * 
+     * @param shape
+     *            shape of the query statement
+     * @param plan
+     *            plan of the statement
+     * @param typesVersion
+     *            version of the type system the plan was created with
+     */
+    synchronized void put(Shape shape, QueryPlan plan, long typesVersion) {
+        checkTypesVersion();
+        if (null != shape.getKey() && typesVersion == fTypesVersion) {
+            fPlans.put(shape.getKey(), plan);
+        }
+    }
+
+    public synchronized int size() {
+        return fPlans.size();
+    }
+
+    public synchronized void clear() {
+        fPlans.clear();
+    }
+
+    private void checkTypesVersion() {
+        long typesVersion = fTypeManager.getModificationCount();
+        if (typesVersion != fTypesVersion) {
+            fPlans.clear();
+            fTypesVersion = typesVersion;
+        }
+    }
+
+    /**
+     * Get the shape of a statement. The tokens of the statement are joined
+     * by a single blank, string, numeric, date and boolean literals are
+     * replaced by a placeholder of their kind. Integer and decimal numbers
+     * get different placeholders as they are validated differently.
+     * 
+     * @param statement
+     *            query statement
+     * @return the shape, without a key if the statement cannot be tokenized
+     */
+    static Shape shape(String statement) {
+        CmisQlStrictLexer lexer = new CmisQlStrictLexer(new ANTLRStringStream(statement));
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        tokens.fill();
+        if (lexer.hasErrors()) {
+            // the parser reports the error
+            return new Shape(null, Collections.<String> emptyList(), Collections.<Integer, Integer> emptyMap());
+        }
+        StringBuilder key = new StringBuilder(statement.length());
+        List<String> literals = new ArrayList<String>();
+        Map<Integer, Integer> literalIndexes = new HashMap<Integer, Integer>();
+        int previousType = Token.INVALID_TOKEN_TYPE;
+        int beforePreviousType = Token.INVALID_TOKEN_TYPE;
+        for (Object obj : tokens.getTokens()) {
+            Token token = (Token) obj;
+            if (Token.DEFAULT_CHANNEL != token.getChannel() || Token.EOF == token.getType()) {
+                continue;
+            }
+            String placeholder = getPlaceholder(token);
+            if (CmisQlStrictLexer.CONTAINS == beforePreviousType && CmisQlStrictLexer.LPAR == previousType) {
+                // the search expression is parsed with the statement
+                placeholder = null;
+            }
+            if (key.length() > 0) {
+                key.append(' ');
+            }
+            if (null == placeholder) {
+                key.append(token.getText());
+            } else {
+                key.append(placeholder);
+                literalIndexes.put(token.getTokenIndex(), literals.size());
+                literals.add(token.getText());
+            }
+            beforePreviousType = previousType;
+            previousType = token.getType();
+        }
+        return new Shape(key.toString(), literals, literalIndexes);
+    }
+
+    /**
+     * Collapse white space outside of string literals to a single blank.
+     * 
+     * @param statement
+     *            query statement
+     * @return the normalized statement
+     */
+    static String normalize(String statement) {
+        StringBuilder res = new StringBuilder(statement.length());
+        boolean inLiteral = false;
+        boolean pendingBlank = false;
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (inLiteral) {
+                res.append(c);
+                if (c == '\\' && i + 1 < statement.length()) {
+                    res.append(statement.charAt(++i));
+                } else if (c == '\'') {
+                    inLiteral = false;
+                }
+            } else if (Character.isWhitespace(c)) {
+                pendingBlank = res.length() > 0;
+            } else {
+                if (pendingBlank) {
+                    res.append(' ');
+                    pendingBlank = false;
+                }
+                res.append(c);
+                inLiteral = c == '\'';
+            }
+        }
+        return res.toString();
+    }
+
+    private static boolean isLiteral(int type) {
+        return CmisQlStrictLexer.STRING_LIT == type || CmisQlStrictLexer.NUM_LIT == type
+                || CmisQlStrictLexer.TIME_LIT == type || CmisQlStrictLexer.BOOL_LIT == type;
+    }
+
+    private static String getPlaceholder(Token token) {
+        switch (token.getType()) {
+        case CmisQlStrictLexer.STRING_LIT:
+            return "?s";
+        case CmisQlStrictLexer.NUM_LIT:
+            String text = token.getText();
+            return text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0 ? "?i" : "?d";
+        case CmisQlStrictLexer.TIME_LIT:
+            return "?t";
+        case CmisQlStrictLexer.BOOL_LIT:
+            return "?b";
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * The shape of a statement and the literals it replaces.
+     */
+    static final class Shape {
+
+        private final String key;
+        private final List<String> literals;
+        private final Map<Integer, Integer> literalIndexes;
+
+        private Shape(String key, List<String> literals, Map<Integer, Integer> literalIndexes) {
+            this.key = key;
+            this.literals = literals;
+            this.literalIndexes = literalIndexes;
+        }
+
+        /**
+         * @return the statement with placeholders, null if the statement
+         *         cannot be cached
+         */
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the text of the replaced literals in the order of the
+         *         statement
+         */
+        List<String> getLiterals() {
+            return literals;
+        }
+
+        /**
+         * Find the replaced literals in the parsed WHERE clause of the
+         * statement.
+         * 
+         * @param whereTree
+         *            WHERE clause parsed from the statement, may be null
+         * @return the number of each replaced literal node
+         */
+        Map<Tree, Integer> getParameters(Tree whereTree) {
+            Map<Tree, Integer> parameters = new IdentityHashMap<Tree, Integer>();
+            if (null != whereTree && !literalIndexes.isEmpty()) {
+                addParameters(whereTree, parameters);
+            }
+            return parameters;
+        }
+
+        private void addParameters(Tree node, Map<Tree, Integer> parameters) {
+            if (isLiteral(node.getType())) {
+                Integer number = literalIndexes.get(node.getTokenStartIndex());
+                if (null != number) {
+                    parameters.put(node, number);
+                }
+            }
+            for (int i = 0; i < node.getChildCount(); i++) {
+                addParameters(node.getChild(i), parameters);
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.antlr.runtime.tree.Tree;
+import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
+import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
+import org.apache.chemistry.opencmis.commons.enums.Cardinality;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.FullTextIndex;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.PropertyIndex;
+import org.apache.chemistry.opencmis.server.support.query.AbstractPredicateWalker;
+import org.apache.chemistry.opencmis.server.support.query.CmisQlStrictLexer;
+import org.apache.chemistry.opencmis.server.support.query.CmisSelector;
+import org.apache.chemistry.opencmis.server.support.query.ColumnReference;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject;
+import org.apache.chemistry.opencmis.server.support.query.StringUtil;
+import org.apache.chemistry.opencmis.server.support.query.TextSearchLexer;
+
+/**
+ * Chooses the objects a query has to evaluate. If a condition of the WHERE
+ * clause can be answered by a property index the ids found in the index are
+ * the driving set of the query, otherwise all objects are scanned. The
+ * complete WHERE clause is still evaluated for each object of the driving
+ * set, the index only avoids looking at objects that cannot match.
+ * CONTAINS() is driven by the full text index, unless it only excludes words.
+ * A query on a secondary type is driven by the objects having this type or
+ * one of its subtypes applied.
+ * <p>
+ * The size of each possible driving set is estimated before any ids are
+ * read: exactly for equality and IN from the index, from the histogram of a
+ * sorted index for a range, from the rarest word for CONTAINS(). For an AND
+ * only the cheaper side is read, for an OR the union of both sides if both
+ * can use an index. If the driving set is estimated to hold a large part of
+ * the repository all objects are scanned instead.
+ */
+class QueryPlanner {
+
+    /**
+     * A driving set is only read if it is estimated to be smaller than this
+     * fraction of all objects, otherwise scanning all objects is cheaper.
+     */
+    private static final double MAX_DRIVING_FRACTION = 0.5;
+
+    /**
+     * A possible driving set with the estimate of its size.
+     */
+    private static final class Access {
+        private final String label;
+        private final double estimate;
+        private final Supplier<Set<String>> fetcher;
+        private final List<Access> children;
+        private Access via;
+        private int actual = -1;
+
+        Access(String label, double estimate, Supplier<Set<String>> fetcher, Access... children) {
+            this.label = label;
+            this.estimate = estimate;
+            this.fetcher = fetcher;
+            this.children = Arrays.asList(children);
+        }
+
+        Set<String> fetch() {
+            Set<String> ids = fetcher.get();
+            actual = ids.size();
+            return ids;
+        }
+
+        /**
+         * @return the index access actually read for this set
+         */
+        Access driving() {
+            return null == via ? this : via.driving();
+        }
+
+        void explain(StringBuilder sb, int depth) {
+            for (int i = 0; i < depth; i++) {
+                sb.append("  ");
+            }
+            sb.append(label).append(" (estimated ").append(Math.round(estimate));
+            if (actual >= 0) {
+                sb.append(", actual ").append(actual);
+            }
+            sb.append(")\n");
+            for (Access child : children) {
+                child.explain(sb, depth + 1);
+            }
+        }
+    }
+
+    private final QueryObject queryObj;
+    private final ObjectStoreImpl objStore;
+    private final Set<String> typeIds;
+    private final AbstractPredicateWalker literalWalker = new AbstractPredicateWalker() {
+    };
+    private Access plan;
+    private boolean scan;
+    private long objectCount;
+
+    /**
+     * Create a planner.
+     *
+     * @param queryObj
+     *            parsed query
+     * @param objStore
+     *            object store the query runs on
+     * @param typeIds
+     *            ids of the queried type and its subtypes, null if not known
+     */
+    QueryPlanner(QueryObject queryObj, ObjectStoreImpl objStore, Set<String> typeIds) {
+        this.queryObj = queryObj;
+        this.objStore = objStore;
+        this.typeIds = typeIds;
+    }
+
+    /**
+     * Get the ids of the objects that may match a query.
+     *
+     * @param whereTree
+     *            WHERE clause, may be null
+     * @return the ids or null if all objects must be scanned
+     */
+    Set<String> getCandidateIds(Tree whereTree) {
+        objectCount = objStore.getObjectCount();
+        plan = and(null == whereTree ? null : plan(whereTree), planType());
+        scan = null == plan || plan.estimate >= objectCount * MAX_DRIVING_FRACTION;
+        return scan ? null : plan.fetch();
+    }
+
+    /**
+     * Describe the plan chosen by {@link #getCandidateIds(Tree)}: the
+     * possible driving sets with their estimated and, if read, actual size.
+     *
+     * @return the description, one line per driving set
+     */
+    String explain() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("objects: ").append(objectCount);
+        if (null != typeIds && (null == plan || !plan.label.startsWith("secondary type"))) {
+            sb.append(", of queried type: ").append(objStore.getObjectCount(typeIds));
+        }
+        sb.append("\n");
+        if (scan) {
+            sb.append("driving set: scan of all objects\n");
+        } else {
+            Access driving = plan.driving();
+            sb.append("driving set: ").append(driving.label).append(", estimated ")
+                    .append(Math.round(driving.estimate)).append(", actual ").append(driving.actual).append("\n");
+        }
+        if (null != plan) {
+            sb.append("indexes:\n");
+            plan.explain(sb, 1);
+        }
+        return sb.toString();
+    }
+
+    private Access planType() {
+        if (null == typeIds) {
+            return null;
+        }
+        String queryName = queryObj.getTypes().values().iterator().next();
+        TypeDefinition td = queryObj.getTypeDefinitionFromQueryName(queryName);
+        if (td.getBaseTypeId() != BaseTypeId.CMIS_SECONDARY) {
+            return null;
+        }
+        return new Access("secondary type " + td.getId(), objStore.getCountWithSecondaryType(typeIds),
+                () -> objStore.getIdsWithSecondaryType(typeIds));
+    }
+
+    private Access plan(Tree node) {
+        switch (node.getType()) {
+        case CmisQlStrictLexer.AND:
+            return and(plan(node.getChild(0)), plan(node.getChild(1)));
+        case CmisQlStrictLexer.OR:
+            return or(plan(node.getChild(0)), plan(node.getChild(1)));
+        case CmisQlStrictLexer.EQ:
+            return planEquals(node.getChild(0), node.getChild(1), Cardinality.SINGLE);
+        case CmisQlStrictLexer.EQ_ANY:
+            return planEquals(node.getChild(1), node.getChild(0), Cardinality.MULTI);
+        case CmisQlStrictLexer.IN:
+            return planIn(node.getChild(0), node.getChild(1), Cardinality.SINGLE);
+        case CmisQlStrictLexer.IN_ANY:
+            return planIn(node.getChild(0), node.getChild(1), Cardinality.MULTI);
+        case CmisQlStrictLexer.GT:
+            return planRange(node.getChild(0), node.getChild(1), false, false);
+        case CmisQlStrictLexer.GTEQ:
+            return planRange(node.getChild(0), node.getChild(1), false, true);
+        case CmisQlStrictLexer.LT:
+            return planRange(node.getChild(0), node.getChild(1), true, false);
+        case CmisQlStrictLexer.LTEQ:
+            return planRange(node.getChild(0), node.getChild(1), true, true);
+        case CmisQlStrictLexer.CONTAINS:
+            return planSearch(node.getChild(node.getChildCount() - 1));
+        default:
+            return null;
+        }
+    }
+
+    private Access planSearch(Tree node) {
+        Access res;
+        switch (node.getType()) {
+        case TextSearchLexer.TEXT_AND:
+            res = null;
+            for (int i = 0; i < node.getChildCount(); i++) {
+                res = and(res, planSearch(node.getChild(i)));
+            }
+            return res;
+        case TextSearchLexer.TEXT_OR:
+            res = planSearch(node.getChild(0));
+            for (int i = 1; i < node.getChildCount(); i++) {
+                res = or(res, planSearch(node.getChild(i)));
+            }
+            return res;
+        case TextSearchLexer.TEXT_SEARCH_WORD_LIT:
+            return planWords(node.getText());
+        case TextSearchLexer.TEXT_SEARCH_PHRASE_STRING_LIT:
+            String phrase = node.getText();
+            return planWords(phrase.substring(1, phrase.length() - 1));
+        default:
+            // an excluded word may match any object
+            return null;
+        }
+    }
+
+    private Access planWords(String nodeText) {
+        String text = StringUtil.unescape(nodeText, "\\'-");
+        if (null == text) {
+            // reported when the WHERE clause is evaluated
+            return null;
+        }
+        final FullTextIndex index = objStore.getFullTextIndex();
+        final String[] terms = FullTextIndex.tokenize(text);
+        return new Access("full text '" + text + "'", index.estimateCount(terms), () -> index.getIds(terms));
+    }
+
+    private Access planEquals(Tree colNode, Tree literalNode, Cardinality cardinality) {
+        ColumnReference colRef = getColumnReference(colNode);
+        PropertyIndex index = getIndex(colRef, cardinality);
+        if (null == index) {
+            return null;
+        }
+        Object literal = literalWalker.walkExpr(literalNode);
+        if (!isComparable(colRef.getPropertyDefinition(), literal)) {
+            return null;
+        }
+        final Set<String> ids = index.getIds(literal);
+        return new Access(describe(index) + " = " + format(literal), ids.size(), () -> ids);
+    }
+
+    private Access planIn(Tree colNode, Tree listNode, Cardinality cardinality) {
+        ColumnReference colRef = getColumnReference(colNode);
+        final PropertyIndex index = getIndex(colRef, cardinality);
+        if (null == index || listNode.getType() != CmisQlStrictLexer.IN_LIST) {
+            return null;
+        }
+        final List<?> literals = (List<?>) literalWalker.walkExpr(listNode);
+        int estimate = 0;
+        for (Object literal : literals) {
+            if (!isComparable(colRef.getPropertyDefinition(), literal)) {
+                return null;
+            }
+            estimate += index.getIds(literal).size();
+        }
+        return new Access(describe(index) + " IN " + literals.size() + " values", estimate,
+                () -> index.getIds(literals));
+    }
+
+    private Access planRange(Tree colNode, Tree literalNode, final boolean upper, final boolean inclusive) {
+        ColumnReference colRef = getColumnReference(colNode);
+        final PropertyIndex index = getIndex(colRef, Cardinality.SINGLE);
+        if (null == index || !index.isSorted()) {
+            return null;
+        }
+        final Object literal = literalWalker.walkExpr(literalNode);
+        if (!isComparable(colRef.getPropertyDefinition(), literal) || literal instanceof Boolean) {
+            return null;
+        }
+        String label = describe(index) + (upper ? " <" : " >") + (inclusive ? "= " : " ") + format(literal);
+        if (upper) {
+            return new Access(label, index.estimateCount(null, false, literal, inclusive),
+                    () -> index.getIds(null, false, literal, inclusive));
+        }
+        return new Access(label, index.estimateCount(literal, inclusive, null, false),
+                () -> index.getIds(literal, inclusive, null, false));
+    }
+
+    private ColumnReference getColumnReference(Tree colNode) {
+        if (colNode.getType() != CmisQlStrictLexer.COL) {
+            return null;
+        }
+        CmisSelector sel = queryObj.getColumnReference(colNode.getTokenStartIndex());
+        return sel instanceof ColumnReference ? (ColumnReference) sel : null;
+    }
+
+    private PropertyIndex getIndex(ColumnReference colRef, Cardinality cardinality) {
+        if (null == colRef || null == colRef.getPropertyDefinition()
+                || colRef.getPropertyDefinition().getCardinality() != cardinality) {
+            return null;
+        }
+        return objStore.getPropertyIndex(colRef.getPropertyId());
+    }
+
+    /*
+     * Only use an index if the query processor would compare the literal with
+     * the property value without an error, so that errors are reported the
+     * same way with and without index.
+     */
+    static boolean isComparable(PropertyDefinition<?> pd, Object literal) {
+        switch (pd.getPropertyType()) {
+        case BOOLEAN:
+            return literal instanceof Boolean;
+        case INTEGER:
+            return literal instanceof Long;
+        case DECIMAL:
+            return literal instanceof Long || literal instanceof Double;
+        case DATETIME:
+            return literal instanceof GregorianCalendar;
+        case STRING:
+        case ID:
+        case HTML:
+        case URI:
+            return literal instanceof String;
+        default:
+            return false;
+        }
+    }
+
+    private String describe(PropertyIndex index) {
+        return "index " + index.getPropertyId() + " [" + index.getDistinctCount() + " values, "
+                + Math.round(100.0 * (objectCount - Math.min(objectCount, index.size())) / Math.max(1, objectCount))
+                + "% null]";
+    }
+
+    static String format(Object literal) {
+        if (literal instanceof String) {
+            return "'" + literal + "'";
+        } else if (literal instanceof GregorianCalendar) {
+            return ((GregorianCalendar) literal).toZonedDateTime().toString();
+        }
+        return String.valueOf(literal);
+    }
+
+    private static Access and(Access access1, Access access2) {
+        if (null == access1) {
+            return access2;
+        } else if (null == access2) {
+            return access1;
+        }
+        final Access cheaper = access1.estimate <= access2.estimate ? access1 : access2;
+        Access res = new Access("AND", cheaper.estimate, cheaper::fetch, access1, access2);
+        res.via = cheaper;
+        return res;
+    }
+
+    private static Access or(final Access access1, final Access access2) {
+        if (null == access1 || null == access2) {
+            return null;
+        }
+        return new Access("OR", access1.estimate + access2.estimate, () -> {
+            Set<String> res = new HashSet<String>(access1.fetch());
+            res.addAll(access2.fetch());
+            return res;
+        }, access1, access2);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.chemistry.opencmis.commons.data.CmisExtensionElement;
+import org.apache.chemistry.opencmis.commons.data.ExtensionsData;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.CmisExtensionElementImpl;
+
+/**
+ * Where the time of one query went: parsing, the plan with its driving set
+ * and the predicates checked on each candidate, the number of objects
+ * scanned, evaluated and rejected by their Acl, and the time spent scanning,
+ * sorting and building the result.
+ * <p>
+ * A client asks for the profile of a query with the extension element
+ * <code>profile</code> in the namespace {@link #NAMESPACE}, the result then
+ * carries the element <code>queryProfile</code> with one child per figure.
+ */
+public class QueryProfile {
+
+    public static final String NAMESPACE = "http://apache.org/opencmis/inmemory";
+    public static final String REQUEST_ELEMENT = "profile";
+    public static final String RESULT_ELEMENT = "queryProfile";
+
+    private final String statement;
+    private final long start = System.nanoTime();
+    private long parseNanos;
+    private boolean planCached;
+    private long planNanos;
+    private String plan;
+    private String filter;
+    private boolean fromCursor;
+    private long scanNanos;
+    private long sortNanos;
+    private long buildNanos;
+    private long totalNanos;
+    private int matches;
+
+    final LongAdder scanned = new LongAdder();
+    final LongAdder evaluated = new LongAdder();
+    final LongAdder aclRejected = new LongAdder();
+
+    QueryProfile(String statement) {
+        this.statement = statement;
+    }
+
+    /**
+     * Check if a query request asks for its profile.
+     *
+     * @param extension
+     *            extension of the query request, may be null
+     * @return true if the profile element is present
+     */
+    public static boolean isRequested(ExtensionsData extension) {
+        if (null == extension || null == extension.getExtensions()) {
+            return false;
+        }
+        for (CmisExtensionElement element : extension.getExtensions()) {
+            if (REQUEST_ELEMENT.equals(element.getName()) && NAMESPACE.equals(element.getNamespace())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void parsed(long nanos, boolean cached) {
+        parseNanos = nanos;
+        planCached = cached;
+    }
+
+    void planned(long nanos, String plan, String filter) {
+        planNanos = nanos;
+        this.plan = plan;
+        this.filter = filter;
+    }
+
+    void readFromCursor() {
+        fromCursor = true;
+    }
+
+    void scanned(long nanos, int matches) {
+        scanNanos = nanos;
+        this.matches = matches;
+    }
+
+    void sorted(long nanos) {
+        sortNanos = nanos;
+    }
+
+    void built(long nanos) {
+        buildNanos = nanos;
+    }
+
+    void finish() {
+        totalNanos = System.nanoTime() - start;
+    }
+
+    public String getStatement() {
+        return statement;
+    }
+
+    /**
+     * @return milliseconds from the start of the query to the complete
+     *         result
+     */
+    public double getTotalMillis() {
+        return toMillis(totalNanos);
+    }
+
+    /**
+     * Describe the profile as an extension element of the query result.
+     *
+     * @return the element
+     */
+    public CmisExtensionElement toExtension() {
+        List<CmisExtensionElement> children = new ArrayList<CmisExtensionElement>();
+        add(children, "parseTime", format(parseNanos));
+        add(children, "planCached", String.valueOf(planCached));
+        add(children, "fromCursor", String.valueOf(fromCursor));
+        if (null != plan) {
+            add(children, "planTime", format(planNanos));
+            add(children, "plan", plan);
+        }
+        if (null != filter) {
+            add(children, "filter", filter);
+        }
+        add(children, "scanned", String.valueOf(scanned.sum()));
+        add(children, "evaluated", String.valueOf(evaluated.sum()));
+        add(children, "aclRejected", String.valueOf(aclRejected.sum()));
+        add(children, "matches", String.valueOf(matches));
+        add(children, "scanTime", format(scanNanos));
+        add(children, "sortTime", format(sortNanos));
+        add(children, "buildTime", format(buildNanos));
+        add(children, "totalTime", format(totalNanos));
+        return new CmisExtensionElementImpl(NAMESPACE, RESULT_ELEMENT, null, children);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("statement: ").append(statement).append('\n');
+        sb.append("parse: ").append(format(parseNanos)).append(" ms").append(planCached ? " (cached)" : "")
+                .append('\n');
+        if (fromCursor) {
+            sb.append("read from cursor\n");
+        }
+        if (null != plan) {
+            sb.append("plan: ").append(format(planNanos)).append(" ms\n").append(plan);
+        }
+        if (null != filter) {
+            sb.append("filter: ").append(filter).append('\n');
+        }
+        sb.append("scan: ").append(format(scanNanos)).append(" ms, scanned ").append(scanned.sum())
+                .append(", evaluated ").append(evaluated.sum()).append(", rejected by acl ")
+                .append(aclRejected.sum()).append(", matches ").append(matches).append('\n');
+        sb.append("sort: ").append(format(sortNanos)).append(" ms\n");
+        sb.append("build result: ").append(format(buildNanos)).append(" ms\n");
+        sb.append("total: ").append(format(totalNanos)).append(" ms");
+        return sb.toString();
+    }
+
+    private static void add(List<CmisExtensionElement> children, String name, String value) {
+        children.add(new CmisExtensionElementImpl(NAMESPACE, name, null, value));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private static String format(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", toMillis(nanos));
+    }
+}
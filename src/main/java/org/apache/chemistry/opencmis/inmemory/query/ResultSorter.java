@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+import org.apache.chemistry.opencmis.server.support.query.CmisSelector;
+import org.apache.chemistry.opencmis.server.support.query.ColumnReference;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject.SortSpec;
+
+/**
+ * Sorts the matches of a query by all columns of the ORDER BY clause. The
+ * sort keys of an object are read once before sorting. If only the first
+ * objects of a large result are requested they are selected with a bounded
+ * heap instead of sorting all matches.
+ * <p>
+ * A property that is not set sorts before all values in ascending order.
+ * SEARCH_SCORE sorts by the relevance computed for a CONTAINS() query, other
+ * functions do not change the order. Objects with equal keys keep the order
+ * in which they were matched.
+ */
+class ResultSorter {
+
+    /**
+     * A heap is used if at most this fraction of the matches is requested.
+     */
+    private static final int HEAP_FRACTION = 4;
+
+    /**
+     * A match with the values of its sort columns.
+     */
+    private static final class SortEntry {
+        private final StoredObject so;
+        private final Object[] keys;
+        private final int position;
+
+        SortEntry(StoredObject so, Object[] keys, int position) {
+            this.so = so;
+            this.keys = keys;
+            this.position = position;
+        }
+    }
+
+    private final String[] propertyIds;
+    private final PropertyDefinition<?>[] propertyDefinitions;
+    private final boolean[] ascending;
+    private final Map<String, Double> scores;
+    private final Comparator<SortEntry> order = new Comparator<SortEntry>() {
+        public int compare(SortEntry e1, SortEntry e2) {
+            for (int i = 0; i < propertyIds.length; i++) {
+                int result = compareKeys(e1.keys[i], e2.keys[i]);
+                if (result != 0) {
+                    return ascending[i] ? result : -result;
+                }
+            }
+            return e1.position < e2.position ? -1 : (e1.position == e2.position ? 0 : 1);
+        }
+    };
+
+    /**
+     * Create a sorter.
+     *
+     * @param queryObj
+     *            parsed query
+     * @param scores
+     *            relevance of each match by object id, null if the query
+     *            has no CONTAINS()
+     */
+    ResultSorter(QueryObject queryObj, Map<String, Double> scores) {
+        this.scores = scores;
+        List<SortSpec> orderBy = queryObj.getOrderBys();
+        // a null column stands for SEARCH_SCORE
+        List<ColumnReference> columns = new ArrayList<ColumnReference>(orderBy.size());
+        List<Boolean> directions = new ArrayList<Boolean>(orderBy.size());
+        for (SortSpec sortSpec : orderBy) {
+            CmisSelector sel = sortSpec.getSelector();
+            if (queryObj.isPredfinedQueryName(sel.getName())) {
+                if (null != scores) {
+                    columns.add(null);
+                    directions.add(sortSpec.isAscending());
+                }
+            } else if (sel instanceof ColumnReference) {
+                columns.add((ColumnReference) sel);
+                directions.add(sortSpec.isAscending());
+            }
+        }
+        propertyIds = new String[columns.size()];
+        propertyDefinitions = new PropertyDefinition<?>[columns.size()];
+        ascending = new boolean[columns.size()];
+        for (int i = 0; i < propertyIds.length; i++) {
+            if (null != columns.get(i)) {
+                propertyIds[i] = columns.get(i).getPropertyId();
+                propertyDefinitions[i] = columns.get(i).getPropertyDefinition();
+            }
+            ascending[i] = directions.get(i);
+        }
+    }
+
+    /**
+     * Sort matches.
+     *
+     * @param matches
+     *            objects matching the query
+     * @param limit
+     *            number of objects requested from the start of the sorted
+     *            result, or a negative value for all objects
+     * @return the sorted matches, at least the first <code>limit</code>
+     *         ones
+     */
+    List<StoredObject> sort(List<StoredObject> matches, int limit) {
+        if (propertyIds.length == 0 || matches.size() < 2) {
+            return matches;
+        }
+        int size = matches.size();
+        SortEntry[] entries;
+        if (limit >= 0 && limit <= size / HEAP_FRACTION) {
+            entries = selectFirst(matches, limit);
+        } else {
+            entries = new SortEntry[size];
+            for (int i = 0; i < size; i++) {
+                entries[i] = createEntry(matches.get(i), i);
+            }
+        }
+        Arrays.sort(entries, order);
+
+        List<StoredObject> res = new ArrayList<StoredObject>(entries.length);
+        for (SortEntry entry : entries) {
+            res.add(entry.so);
+        }
+        return res;
+    }
+
+    /*
+     * Keep the first entries in a heap having the largest of them at its
+     * head, so that each further entry is compared with the head only.
+     */
+    private SortEntry[] selectFirst(List<StoredObject> matches, int limit) {
+        if (limit == 0) {
+            return new SortEntry[0];
+        }
+        PriorityQueue<SortEntry> heap = new PriorityQueue<SortEntry>(limit, Collections.reverseOrder(order));
+        for (int i = 0; i < matches.size(); i++) {
+            SortEntry entry = createEntry(matches.get(i), i);
+            if (heap.size() < limit) {
+                heap.add(entry);
+            } else if (order.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        return heap.toArray(new SortEntry[heap.size()]);
+    }
+
+    private SortEntry createEntry(StoredObject so, int position) {
+        Object[] keys = new Object[propertyIds.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = null == propertyIds[i] ? scores.get(so.getId())
+                    : PropertyQueryUtil.getProperty(so, propertyIds[i], propertyDefinitions[i]);
+        }
+        return new SortEntry(so, keys, position);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareKeys(Object key1, Object key2) {
+        if (key1 == null && key2 == null) {
+            return 0;
+        } else if (key1 == null) {
+            return -1;
+        } else if (key2 == null) {
+            return 1;
+        }
+        return ((Comparable<Object>) key1).compareTo(key2);
+    }
+}
@@ -0,0 +1,884 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.antlr.runtime.tree.Tree;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
+import org.apache.chemistry.opencmis.commons.enums.Cardinality;
+import org.apache.chemistry.opencmis.commons.enums.PropertyType;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisRuntimeException;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.Filing;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.FullTextIndex;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.PropertyIndex;
+import org.apache.chemistry.opencmis.server.support.query.AbstractPredicateWalker;
+import org.apache.chemistry.opencmis.server.support.query.CmisQlStrictLexer;
+import org.apache.chemistry.opencmis.server.support.query.ColumnReference;
+import org.apache.chemistry.opencmis.server.support.query.StringUtil;
+import org.apache.chemistry.opencmis.server.support.query.TextSearchLexer;
+
+/**
+ * Compiles the WHERE clause of a query into a tree of predicates once per
+ * query. Column references, literals, IN lists and LIKE patterns are resolved
+ * while compiling, so that checking an object only reads its property values.
+ * <p>
+ * The predicates evaluate like the {@link InMemoryQueryProcessor}'s where
+ * clause walker: a condition on a property that is not set is false, and an
+ * error the walker reports for every object, like LIKE on a numeric property,
+ * is reported when the first object is checked. As the walker evaluates both
+ * sides of AND and OR, a side that may raise an error is always evaluated,
+ * otherwise the evaluation stops as soon as the result is known.
+ * <p>
+ * CONTAINS() is answered by the {@link FullTextIndex} of the object store,
+ * words and phrases match whole words of the content ignoring case.
+ * <p>
+ * Each predicate gets a relative cost and an estimated fraction of objects
+ * it matches, taken from the property indexes and the full text index when
+ * the statement is compiled. The sides of an AND or OR that cannot fail are
+ * ordered so that the side most likely to decide the result cheaply is
+ * evaluated first.
+ * <p>
+ * The string of a predicate shows the conditions in the order they are
+ * evaluated, to explain a query.
+ */
+class WhereClauseCompiler {
+
+    /**
+     * A compiled condition of a WHERE clause.
+     */
+    abstract static class Predicate {
+
+        /**
+         * Relative cost of checking an object, 1 for a property comparison.
+         */
+        double cost = 1;
+
+        /**
+         * Estimated fraction of the objects matching.
+         */
+        double selectivity = 0.5;
+
+        /**
+         * Check an object.
+         *
+         * @param so
+         *            object to check
+         * @param user
+         *            user executing the query
+         * @return true if the object matches
+         */
+        abstract boolean matches(StoredObject so, String user);
+
+        /**
+         * @return true if checking an object may throw an exception
+         */
+        boolean mayFail() {
+            return false;
+        }
+    }
+
+    private final InMemoryQueryProcessor processor;
+    private final ObjectStoreImpl objStore;
+    private final AbstractPredicateWalker literalWalker = new AbstractPredicateWalker() {
+    };
+    private List<String[]> searchTerms;
+    private final double objectCount;
+
+    /**
+     * Create a compiler. The compiled predicates only keep a reference to the
+     * object store, they can be reused by later queries on the same store.
+     *
+     * @param processor
+     *            processor holding the parsed query
+     * @param objStore
+     *            object store the query runs on
+     */
+    WhereClauseCompiler(InMemoryQueryProcessor processor, ObjectStoreImpl objStore) {
+        this.processor = processor;
+        this.objStore = objStore;
+        objectCount = Math.max(1, objStore.getObjectCount());
+    }
+
+    /**
+     * Compile a WHERE clause.
+     *
+     * @param whereTree
+     *            WHERE clause, may be null
+     * @return the predicate or null if there is no WHERE clause
+     */
+    Predicate compile(Tree whereTree) {
+        return null == whereTree ? null : compilePredicate(whereTree);
+    }
+
+    /**
+     * @return the words and phrases searched for by CONTAINS(), excluded
+     *         words are not part of it, or null if the WHERE clause has no
+     *         CONTAINS()
+     */
+    List<String[]> getSearchTerms() {
+        return searchTerms;
+    }
+
+    private Predicate compilePredicate(Tree node) {
+        try {
+            return compileNode(node);
+        } catch (RuntimeException e) {
+            return new Failure(e);
+        }
+    }
+
+    private Predicate compileNode(Tree node) {
+        switch (node.getType()) {
+        case CmisQlStrictLexer.NOT:
+            return new Not(compilePredicate(node.getChild(0)));
+        case CmisQlStrictLexer.AND:
+            return new And(compilePredicate(node.getChild(0)), compilePredicate(node.getChild(1)));
+        case CmisQlStrictLexer.OR:
+            return new Or(compilePredicate(node.getChild(0)), compilePredicate(node.getChild(1)));
+        case CmisQlStrictLexer.EQ:
+        case CmisQlStrictLexer.NEQ:
+        case CmisQlStrictLexer.GT:
+        case CmisQlStrictLexer.GTEQ:
+        case CmisQlStrictLexer.LT:
+        case CmisQlStrictLexer.LTEQ:
+            return compileComparison(node);
+        case CmisQlStrictLexer.IN:
+        case CmisQlStrictLexer.NOT_IN:
+            return compileIn(node);
+        case CmisQlStrictLexer.IN_ANY:
+        case CmisQlStrictLexer.NOT_IN_ANY:
+            return compileInAny(node);
+        case CmisQlStrictLexer.EQ_ANY:
+            return compileEqAny(node);
+        case CmisQlStrictLexer.IS_NULL:
+        case CmisQlStrictLexer.IS_NOT_NULL:
+            return compileIsNull(node);
+        case CmisQlStrictLexer.LIKE:
+        case CmisQlStrictLexer.NOT_LIKE:
+            return compileLike(node);
+        case CmisQlStrictLexer.IN_FOLDER:
+        case CmisQlStrictLexer.IN_TREE:
+            return compileFolder(node);
+        case CmisQlStrictLexer.CONTAINS:
+            if (null == searchTerms) {
+                searchTerms = new ArrayList<String[]>();
+            }
+            return compileSearchExpr(node.getChild(node.getChildCount() - 1));
+        case CmisQlStrictLexer.BOOL_LIT:
+        case CmisQlStrictLexer.NUM_LIT:
+        case CmisQlStrictLexer.STRING_LIT:
+        case CmisQlStrictLexer.TIME_LIT:
+        case CmisQlStrictLexer.IN_LIST:
+            // a literal used as condition is never true
+            literalWalker.walkExpr(node);
+            return Constant.FALSE;
+        case CmisQlStrictLexer.COL:
+        case CmisQlStrictLexer.ID:
+        case CmisQlStrictLexer.SCORE:
+            return Constant.FALSE;
+        default:
+            throw unknownNode(node);
+        }
+    }
+
+    private Predicate compileComparison(Tree node) {
+        Object literal = literalWalker.walkExpr(node.getChild(1));
+        ColumnReference colRef = getColumnReference(node.getChild(0));
+        Comparison res = new Comparison(colRef, literal, node.getType());
+        PropertyIndex index = objStore.getPropertyIndex(colRef.getPropertyId());
+        boolean indexed = null != index && !res.mayFail();
+        switch (node.getType()) {
+        case CmisQlStrictLexer.EQ:
+            res.selectivity = indexed ? index.getIds(literal).size() / objectCount : 0.05;
+            break;
+        case CmisQlStrictLexer.NEQ:
+            res.selectivity = indexed ? (index.size() - index.getIds(literal).size()) / objectCount : 0.9;
+            break;
+        case CmisQlStrictLexer.GT:
+        case CmisQlStrictLexer.GTEQ:
+            res.selectivity = indexed && index.isSorted() ? index.estimateCount(literal,
+                    node.getType() == CmisQlStrictLexer.GTEQ, null, false) / objectCount : 0.3;
+            break;
+        default:
+            res.selectivity = indexed && index.isSorted() ? index.estimateCount(null, false, literal,
+                    node.getType() == CmisQlStrictLexer.LTEQ) / objectCount : 0.3;
+            break;
+        }
+        return res;
+    }
+
+    private Predicate compileIsNull(Tree node) {
+        ColumnReference colRef = getColumnReference(node.getChild(0));
+        boolean isNull = node.getType() == CmisQlStrictLexer.IS_NULL;
+        PropertyIndex index = objStore.getPropertyIndex(colRef.getPropertyId());
+        double nullFraction = null == index ? 0.1 : 1 - Math.min(1, index.size() / objectCount);
+        return estimate(new IsNull(colRef, isNull), 0.5, isNull ? nullFraction : 1 - nullFraction);
+    }
+
+    private Predicate compileIn(Tree node) {
+        ColumnReference colRef = getColumnReference(node.getChild(0));
+        List<?> literals = (List<?>) literalWalker.walkExpr(node.getChild(1));
+        if (colRef.getPropertyDefinition().getCardinality() != Cardinality.SINGLE) {
+            throw new IllegalStateException("Operator IN only is allowed on single-value properties ");
+        }
+        PropertyIndex index = objStore.getPropertyIndex(colRef.getPropertyId());
+        double selectivity = Math.min(0.5, 0.05 * literals.size());
+        if (null != index) {
+            selectivity = 0;
+            for (Object literal : literals) {
+                selectivity += index.getIds(literal).size() / objectCount;
+            }
+        }
+        boolean negate = node.getType() == CmisQlStrictLexer.NOT_IN;
+        return estimate(new In(colRef, literals, negate), 1, negate ? 1 - selectivity : selectivity);
+    }
+
+    private Predicate compileInAny(Tree node) {
+        ColumnReference colRef = getColumnReference(node.getChild(0));
+        List<?> literals = (List<?>) literalWalker.walkExpr(node.getChild(1));
+        if (colRef.getPropertyDefinition().getCardinality() != Cardinality.MULTI) {
+            throw new IllegalStateException("Operator ANY...IN only is allowed on multi-value properties ");
+        }
+        boolean negate = node.getType() == CmisQlStrictLexer.NOT_IN_ANY;
+        return estimate(new InAny(colRef, literals, negate), 2, negate ? 0.9 : 0.1);
+    }
+
+    private Predicate compileEqAny(Tree node) {
+        ColumnReference colRef = getColumnReference(node.getChild(1));
+        Object literal = literalWalker.walkExpr(node.getChild(0));
+        if (colRef.getPropertyDefinition().getCardinality() != Cardinality.MULTI) {
+            throw new IllegalStateException("Operator = ANY only is allowed on multi-value properties ");
+        }
+        return estimate(new EqAny(colRef, literal), 2, 0.1);
+    }
+
+    private Predicate compileLike(Tree node) {
+        Object rVal = literalWalker.walkExpr(node.getChild(1));
+        if (!(rVal instanceof String)) {
+            throw new IllegalStateException("LIKE operator requires String literal on right hand side.");
+        }
+        ColumnReference colRef = getColumnReference(node.getChild(0));
+        PropertyDefinition<?> pd = colRef.getPropertyDefinition();
+        PropertyType propType = pd.getPropertyType();
+        if (propType != PropertyType.STRING && propType != PropertyType.HTML && propType != PropertyType.ID
+                && propType != PropertyType.URI) {
+            throw new IllegalStateException("Property type " + propType.value() + " is not allowed FOR LIKE");
+        }
+        if (pd.getCardinality() != Cardinality.SINGLE) {
+            throw new IllegalStateException("LIKE is not allowed for multi-value properties ");
+        }
+        // SQL to Java regex syntax
+        String pattern = InMemoryQueryProcessor.translatePattern((String) rVal);
+        boolean negate = node.getType() == CmisQlStrictLexer.NOT_LIKE;
+        try {
+            return estimate(new Like(colRef, Pattern.compile(pattern), null, negate), 5, negate ? 0.9 : 0.1);
+        } catch (PatternSyntaxException e) {
+            // only an error if there is a value to match
+            return new Like(colRef, null, e, negate);
+        }
+    }
+
+    private Predicate compileFolder(Tree node) {
+        Tree qualNode = node.getChildCount() == 1 ? null : node.getChild(0);
+        Tree paramNode = node.getChild(node.getChildCount() - 1);
+        if (null != qualNode) {
+            // just for error checking, there is only one type without join
+            processor.getTableReference(qualNode);
+        }
+        Object lit = literalWalker.walkExpr(paramNode);
+        if (!(lit instanceof String)) {
+            throw new IllegalStateException("Folder id in IN_FOLDER must be of type String");
+        }
+        boolean inTree = node.getType() == CmisQlStrictLexer.IN_TREE;
+        return estimate(new InFolder(objStore, (String) lit, inTree), inTree ? 3 : 2, inTree ? 0.2 : 0.05);
+    }
+
+    private Predicate compileSearchExpr(Tree node) {
+        switch (node.getType()) {
+        case TextSearchLexer.TEXT_AND:
+        case TextSearchLexer.TEXT_OR:
+            Predicate[] terms = new Predicate[node.getChildCount()];
+            for (int i = 0; i < terms.length; i++) {
+                terms[i] = compileSearchTerm(node.getChild(i));
+            }
+            boolean or = node.getType() == TextSearchLexer.TEXT_OR;
+            double cost = 0;
+            double selectivity = or ? 0 : 1;
+            for (Predicate term : terms) {
+                cost += term.cost;
+                selectivity = or ? selectivity + term.selectivity - selectivity * term.selectivity
+                        : selectivity * term.selectivity;
+            }
+            return estimate(new TextTerms(terms, or), cost, selectivity);
+        default:
+            return compileSearchTerm(node);
+        }
+    }
+
+    /*
+     * Terms are evaluated in order until the result is known, like the walker
+     * does, so an error in a term is only raised when the term is reached.
+     */
+    private Predicate compileSearchTerm(Tree node) {
+        try {
+            switch (node.getType()) {
+            case TextSearchLexer.TEXT_AND:
+            case TextSearchLexer.TEXT_OR:
+                return compileSearchExpr(node);
+            case TextSearchLexer.TEXT_MINUS:
+                return estimateWord(new TextWord(objStore, node.getChild(0).getText(), true));
+            case TextSearchLexer.TEXT_SEARCH_WORD_LIT:
+                return addSearchTerm(estimateWord(new TextWord(objStore, node.getText(), false)));
+            case TextSearchLexer.TEXT_SEARCH_PHRASE_STRING_LIT:
+                String phrase = node.getText();
+                return addSearchTerm(estimateWord(new TextWord(objStore, phrase.substring(1, phrase.length() - 1),
+                        false)));
+            default:
+                throw unknownNode(node);
+            }
+        } catch (RuntimeException e) {
+            return new Failure(e);
+        }
+    }
+
+    private Predicate addSearchTerm(TextWord word) {
+        searchTerms.add(word.words);
+        return word;
+    }
+
+    private TextWord estimateWord(TextWord word) {
+        double selectivity = objStore.getFullTextIndex().estimateCount(word.words) / objectCount;
+        estimate(word, 10, word.exclude ? 1 - selectivity : selectivity);
+        return word;
+    }
+
+    private static Predicate estimate(Predicate predicate, double cost, double selectivity) {
+        predicate.cost = cost;
+        predicate.selectivity = Math.max(0, Math.min(1, selectivity));
+        return predicate;
+    }
+
+    private ColumnReference getColumnReference(Tree colNode) {
+        return processor.getColumnReference(colNode);
+    }
+
+    private static CmisRuntimeException unknownNode(Tree node) {
+        return new CmisRuntimeException("Unknown node type: " + node.getType() + " (" + node.getText() + ")");
+    }
+
+    private static Set<Object> toSet(List<?> literals) {
+        return new HashSet<Object>(literals);
+    }
+
+    private static String formatList(Set<Object> literals) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Object literal : literals) {
+            sb.append(sb.length() > 1 ? ", " : "").append(QueryPlanner.format(literal));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * A condition that is always false.
+     */
+    private static final class Constant extends Predicate {
+        static final Constant FALSE = new Constant();
+
+        private Constant() {
+            cost = 0;
+            selectivity = 0;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "FALSE";
+        }
+    }
+
+    /**
+     * A condition that could not be compiled, checking an object reports the
+     * error.
+     */
+    private static final class Failure extends Predicate {
+        private final RuntimeException error;
+
+        Failure(RuntimeException error) {
+            this.error = error;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            throw error;
+        }
+
+        @Override
+        boolean mayFail() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "ERROR(" + error.getMessage() + ")";
+        }
+    }
+
+    private static final class Not extends Predicate {
+        private final Predicate operand;
+
+        Not(Predicate operand) {
+            this.operand = operand;
+            cost = operand.cost;
+            selectivity = 1 - operand.selectivity;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            return !operand.matches(so, user);
+        }
+
+        @Override
+        boolean mayFail() {
+            return operand.mayFail();
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + operand;
+        }
+    }
+
+    private static final class And extends Predicate {
+        private final Predicate left;
+        private final Predicate right;
+        private final boolean mayFail;
+
+        And(Predicate left, Predicate right) {
+            mayFail = left.mayFail() || right.mayFail();
+            // first the side that is cheap and often false, both sides are
+            // evaluated if one may fail
+            if (!mayFail && right.cost / Math.max(1e-6, 1 - right.selectivity) < left.cost
+                    / Math.max(1e-6, 1 - left.selectivity)) {
+                Predicate first = right;
+                right = left;
+                left = first;
+            }
+            this.left = left;
+            this.right = right;
+            cost = left.cost + left.selectivity * right.cost;
+            selectivity = left.selectivity * right.selectivity;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            if (mayFail) {
+                boolean matches1 = left.matches(so, user);
+                boolean matches2 = right.matches(so, user);
+                return matches1 && matches2;
+            }
+            return left.matches(so, user) && right.matches(so, user);
+        }
+
+        @Override
+        boolean mayFail() {
+            return mayFail;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " AND " + right + ")";
+        }
+    }
+
+    private static final class Or extends Predicate {
+        private final Predicate left;
+        private final Predicate right;
+        private final boolean mayFail;
+
+        Or(Predicate left, Predicate right) {
+            mayFail = left.mayFail() || right.mayFail();
+            // first the side that is cheap and often true
+            if (!mayFail && right.cost / Math.max(1e-6, right.selectivity) < left.cost
+                    / Math.max(1e-6, left.selectivity)) {
+                Predicate first = right;
+                right = left;
+                left = first;
+            }
+            this.left = left;
+            this.right = right;
+            cost = left.cost + (1 - left.selectivity) * right.cost;
+            selectivity = left.selectivity + right.selectivity - left.selectivity * right.selectivity;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            if (mayFail) {
+                boolean matches1 = left.matches(so, user);
+                boolean matches2 = right.matches(so, user);
+                return matches1 || matches2;
+            }
+            return left.matches(so, user) || right.matches(so, user);
+        }
+
+        @Override
+        boolean mayFail() {
+            return mayFail;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " OR " + right + ")";
+        }
+    }
+
+    /**
+     * One of the operators =, &lt;&gt;, &gt;, &gt;=, &lt;, &lt;= comparing a
+     * property with a literal.
+     */
+    private static final class Comparison extends Predicate {
+        private final String propertyId;
+        private final PropertyDefinition<?> pd;
+        private final Object literal;
+        private final int operator;
+        private final boolean mayFail;
+
+        Comparison(ColumnReference colRef, Object literal, int operator) {
+            propertyId = colRef.getPropertyId();
+            pd = colRef.getPropertyDefinition();
+            this.literal = literal;
+            this.operator = operator;
+            mayFail = pd.getCardinality() != Cardinality.SINGLE || !QueryPlanner.isComparable(pd, literal);
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            Object val = PropertyQueryUtil.getProperty(so, propertyId, pd);
+            if (val == null) {
+                return false;
+            } else if (val instanceof List<?>) {
+                throw new IllegalStateException(
+                        "You can't query operators <, <=, ==, !=, >=, > on multi-value properties ");
+            }
+            int cmp = InMemoryQueryProcessor.compareValues(pd, val, literal);
+            switch (operator) {
+            case CmisQlStrictLexer.EQ:
+                return cmp == 0;
+            case CmisQlStrictLexer.NEQ:
+                return cmp != 0;
+            case CmisQlStrictLexer.GT:
+                return cmp > 0;
+            case CmisQlStrictLexer.GTEQ:
+                return cmp >= 0;
+            case CmisQlStrictLexer.LT:
+                return cmp < 0;
+            default:
+                return cmp <= 0;
+            }
+        }
+
+        @Override
+        boolean mayFail() {
+            return mayFail;
+        }
+
+        @Override
+        public String toString() {
+            String op;
+            switch (operator) {
+            case CmisQlStrictLexer.EQ:
+                op = " = ";
+                break;
+            case CmisQlStrictLexer.NEQ:
+                op = " <> ";
+                break;
+            case CmisQlStrictLexer.GT:
+                op = " > ";
+                break;
+            case CmisQlStrictLexer.GTEQ:
+                op = " >= ";
+                break;
+            case CmisQlStrictLexer.LT:
+                op = " < ";
+                break;
+            default:
+                op = " <= ";
+                break;
+            }
+            return propertyId + op + QueryPlanner.format(literal);
+        }
+    }
+
+    private static final class In extends Predicate {
+        private final String propertyId;
+        private final PropertyDefinition<?> pd;
+        private final Set<Object> literals;
+        private final boolean negate;
+
+        In(ColumnReference colRef, List<?> literals, boolean negate) {
+            propertyId = colRef.getPropertyId();
+            pd = colRef.getPropertyDefinition();
+            this.literals = toSet(literals);
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            // NOT IN is false as well for a property that is not set
+            Object prop = PropertyQueryUtil.getProperty(so, propertyId, pd);
+            return prop != null && literals.contains(prop) != negate;
+        }
+
+        @Override
+        public String toString() {
+            return propertyId + (negate ? " NOT IN " : " IN ") + formatList(literals);
+        }
+    }
+
+    private static final class InAny extends Predicate {
+        private final String propertyId;
+        private final Set<Object> literals;
+        private final boolean negate;
+
+        InAny(ColumnReference colRef, List<?> literals, boolean negate) {
+            propertyId = colRef.getPropertyId();
+            this.literals = toSet(literals);
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            PropertyData<?> lVal = so.getProperties().get(propertyId);
+            if (lVal == null) {
+                return false;
+            }
+            List<?> props = lVal.getValues();
+            for (int i = 0; i < props.size(); i++) {
+                if (literals.contains(props.get(i))) {
+                    return !negate;
+                }
+            }
+            return negate;
+        }
+
+        @Override
+        public String toString() {
+            return "ANY " + propertyId + (negate ? " NOT IN " : " IN ") + formatList(literals);
+        }
+    }
+
+    private static final class EqAny extends Predicate {
+        private final String propertyId;
+        private final Object literal;
+
+        EqAny(ColumnReference colRef, Object literal) {
+            propertyId = colRef.getPropertyId();
+            this.literal = literal;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            PropertyData<?> lVal = so.getProperties().get(propertyId);
+            return lVal != null && lVal.getValues().contains(literal);
+        }
+
+        @Override
+        public String toString() {
+            return QueryPlanner.format(literal) + " = ANY " + propertyId;
+        }
+    }
+
+    private static final class IsNull extends Predicate {
+        private final String propertyId;
+        private final PropertyDefinition<?> pd;
+        private final boolean isNull;
+
+        IsNull(ColumnReference colRef, boolean isNull) {
+            propertyId = colRef.getPropertyId();
+            pd = colRef.getPropertyDefinition();
+            this.isNull = isNull;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            return (PropertyQueryUtil.getProperty(so, propertyId, pd) == null) == isNull;
+        }
+
+        @Override
+        public String toString() {
+            return propertyId + (isNull ? " IS NULL" : " IS NOT NULL");
+        }
+    }
+
+    private static final class Like extends Predicate {
+        private final String propertyId;
+        private final PropertyDefinition<?> pd;
+        private final Pattern pattern;
+        private final RuntimeException patternError;
+        private final boolean negate;
+
+        Like(ColumnReference colRef, Pattern pattern, RuntimeException patternError, boolean negate) {
+            propertyId = colRef.getPropertyId();
+            pd = colRef.getPropertyDefinition();
+            this.pattern = pattern;
+            this.patternError = patternError;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            // NOT LIKE is true for a property that is not set
+            String propVal = (String) PropertyQueryUtil.getProperty(so, propertyId, pd);
+            if (null == propVal) {
+                return negate;
+            } else if (null != patternError) {
+                throw patternError;
+            }
+            return pattern.matcher(propVal).matches() != negate;
+        }
+
+        @Override
+        boolean mayFail() {
+            return null != patternError;
+        }
+
+        @Override
+        public String toString() {
+            return propertyId + (negate ? " NOT LIKE /" : " LIKE /") + pattern + "/";
+        }
+    }
+
+    private static final class InFolder extends Predicate {
+        private final ObjectStoreImpl objStore;
+        private final String folderId;
+        private final boolean inTree;
+
+        InFolder(ObjectStoreImpl objStore, String folderId, boolean inTree) {
+            this.objStore = objStore;
+            this.folderId = folderId;
+            this.inTree = inTree;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            if (!(so instanceof Filing)) {
+                return false;
+            }
+            return inTree ? InMemoryQueryProcessor.hasAncestor(objStore, so, folderId, user)
+                    : InMemoryQueryProcessor.hasParent(objStore, so, folderId, user);
+        }
+
+        @Override
+        public String toString() {
+            return (inTree ? "IN_TREE('" : "IN_FOLDER('") + folderId + "')";
+        }
+    }
+
+    /**
+     * The terms of a full text search combined by AND or OR.
+     */
+    private static final class TextTerms extends Predicate {
+        private final Predicate[] terms;
+        private final boolean or;
+
+        TextTerms(Predicate[] terms, boolean or) {
+            this.terms = terms;
+            this.or = or;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            for (Predicate term : terms) {
+                if (term.matches(so, user) == or) {
+                    return or;
+                }
+            }
+            return !or;
+        }
+
+        @Override
+        boolean mayFail() {
+            for (Predicate term : terms) {
+                if (term.mayFail()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < terms.length; i++) {
+                if (i > 0) {
+                    sb.append(or ? " OR " : " ");
+                }
+                sb.append(terms[i]);
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    /**
+     * A word or phrase of a full text search, or an excluded word.
+     */
+    private static final class TextWord extends Predicate {
+        private final ObjectStoreImpl objStore;
+        private final String[] words;
+        private final boolean exclude;
+
+        TextWord(ObjectStoreImpl objStore, String nodeText, boolean exclude) {
+            String text = StringUtil.unescape(nodeText, "\\'-");
+            if (null == text) {
+                throw new CmisInvalidArgumentException("Illegal Escape sequence in text search expression "
+                        + nodeText);
+            }
+            this.objStore = objStore;
+            this.words = FullTextIndex.tokenize(text);
+            this.exclude = exclude;
+        }
+
+        @Override
+        boolean matches(StoredObject so, String user) {
+            return objStore.getFullTextIndex().contains(so.getId(), words) != exclude;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("CONTAINS(").append(exclude ? "-" : "").append('\'');
+            for (int i = 0; i < words.length; i++) {
+                sb.append(i > 0 ? " " : "").append(words[i]);
+            }
+            return sb.append("')").toString();
+        }
+    }
+}
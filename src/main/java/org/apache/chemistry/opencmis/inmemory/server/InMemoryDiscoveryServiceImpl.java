@@ -149,7 +149,7 @@ public class InMemoryDiscoveryServiceImpl extends InMemoryAbstractServiceImpl {
         ObjectList res;
 
         res = fStoreManager.query(user, repositoryId, statement, searchAllVersions, includeAllowableActions,
-                includeRelationships, renditionFilter, maxItems, skipCount);
+                includeRelationships, renditionFilter, maxItems, skipCount, extension);
         return res;
     }
 
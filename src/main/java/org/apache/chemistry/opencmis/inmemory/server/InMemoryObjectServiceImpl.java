@@ -83,6 +83,7 @@ import org.apache.chemistry.opencmis.inmemory.storedobj.api.ObjectStore;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoreManager;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.VersionedDocument;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
 import org.apache.chemistry.opencmis.inmemory.types.DocumentTypeCreationHelper;
 import org.apache.chemistry.opencmis.inmemory.types.PropertyCreationHelper;
 import org.apache.chemistry.opencmis.server.support.TypeManager;
@@ -489,7 +490,7 @@ public class InMemoryObjectServiceImpl extends InMemoryAbstractServiceImpl {
                     + "is not a parent of object " + objectId.getValue());
         }
 
-        if (so instanceof Folder && hasDescendant(context.getUsername(), objectStore, (Folder) so, targetFolder)) {
+        if (so instanceof Folder && ((ObjectStoreImpl) objectStore).isInFolderTree(targetFolder, (Folder) so)) {
             throw new CmisNotSupportedException("Destination of a move cannot be a subfolder of the source");
         }
 
@@ -1148,24 +1149,6 @@ public class InMemoryObjectServiceImpl extends InMemoryAbstractServiceImpl {
         return item;
     }
 
-    private boolean hasDescendant(String user, ObjectStore objStore, Folder sourceFolder, Folder targetFolder) {
-        String sourceId = sourceFolder.getId();
-        String targetId = targetFolder.getId();
-
-        Folder folder = targetFolder;
-        while (targetId != null) {
-            if (targetId.equals(sourceId)) {
-                return true;
-            }
-            List<String> parentIds = objStore.getParentIds(folder, user);
-            targetId = parentIds == null || parentIds.isEmpty() ? null : parentIds.get(0);
-            if (null != targetId) {
-                folder = (Folder) objStore.getObjectById(targetId);
-            }
-        }
-        return false;
-    }
-
     /*
      * Recursively delete a tree by traversing it and first deleting all
      * children and then the object itself.
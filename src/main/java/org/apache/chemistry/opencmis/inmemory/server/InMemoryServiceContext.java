@@ -18,26 +18,26 @@
  */
 package org.apache.chemistry.opencmis.inmemory.server;
 
+import java.util.concurrent.Callable;
+
 import org.apache.chemistry.opencmis.commons.server.CallContext;
-import org.apache.chemistry.opencmis.server.support.CmisServiceWrapper;
+import org.apache.chemistry.opencmis.server.support.wrapper.AbstractCmisServiceWrapper;
 
 /**
  * Helper class to associate context information with each incoming call.
  * 
  */
-// suppress Apache Chemistry warning
-@SuppressWarnings("deprecation")
 public final class InMemoryServiceContext {
 
     private static final class ContextHolder {
-        private CmisServiceWrapper<InMemoryService> wrapper;
+        private AbstractCmisServiceWrapper wrapper;
         private CallContext callContext;
 
-        private ContextHolder(CmisServiceWrapper<InMemoryService> wrapper) {
+        private ContextHolder(AbstractCmisServiceWrapper wrapper) {
             this.wrapper = wrapper;
         }
 
-        public CmisServiceWrapper<InMemoryService> getServiceWrapper() {
+        public AbstractCmisServiceWrapper getServiceWrapper() {
             return wrapper;
         }
 
@@ -55,7 +55,7 @@ public final class InMemoryServiceContext {
     private InMemoryServiceContext() {
     }
 
-    public static synchronized void setWrapperService(CmisServiceWrapper<InMemoryService> wrapperService) {
+    public static synchronized void setWrapperService(AbstractCmisServiceWrapper wrapperService) {
         threadLocalService.remove();
         if (null != wrapperService) {
             ContextHolder holder = new ContextHolder(wrapperService);
@@ -68,8 +68,8 @@ public final class InMemoryServiceContext {
         if (null == holder) {
             return null;
         } else {
-            CmisServiceWrapper<InMemoryService> wrapperService = holder.getServiceWrapper();
-            return wrapperService == null ? null : wrapperService.getWrappedService();
+            AbstractCmisServiceWrapper wrapperService = holder.getServiceWrapper();
+            return wrapperService == null ? null : (InMemoryService) wrapperService.getWrappedService();
         }
     }
 
@@ -87,4 +87,31 @@ public final class InMemoryServiceContext {
         return null == holder ? null : holder.getCallContext();
     }
 
+    /**
+     * Wrap a task so that it runs with the service and call context of the
+     * current thread, to split the work of a call across several threads.
+     * 
+     * @param task
+     *            task to run in another thread
+     * @return the wrapped task
+     */
+    public static <T> Callable<T> withCurrentContext(final Callable<T> task) {
+        final ContextHolder holder = threadLocalService.get();
+        return new Callable<T>() {
+            public T call() throws Exception {
+                ContextHolder previous = threadLocalService.get();
+                threadLocalService.set(holder);
+                try {
+                    return task.call();
+                } finally {
+                    if (null == previous) {
+                        threadLocalService.remove();
+                    } else {
+                        threadLocalService.set(previous);
+                    }
+                }
+            }
+        };
+    }
+
 }
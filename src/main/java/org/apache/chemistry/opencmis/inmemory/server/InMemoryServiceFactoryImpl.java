@@ -41,6 +41,7 @@ import java.util.Properties;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import javax.xml.namespace.QName;
@@ -52,6 +53,7 @@ import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
 import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
 import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
 import org.apache.chemistry.opencmis.commons.impl.IOUtils;
 import org.apache.chemistry.opencmis.commons.impl.JSONConverter;
 import org.apache.chemistry.opencmis.commons.impl.XMLConverter;
@@ -69,14 +71,20 @@ import org.apache.chemistry.opencmis.inmemory.ConfigurationSettings;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.ObjectStore;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoreManager;
 import org.apache.chemistry.opencmis.inmemory.storedobj.impl.StoreManagerFactory;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
 import org.apache.chemistry.opencmis.inmemory.storedobj.impl.StoreManagerImpl;
 import org.apache.chemistry.opencmis.inmemory.types.TypeUtil;
 import org.apache.chemistry.opencmis.server.support.CmisServiceWrapper;
 import org.apache.chemistry.opencmis.server.support.TypeManager;
 import org.apache.chemistry.opencmis.util.repository.ObjectGenerator;
 import org.apache.chemistry.opencmis.utils.BasicUserManager;
+import org.apache.chemistry.opencmis.utils.FilePersistence;
 import org.apache.chemistry.opencmis.utils.FilePersistenceLoader;
 import org.apache.chemistry.opencmis.utils.IUserManager;
+import org.apache.chemistry.opencmis.utils.PersistenceManager;
+import org.apache.chemistry.opencmis.utils.MetadataJournal;
+import org.apache.chemistry.opencmis.utils.MetadataSnapshot;
+import org.apache.chemistry.opencmis.utils.MetadataWriteQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -99,6 +107,9 @@ public class InMemoryServiceFactoryImpl extends AbstractServiceFactory {
     private boolean fUseOverrideCtx = false;
     private StoreManager storeManager; // singleton root of everything
     private CleanManager cleanManager = null;
+    private CheckpointManager checkpointManager = null;
+    private FilePersistence journaledPersistence = null;
+    private FilePersistence queuedPersistence = null;
 
     private File tempDir;
     private int memoryThreshold;
@@ -261,7 +272,39 @@ public class InMemoryServiceFactoryImpl extends AbstractServiceFactory {
 
         // Load file system
         if (tempDirStr != null) {
+            ObjectStore store = storeManager.getObjectStore(repositoryId);
+            PersistenceManager persistenceManager = store.getPersistenceManager();
+            if (Boolean.parseBoolean(parameters.get(ConfigConstants.METADATA_JOURNAL))
+                    && persistenceManager instanceof FilePersistence) {
+                // a journal left by a crash is applied before loading
+                journaledPersistence = (FilePersistence) persistenceManager;
+                try {
+                    journaledPersistence.setJournal(MetadataJournal.open(persistenceManager.getRootPath()));
+                } catch (IOException e) {
+                    throw new CmisStorageException("Could not open metadata journal: " + e.getMessage(), e);
+                }
+            }
+
             FilePersistenceLoader.loadDirectory(storeManager, parameters);
+
+            MetadataWriteQueue.Durability durability = MetadataWriteQueue.Durability.fromValue(parameters
+                    .get(ConfigConstants.METADATA_DURABILITY));
+            if (MetadataWriteQueue.Durability.SYNC != durability && persistenceManager instanceof FilePersistence) {
+                queuedPersistence = (FilePersistence) persistenceManager;
+                queuedPersistence.setWriteQueue(new MetadataWriteQueue(queuedPersistence, durability,
+                        MetadataWriteQueue.FullPolicy.fromValue(parameters
+                                .get(ConfigConstants.METADATA_QUEUE_FULL_POLICY)),
+                        getIntParameter(parameters, ConfigConstants.METADATA_QUEUE_SIZE, 10000),
+                        getIntParameter(parameters, ConfigConstants.METADATA_FLUSH_MILLIS, 10),
+                        Math.max(1, getIntParameter(parameters, ConfigConstants.METADATA_WRITER_THREADS, 2))));
+            }
+
+            String snapshotInterval = parameters.get(ConfigConstants.SNAPSHOT_INTERVAL);
+            if (null != snapshotInterval && Long.parseLong(snapshotInterval.trim()) > 0
+                    && store instanceof ObjectStoreImpl) {
+                checkpointManager = new CheckpointManager((ObjectStoreImpl) store);
+                checkpointManager.startCheckpointJob(Long.parseLong(snapshotInterval.trim()));
+            }
         }
 
         // Add userManager
@@ -339,9 +382,32 @@ public class InMemoryServiceFactoryImpl extends AbstractServiceFactory {
         if (null != cleanManager) {
             cleanManager.stopCleanRepositoryJob();
         }
+        if (null != queuedPersistence) {
+            // write the queued metadata, later requests write it themselves
+            MetadataWriteQueue writeQueue = queuedPersistence.getWriteQueue();
+            queuedPersistence.setWriteQueue(null);
+            writeQueue.close();
+            queuedPersistence = null;
+        }
+        if (null != journaledPersistence) {
+            // later writes go to the metadata files again
+            MetadataJournal journal = journaledPersistence.getJournal();
+            journaledPersistence.setJournal(null);
+            journal.close();
+            journaledPersistence = null;
+        }
+        if (null != checkpointManager) {
+            checkpointManager.stopCheckpointJob();
+            checkpointManager = null;
+        }
         InMemoryServiceContext.setWrapperService(null);
     }
 
+    private static int getIntParameter(Map<String, String> parameters, String key, int defaultValue) {
+        String value = parameters.get(key);
+        return null == value ? defaultValue : Integer.parseInt(value.trim());
+    }
+
     public StoreManager getStoreManger() {
         return storeManager;
     }
@@ -723,6 +789,64 @@ public class InMemoryServiceFactoryImpl extends AbstractServiceFactory {
         }
     }
 
+    /**
+     * Writes a snapshot of the metadata of a repository at a fixed interval
+     * if the repository has changed since the last one, and a last snapshot
+     * when it is stopped.
+     */
+    static class CheckpointManager {
+
+        private final ScheduledExecutorService scheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "InMemoryServer-Checkpoint");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        private final ObjectStoreImpl store;
+        private long writtenGeneration = -1;
+
+        CheckpointManager(ObjectStoreImpl store) {
+            this.store = store;
+        }
+
+        public void startCheckpointJob(long intervalInMinutes) {
+            final Runnable checkpoint = new Runnable() {
+                public void run() {
+                    checkpoint();
+                }
+            };
+            LOG.info("Writing a metadata snapshot every " + intervalInMinutes + " min");
+            scheduler.scheduleWithFixedDelay(checkpoint, intervalInMinutes,
+                    intervalInMinutes, TimeUnit.MINUTES);
+        }
+
+        public void stopCheckpointJob() {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            checkpoint();
+        }
+
+        private synchronized void checkpoint() {
+            if (store.getModificationCount() == writtenGeneration) {
+                return;
+            }
+            try {
+                writtenGeneration = MetadataSnapshot.write(store);
+            } catch (IOException e) {
+                LOG.error("Could not write metadata snapshot", e);
+            } catch (RuntimeException e) {
+                // an exception would cancel the scheduled job, retry later
+                LOG.error("Could not write metadata snapshot", e);
+            }
+        }
+    }
+
     private void scheduleCleanRepositoryJob(long minutes) {
         cleanManager = new CleanManager();
         cleanManager.startCleanRepositoryJob(minutes);
@@ -49,6 +49,7 @@ import org.apache.chemistry.opencmis.inmemory.storedobj.api.ObjectStore;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoreManager;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.VersionedDocument;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
 // suppress unused import
 import org.apache.chemistry.opencmis.inmemory.types.PropertyCreationHelper;
 import org.apache.chemistry.opencmis.server.support.TypeManager;
@@ -109,6 +110,10 @@ public class InMemoryVersioningServiceImpl extends InMemoryAbstractServiceImpl {
         boolean major = (null == majorParam ? true : majorParam);
 
         verDoc.checkIn(major, properties, ((Content)so).getContent(), checkinComment, policies, user);
+        if (objStore instanceof ObjectStoreImpl) {
+            ((ObjectStoreImpl) objStore).updateIndexes(so);
+            ((ObjectStoreImpl) objStore).getFullTextIndex().update(so);
+        }
         if (null != properties && null != properties.getProperties()) {
             // rename:
             PropertyData<?> pd = properties.getProperties().get(PropertyIds.NAME);
@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.chemistry.opencmis.commons.data.ExtensionsData;
 import org.apache.chemistry.opencmis.commons.data.ObjectList;
 import org.apache.chemistry.opencmis.commons.data.RepositoryInfo;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionContainer;
@@ -229,10 +230,13 @@ public interface StoreManager {
      *            max number of items to return
      * @param skipCount
      *            items to skip
+     * @param extension
+     *            extension of the request, may ask for the profile of the
+     *            query
      * @return list of objects matching the query
      */
     ObjectList query(String user, String repositoryId, String statement, Boolean searchAllVersions,
             Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
-            BigInteger maxItems, BigInteger skipCount);
+            BigInteger maxItems, BigInteger skipCount, ExtensionsData extension);
 
 }
\ No newline at end of file
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.storedobj.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interning registry of the ACLs of an object store. Each distinct ACL is
+ * stored once and identified by a dense id that is used as index into an
+ * array, a second map from the content of an ACL to its id detects
+ * duplicates on insert.
+ * <p>
+ * Registered ACLs are never changed or removed. Readers therefore access the
+ * array without locking, only registering a new ACL is synchronized.
+ * <p>
+ * For each principal and permission the set of ACL ids granting the
+ * permission is cached, so that a permission check on an object is a single
+ * bit test. As ACLs are only ever added a cached set stays valid for the ACLs
+ * it covers, it is extended when an object with a newer ACL is checked.
+ */
+class AclRegistry {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_CACHED_PRINCIPALS = 1024;
+
+    /**
+     * The ids of the ACLs granting a permission to a principal, computed for
+     * the ACLs with an id below fCovered.
+     */
+    private static final class Grants {
+        private final int fCovered;
+        private final BitSet fAclIds;
+
+        Grants(int covered, BitSet aclIds) {
+            fCovered = covered;
+            fAclIds = aclIds;
+        }
+    }
+
+    private final Map<InMemoryAcl, Integer> fIds = new HashMap<InMemoryAcl, Integer>();
+    private volatile InMemoryAcl[] fAcls = new InMemoryAcl[INITIAL_CAPACITY];
+    private volatile int fSize = 0;
+    private final Map<Permission, Map<String, Grants>> fGrants = new EnumMap<Permission, Map<String, Grants>>(
+            Permission.class);
+
+    AclRegistry() {
+        for (Permission permission : Permission.values()) {
+            fGrants.put(permission, new ConcurrentHashMap<String, Grants>());
+        }
+    }
+
+    /**
+     * Get a registered ACL.
+     *
+     * @param aclId
+     *            id of the ACL
+     * @return the ACL or null if there is no ACL with this id. The returned
+     *         ACL must not be modified.
+     */
+    InMemoryAcl get(int aclId) {
+        // read the size first, it publishes the array entries below it
+        int size = fSize;
+        InMemoryAcl[] acls = fAcls;
+        return aclId >= 0 && aclId < size ? acls[aclId] : null;
+    }
+
+    /**
+     * Get the number of registered ACLs, their ids are below this number.
+     *
+     * @return number of ACLs
+     */
+    int size() {
+        return fSize;
+    }
+
+    /**
+     * Register an ACL. If an ACL with the same entries is already known its id
+     * is returned, otherwise a copy of the ACL is stored with the next free id.
+     *
+     * @param acl
+     *            ACL to register
+     * @return id of the ACL
+     */
+    synchronized int add(InMemoryAcl acl) {
+        Integer aclId = fIds.get(acl);
+        if (null != aclId) {
+            return aclId;
+        }
+        InMemoryAcl copy = copyOf(acl);
+        int id = fSize;
+        copy.setId(id);
+        if (id == fAcls.length) {
+            fAcls = Arrays.copyOf(fAcls, id * 2);
+        }
+        fAcls[id] = copy;
+        fIds.put(copy, id);
+        fSize = id + 1;
+        // the caller keeps working with its instance, give it the id as well
+        acl.setId(id);
+        return id;
+    }
+
+    /**
+     * Get the ids of all ACLs granting a permission to a principal.
+     *
+     * @param principalId
+     *            principal
+     * @param permission
+     *            permission to check
+     * @return ids of the ACLs in ascending order
+     */
+    List<Integer> getAclIds(String principalId, Permission permission) {
+        BitSet aclIds = getGrants(principalId, permission, fSize - 1).fAclIds;
+        List<Integer> res = new ArrayList<Integer>(aclIds.cardinality());
+        for (int i = aclIds.nextSetBit(0); i >= 0; i = aclIds.nextSetBit(i + 1)) {
+            res.add(i);
+        }
+        return res;
+    }
+
+    /**
+     * Check if an ACL grants a permission to a principal.
+     *
+     * @param aclId
+     *            id of the ACL
+     * @param principalId
+     *            principal, null for an anonymous access
+     * @param permission
+     *            permission to check
+     * @return true if the ACL exists and grants the permission
+     */
+    boolean hasPermission(int aclId, String principalId, Permission permission) {
+        if (aclId < 0 || aclId >= fSize || null == permission) {
+            return false;
+        }
+        return getGrants(principalId, permission, aclId).fAclIds.get(aclId);
+    }
+
+    private Grants getGrants(String principalId, Permission permission, int aclId) {
+        // an ACL treats a missing principal like the anonymous user: its ACEs
+        // are sorted by principal, the anonymous ACE comes before the anyone
+        // ACE and both get the permission of the first of them
+        String key = null == principalId ? InMemoryAce.getAnonymousUser() : principalId;
+        Map<String, Grants> byPrincipal = fGrants.get(permission);
+        Grants grants = byPrincipal.get(key);
+        if (null != grants && aclId < grants.fCovered) {
+            return grants;
+        }
+        // ACLs were added since the set was computed, extend a copy of it
+        int size = fSize;
+        InMemoryAcl[] acls = fAcls;
+        int from = null == grants ? 0 : grants.fCovered;
+        BitSet aclIds = null == grants ? new BitSet(size) : (BitSet) grants.fAclIds.clone();
+        for (int i = from; i < size; i++) {
+            if (acls[i].hasPermission(key, permission)) {
+                aclIds.set(i);
+            }
+        }
+        grants = new Grants(size, aclIds);
+        if (byPrincipal.size() >= MAX_CACHED_PRINCIPALS) {
+            byPrincipal.clear();
+        }
+        byPrincipal.put(key, grants);
+        return grants;
+    }
+
+    private static InMemoryAcl copyOf(InMemoryAcl acl) {
+        List<InMemoryAce> aces = new ArrayList<InMemoryAce>(acl.size());
+        for (InMemoryAce ace : acl.getAces()) {
+            aces.add(new InMemoryAce(ace.getPrincipalId(), ace.getPermission()));
+        }
+        return new InMemoryAcl(aces);
+    }
+}
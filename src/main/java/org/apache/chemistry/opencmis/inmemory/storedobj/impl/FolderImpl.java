@@ -41,6 +41,21 @@ public class FolderImpl extends StoredObjectImpl implements Folder {
     private static final Logger LOG = LoggerFactory.getLogger(FilingImpl.class.getName());
     private String parentId;
 
+    /**
+     * Cached path of this folder, null if it has to be computed again. The
+     * object store resets it when this folder or one of its ancestors is
+     * renamed or moved. The stamp detects a reset happening while the path is
+     * computed so that an outdated path is never cached.
+     */
+    private volatile String fPath;
+    private int fPathStamp;
+
+    /**
+     * Cached ids of the folders from the root down to this folder, reset
+     * together with the path.
+     */
+    private volatile String[] fAncestorIds;
+
     public FolderImpl() {
         super();
     }
@@ -108,6 +123,23 @@ public class FolderImpl extends StoredObjectImpl implements Folder {
     
     public void setParentId(String parentId) {
         this.parentId = parentId;
+        invalidatePath();
+    }
+
+    
+    public void setName(String name) {
+        super.setName(name);
+        invalidatePath();
+    }
+
+    /**
+     * Forget the cached path and ancestors of this folder. Must be called for
+     * all folders of a subtree whose root is renamed or moved.
+     */
+    public synchronized void invalidatePath() {
+        fPathStamp++;
+        fPath = null;
+        fAncestorIds = null;
     }
 
     // Helper functions
@@ -120,6 +152,63 @@ public class FolderImpl extends StoredObjectImpl implements Folder {
     }
     
     public String getPath() {
+        String path = fPath;
+        if (null != path) {
+            return path;
+        }
+        int stamp;
+        synchronized (this) {
+            stamp = fPathStamp;
+        }
+        path = computePath();
+        synchronized (this) {
+            // without store the path of the parent is not known yet
+            if (stamp == fPathStamp && (null == parentId || null != getStore())) {
+                fPath = path;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Get the ids of all folders on the path of this folder. A folder is in
+     * the tree of another folder if its ids have the id of the other folder
+     * at the position of the other folder's own id.
+     * 
+     * @return the ids starting with the root folder and ending with the id
+     *         of this folder
+     */
+    public String[] getAncestorIds() {
+        String[] ids = fAncestorIds;
+        if (null != ids) {
+            return ids;
+        }
+        int stamp;
+        synchronized (this) {
+            stamp = fPathStamp;
+        }
+        FolderImpl parent = null;
+        if (null != parentId && null != getStore()) {
+            parent = (FolderImpl) getStore().getObjectById(parentId);
+        }
+        if (null == parent) {
+            ids = new String[] { getId() };
+        } else {
+            String[] parentIds = parent.getAncestorIds();
+            ids = new String[parentIds.length + 1];
+            System.arraycopy(parentIds, 0, ids, 0, parentIds.length);
+            ids[parentIds.length] = getId();
+        }
+        synchronized (this) {
+            // without store or parent the ancestors are not known yet
+            if (stamp == fPathStamp && null != getId() && (null == parentId || null != parent)) {
+                fAncestorIds = ids;
+            }
+        }
+        return ids;
+    }
+
+    private String computePath() {
     	if (this.getParentId() == null) {
     		return "/";
     	}
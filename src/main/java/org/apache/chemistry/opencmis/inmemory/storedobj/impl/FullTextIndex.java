@@ -0,0 +1,533 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.storedobj.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisRuntimeException;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.Content;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inverted index on the words of the content of text documents, used to
+ * answer CONTAINS() without reading the content of each document. Each word
+ * is mapped to the documents containing it together with its positions in
+ * the document, so that phrases can be matched as well.
+ * <p>
+ * Words are the sequences of letters and digits of the content, compared
+ * case insensitive. Only content with a text MIME type (text/*, JSON, XML)
+ * is indexed, the tags of HTML and XML content are skipped.
+ * <p>
+ * Reading and tokenizing the content is done in the background, so that
+ * setting content does not wait for the index. Callers needing the index
+ * to reflect all changes so far call {@link #awaitIndexing()} first.
+ * Lookups do not block each other, updates of the index are serialized.
+ */
+public class FullTextIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FullTextIndex.class.getName());
+
+    /**
+     * Content larger than this is not indexed.
+     */
+    private static final long MAX_INDEXED_LENGTH = 16L * 1024 * 1024;
+
+    private static final Pattern MARKUP = Pattern.compile("<[^>]*>");
+
+    private static final String[] NO_TERMS = new String[0];
+
+    /**
+     * Marks an object that was removed while an update was pending.
+     */
+    private static final Object REMOVED = new Object();
+
+    private static final ThreadFactory INDEXER_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "InMemoryServer-FullTextIndexer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Terms and number of words of an indexed document.
+     */
+    private static final class IndexedContent {
+        private final String[] terms;
+        private final int wordCount;
+
+        IndexedContent(String[] terms, int wordCount) {
+            this.terms = terms;
+            this.wordCount = wordCount;
+        }
+    }
+
+    // term -> document id -> positions of the term in the document
+    private final Map<String, Map<String, int[]>> fPostings = new HashMap<String, Map<String, int[]>>();
+    private final Map<String, IndexedContent> fDocuments = new HashMap<String, IndexedContent>();
+    private final ReadWriteLock fLock = new ReentrantReadWriteLock();
+
+    // object id -> object to index or REMOVED
+    private final ConcurrentMap<String, Object> fPending = new ConcurrentHashMap<String, Object>();
+
+    /*
+     * Single thread indexing the content of this repository, so that the
+     * updates of one object are applied in order. The thread ends when idle.
+     */
+    private final ThreadPoolExecutor fIndexer;
+
+    // sequence numbers of the last scheduled and the last applied update,
+    // updates are applied in the order they are scheduled
+    private final Object fIdle = new Object();
+    private long fScheduled = 0;
+    private long fIndexed = 0;
+
+    public FullTextIndex() {
+        fIndexer = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                INDEXER_THREADS);
+        fIndexer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Index the content of an object after it was stored or its content was
+     * changed. The content is read when the object is indexed, it must be
+     * completely written before. Objects without text content are removed
+     * from the index.
+     *
+     * @param so
+     *            changed object
+     */
+    public void update(StoredObject so) {
+        if (so instanceof Content && null != so.getId()) {
+            schedule(so.getId(), so);
+        }
+    }
+
+    /**
+     * Remove an object from the index.
+     *
+     * @param id
+     *            id of the deleted object
+     */
+    public void remove(String id) {
+        schedule(id, REMOVED);
+    }
+
+    /**
+     * Remove all objects from the index.
+     */
+    public void clear() {
+        fPending.clear();
+        fLock.writeLock().lock();
+        try {
+            fPostings.clear();
+            fDocuments.clear();
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wait until all updates requested before this call are applied to the
+     * index. Updates requested while waiting are not waited for.
+     */
+    public void awaitIndexing() {
+        synchronized (fIdle) {
+            long target = fScheduled;
+            while (fIndexed < target) {
+                try {
+                    fIdle.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CmisRuntimeException("Interrupted while waiting for the full text index", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of indexed documents
+     */
+    public int size() {
+        fLock.readLock().lock();
+        try {
+            return fDocuments.size();
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the documents containing all of the given words, estimated by
+     * the number of documents containing the rarest word.
+     *
+     * @param terms
+     *            words, see {@link #tokenize(String)}
+     * @return maximum number of documents containing all words
+     */
+    public int estimateCount(String[] terms) {
+        fLock.readLock().lock();
+        try {
+            int res = terms.length == 0 ? 0 : Integer.MAX_VALUE;
+            for (String term : terms) {
+                Map<String, int[]> postings = fPostings.get(term);
+                res = Math.min(res, null == postings ? 0 : postings.size());
+            }
+            return res;
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check if the content of a document contains a word or phrase.
+     *
+     * @param id
+     *            id of the document
+     * @param terms
+     *            consecutive words, see {@link #tokenize(String)}
+     * @return true if the words occur in this order in the content
+     */
+    public boolean contains(String id, String[] terms) {
+        if (terms.length == 0) {
+            return false;
+        }
+        fLock.readLock().lock();
+        try {
+            int[][] positions = new int[terms.length][];
+            for (int i = 0; i < terms.length; i++) {
+                Map<String, int[]> postings = fPostings.get(terms[i]);
+                positions[i] = null == postings ? null : postings.get(id);
+                if (null == positions[i]) {
+                    return false;
+                }
+            }
+            for (int start : positions[0]) {
+                int i = 1;
+                while (i < terms.length && Arrays.binarySearch(positions[i], start + i) >= 0) {
+                    i++;
+                }
+                if (i == terms.length) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the documents containing all of the given words, in any order.
+     *
+     * @param terms
+     *            words, see {@link #tokenize(String)}
+     * @return ids of the documents, a superset of the documents containing
+     *         the words as a phrase
+     */
+    public Set<String> getIds(String[] terms) {
+        fLock.readLock().lock();
+        try {
+            Set<String> res = null;
+            for (String term : terms) {
+                Map<String, int[]> postings = fPostings.get(term);
+                if (null == postings) {
+                    return new HashSet<String>();
+                }
+                if (null == res) {
+                    res = new HashSet<String>(postings.keySet());
+                } else {
+                    res.retainAll(postings.keySet());
+                }
+            }
+            return null == res ? new HashSet<String>() : res;
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compute the relevance of documents for the words of a search. A word
+     * counts more the more often it occurs in a document relative to the
+     * length of the document and the fewer documents contain it. The scores
+     * are scaled so that the most relevant document has the score 1.
+     *
+     * @param ids
+     *            ids of the documents
+     * @param terms
+     *            words searched for, each entry a word or phrase
+     * @return score of each document between 0 and 1
+     */
+    public Map<String, Double> score(Collection<String> ids, List<String[]> terms) {
+        Map<String, Double> scores = new HashMap<String, Double>(ids.size() * 2);
+        double max = 0.0;
+        fLock.readLock().lock();
+        try {
+            int documentCount = fDocuments.size();
+            for (String id : ids) {
+                IndexedContent doc = fDocuments.get(id);
+                double score = 0.0;
+                if (null != doc && doc.wordCount > 0) {
+                    for (String[] words : terms) {
+                        for (String word : words) {
+                            Map<String, int[]> postings = fPostings.get(word);
+                            int[] positions = null == postings ? null : postings.get(id);
+                            if (null != positions) {
+                                double idf = Math.log(1.0 + (double) documentCount / postings.size());
+                                score += idf * positions.length / doc.wordCount;
+                            }
+                        }
+                    }
+                }
+                scores.put(id, score);
+                max = Math.max(max, score);
+            }
+        } finally {
+            fLock.readLock().unlock();
+        }
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            entry.setValue(max > 0.0 ? entry.getValue() / max : 1.0);
+        }
+        return scores;
+    }
+
+    /**
+     * Split a text into lower case words.
+     *
+     * @param text
+     *            text to split
+     * @return the words in the order of the text
+     */
+    public static String[] tokenize(String text) {
+        List<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Check if content of a MIME type is indexed.
+     *
+     * @param mimeType
+     *            MIME type, may have parameters
+     * @return true for text, JSON and XML content
+     */
+    public static boolean isIndexable(String mimeType) {
+        if (null == mimeType) {
+            return false;
+        }
+        String type = getBaseType(mimeType);
+        return type.startsWith("text/") || type.equals("application/json") || type.equals("application/xml")
+                || type.endsWith("+xml") || type.endsWith("+json");
+    }
+
+    /**
+     * Read the text of a content stream.
+     *
+     * @param content
+     *            content of a document
+     * @return the text without markup or null if the content is not
+     *         indexable
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public static String readText(ContentStream content) throws IOException {
+        if (null == content || !isIndexable(content.getMimeType()) || content.getLength() > MAX_INDEXED_LENGTH) {
+            return null;
+        }
+        InputStream in = content.getStream();
+        if (null == in) {
+            return "";
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        String text = new String(bytes.toByteArray(), getCharset(content.getMimeType()));
+        String type = getBaseType(content.getMimeType());
+        if (type.contains("html") || type.contains("xml")) {
+            text = MARKUP.matcher(text).replaceAll(" ");
+        }
+        return text;
+    }
+
+    private static String getBaseType(String mimeType) {
+        int sep = mimeType.indexOf(';');
+        return (sep < 0 ? mimeType : mimeType.substring(0, sep)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static Charset getCharset(String mimeType) {
+        for (String param : mimeType.split(";")) {
+            String[] pair = param.trim().split("=", 2);
+            if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                try {
+                    return Charset.forName(pair[1].trim().replace("\"", ""));
+                } catch (IllegalArgumentException e) {
+                    LOG.debug("Unknown charset " + pair[1] + ", using UTF-8");
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /*
+     * An object has at most one pending update, further changes before it is
+     * indexed only replace the object to index. The update is queued while
+     * holding fIdle, so that the indexer applies them in the order of their
+     * sequence numbers.
+     */
+    private void schedule(final String id, Object update) {
+        if (null == fPending.put(id, update)) {
+            synchronized (fIdle) {
+                final long seq = ++fScheduled;
+                fIndexer.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            Object pending = fPending.remove(id);
+                            if (pending == REMOVED) {
+                                removeDocument(id);
+                            } else if (null != pending) {
+                                index(id, (Content) pending);
+                            }
+                        } catch (RuntimeException e) {
+                            LOG.warn("Failed to index content of object " + id, e);
+                        } finally {
+                            synchronized (fIdle) {
+                                fIndexed = seq;
+                                fIdle.notifyAll();
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void index(String id, Content doc) {
+        ContentStream content = doc.getContent();
+        String text;
+        try {
+            text = readText(content);
+        } catch (IOException e) {
+            LOG.warn("Failed to read content of object " + id + ", it is not indexed", e);
+            text = null;
+        }
+        if (null == text) {
+            removeDocument(id);
+            return;
+        }
+
+        String[] words = tokenize(text);
+        Map<String, int[]> positions = new HashMap<String, int[]>();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String word : words) {
+            Integer count = counts.get(word);
+            counts.put(word, null == count ? 1 : count + 1);
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            positions.put(entry.getKey(), new int[entry.getValue()]);
+            entry.setValue(0);
+        }
+        for (int i = 0; i < words.length; i++) {
+            int next = counts.get(words[i]);
+            positions.get(words[i])[next] = i;
+            counts.put(words[i], next + 1);
+        }
+
+        fLock.writeLock().lock();
+        try {
+            removeDocumentLocked(id);
+            for (Map.Entry<String, int[]> entry : positions.entrySet()) {
+                Map<String, int[]> postings = fPostings.get(entry.getKey());
+                if (null == postings) {
+                    postings = new HashMap<String, int[]>();
+                    fPostings.put(entry.getKey(), postings);
+                }
+                postings.put(id, entry.getValue());
+            }
+            fDocuments.put(id, new IndexedContent(positions.keySet().toArray(NO_TERMS), words.length));
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    private void removeDocument(String id) {
+        fLock.writeLock().lock();
+        try {
+            removeDocumentLocked(id);
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    private void removeDocumentLocked(String id) {
+        IndexedContent indexed = fDocuments.remove(id);
+        if (null == indexed) {
+            return;
+        }
+        for (String term : indexed.terms) {
+            Map<String, int[]> postings = fPostings.get(term);
+            if (null != postings) {
+                postings.remove(id);
+                if (postings.isEmpty()) {
+                    fPostings.remove(term);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.storedobj.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hierarchical lock manager of an object store. The first level is a
+ * repository wide lock that is held shared by every write operation and
+ * exclusively by operations changing the complete repository like
+ * {@link ObjectStoreImpl#clear()}. The second level is a fixed number of
+ * stripes, each object or folder id being mapped to one stripe.
+ * <p>
+ * An object is locked exclusively when it is changed itself (moved, renamed,
+ * deleted, updated). A folder is locked shared when children are added to or
+ * removed from it, so that objects can be created in the same folder in
+ * parallel, and exclusively when the folder itself is changed. Name conflicts
+ * in a folder are detected by the name reservation of the object store, not by
+ * these locks.
+ * <p>
+ * All stripes of an operation are acquired at once in ascending stripe order.
+ * Two operations can therefore never wait for each other in a cycle. Callers
+ * must release the locks with the same ids in a finally block:
+ *
+ * <pre>
+ * lockManager.lock(exclusiveIds, sharedIds);
+ * try {
+ *     ...
+ * } finally {
+ *     lockManager.unlock(exclusiveIds, sharedIds);
+ * }
+ * </pre>
+ *
+ * Locks are reentrant, but a thread must not request a stripe exclusively
+ * while it holds it shared.
+ */
+class LockManager {
+
+    private static final int DEFAULT_STRIPES = 256;
+    private static final String[] NO_IDS = new String[0];
+
+    private final ReadWriteLock fRepositoryLock = new ReentrantReadWriteLock();
+    private final ReadWriteLock[] fStripes;
+    private final int fMask;
+
+    LockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Create a lock manager.
+     *
+     * @param stripes
+     *            number of stripes, rounded up to a power of two
+     */
+    LockManager(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        fStripes = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            fStripes[i] = new ReentrantReadWriteLock();
+        }
+        fMask = size - 1;
+    }
+
+    /**
+     * Lock objects exclusively.
+     *
+     * @param ids
+     *            ids of the objects, null entries are ignored
+     */
+    void lockExclusive(String... ids) {
+        lock(ids, NO_IDS);
+    }
+
+    void unlockExclusive(String... ids) {
+        unlock(ids, NO_IDS);
+    }
+
+    /**
+     * Lock some objects exclusively and some others shared. If an exclusive
+     * and a shared id fall on the same stripe the stripe is locked
+     * exclusively.
+     *
+     * @param exclusiveIds
+     *            ids of objects to lock exclusively
+     * @param sharedIds
+     *            ids of objects to lock shared
+     */
+    void lock(String[] exclusiveIds, String[] sharedIds) {
+        fRepositoryLock.readLock().lock();
+        int[] stripes = getStripes(exclusiveIds, sharedIds);
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                getLock(stripes[locked]).lock();
+            }
+        } finally {
+            if (locked < stripes.length) {
+                // interrupted by an error, release what was acquired so far
+                for (int i = locked - 1; i >= 0; i--) {
+                    getLock(stripes[i]).unlock();
+                }
+                fRepositoryLock.readLock().unlock();
+            }
+        }
+    }
+
+    void unlock(String[] exclusiveIds, String[] sharedIds) {
+        int[] stripes = getStripes(exclusiveIds, sharedIds);
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            getLock(stripes[i]).unlock();
+        }
+        fRepositoryLock.readLock().unlock();
+    }
+
+    /**
+     * Lock the complete repository. Waits until all running write operations
+     * have finished.
+     */
+    void lockRepository() {
+        fRepositoryLock.writeLock().lock();
+    }
+
+    void unlockRepository() {
+        fRepositoryLock.writeLock().unlock();
+    }
+
+    private Lock getLock(int encodedStripe) {
+        ReadWriteLock stripe = fStripes[encodedStripe >> 1];
+        return (encodedStripe & 1) == 1 ? stripe.writeLock() : stripe.readLock();
+    }
+
+    /**
+     * Compute the sorted, distinct stripes for a set of ids. Each stripe is
+     * encoded as index * 2 + 1 for an exclusive and index * 2 for a shared
+     * lock.
+     */
+    private int[] getStripes(String[] exclusiveIds, String[] sharedIds) {
+        int[] modes = new int[exclusiveIds.length + sharedIds.length];
+        int n = 0;
+        for (String id : exclusiveIds) {
+            if (null != id) {
+                modes[n++] = (stripeOf(id) << 1) | 1;
+            }
+        }
+        for (String id : sharedIds) {
+            if (null != id) {
+                modes[n++] = stripeOf(id) << 1;
+            }
+        }
+        Arrays.sort(modes, 0, n);
+        // keep one entry per stripe, the exclusive one if both are requested
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (count > 0 && (modes[count - 1] >> 1) == (modes[i] >> 1)) {
+                modes[count - 1] |= modes[i] & 1;
+            } else {
+                modes[count++] = modes[i];
+            }
+        }
+        return Arrays.copyOf(modes, count);
+    }
+
+    private int stripeOf(String id) {
+        int h = id.hashCode();
+        return (h ^ (h >>> 16)) & fMask;
+    }
+}
@@ -22,18 +22,18 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.GregorianCalendar;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.chemistry.opencmis.commons.PropertyIds;
 import org.apache.chemistry.opencmis.commons.data.Ace;
@@ -82,33 +82,34 @@ import org.slf4j.LoggerFactory;
  * <p>
  * Certain methods in the in-memory repository must guarantee constraints. For
  * example a folder enforces that each child has a unique name. Therefore
- * certain operations must occur in an atomic manner. In the example it must be
- * guaranteed that no write access occurs to the map between acquiring the
- * iterator to find the children and finishing the add operation when no name
- * conflicts can occur. For this purpose this class has methods to lock an
- * unlock the state of the repository. It is very important that the caller
- * acquiring the lock enforces an unlock under all circumstances. Typical code
- * is:
+ * certain operations must occur in an atomic manner. Names are reserved in the
+ * child name index of a folder before an object is filed there, which makes
+ * the uniqueness check and the insert atomic for each folder. Write operations
+ * additionally lock the objects and folders they touch through a
+ * {@link LockManager}: the changed object exclusively, the parent folders
+ * shared. Writers in unrelated folders never wait for each other. It is very
+ * important that the caller acquiring a lock enforces an unlock under all
+ * circumstances. Typical code is:
  * <p>
  * 
  * <pre>
- * ObjectStoreImpl os = ... ;
+ * fLockManager.lock(exclusiveIds, sharedIds);
  * try {
- *     os.lock();
+ *     ...
  * } finally {
- *     os.unlock();
+ *     fLockManager.unlock(exclusiveIds, sharedIds);
  * }
  * </pre>
  * 
- * The locking is very coarse-grained. Productive implementations would probably
- * implement finer grained locks on a folder or document rather than the
- * complete repository.
+ * Read operations do not lock, they rely on the concurrent maps.
  */
 public class ObjectStoreImpl implements ObjectStore {
 
 	private static final Logger LOG = LoggerFactory
 			.getLogger(ObjectStoreImpl.class.getName());
 	private static final int FIRST_ID = 100;
+	private static final String[] NO_IDS = new String[0];
+	private static final int DEFAULT_PARALLEL_QUERY_THRESHOLD = 10000;
 	private static final Long MAX_CONTENT_SIZE_KB = ConfigurationSettings
 			.getConfigurationValueAsLong(ConfigConstants.MAX_CONTENT_SIZE_KB);
 
@@ -124,18 +125,94 @@ public class ObjectStoreImpl implements ObjectStore {
 
 	/**
 	 * A concurrent HashMap as core element to hold all objects in the
-	 * repository.
+	 * repository. It is keyed by object id only, paths are resolved through
+	 * the child name index.
 	 */
 	private final Map<String, StoredObject> fStoredObjectMap = new ConcurrentHashMap<String, StoredObject>();
 
 	/**
-	 * A concurrent HashMap to hold all Acls in the repository.
+	 * Index from a folder id to the ids of all objects filed in this folder.
+	 * It is maintained by every operation changing the parents of an object so
+	 * that children can be retrieved without scanning the complete store.
+	 * Document versions are not indexed, they are reached through their
+	 * versioned document.
 	 */
-	private int nextUnusedAclId = 0;
+	private final Map<String, Set<String>> fChildrenMap = new ConcurrentHashMap<String, Set<String>>();
 
-	private final List<InMemoryAcl> fAcls = new ArrayList<InMemoryAcl>();
+	/**
+	 * Index from a folder id to the names of its children, each mapped to the
+	 * id of the child holding it. Together these maps form a trie of path
+	 * segments: a path is resolved segment by segment starting at the root
+	 * folder, and renaming or moving a folder only touches the entry of this
+	 * folder, never the entries of its descendants.
+	 * <p>
+	 * The name map of a folder is also the lock for name checks in this
+	 * folder: a name is reserved (mapped to null) before the object is
+	 * created so that two concurrent requests can never file the same name
+	 * twice.
+	 */
+	private final Map<String, Map<String, String>> fChildNameMap = new ConcurrentHashMap<String, Map<String, String>>();
+
+	/**
+	 * Source and target adjacency lists of all relationships.
+	 */
+	private final RelationshipIndex fRelationshipIndex = new RelationshipIndex();
+
+	/**
+	 * Declared indexes on custom properties, keyed by property id.
+	 */
+	private final Map<String, PropertyIndex> fPropertyIndexes = new ConcurrentHashMap<String, PropertyIndex>();
+
+	/**
+	 * Number of objects by primary type id, statistics for the query planner.
+	 */
+	private final Map<String, AtomicInteger> fTypeCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * Objects by applied secondary type.
+	 */
+	private final SecondaryTypeIndex fSecondaryTypeIndex = new SecondaryTypeIndex();
+
+	/**
+	 * Index on the words of the content of text documents.
+	 */
+	private final FullTextIndex fFullTextIndex = new FullTextIndex();
+
+	/**
+	 * Registry of all Acls in the repository.
+	 */
+	private final AclRegistry fAclRegistry = new AclRegistry();
+
+	private final LockManager fLockManager = new LockManager();
 
-	private final Lock fLock = new ReentrantLock();
+	/**
+	 * Number of objects from which on a query checks the objects in
+	 * parallel, 0 to always check them sequentially.
+	 */
+	private volatile int fParallelQueryThreshold = DEFAULT_PARALLEL_QUERY_THRESHOLD;
+
+	/**
+	 * False if a query without ORDER BY stops after the requested page and
+	 * does not return the total number of matches.
+	 */
+	private volatile boolean fExactQueryCount = true;
+
+	/**
+	 * True if every query result carries the profile of the query.
+	 */
+	private volatile boolean fProfileQueries;
+
+	/**
+	 * Milliseconds from which on a query is logged with its profile, 0 to
+	 * not log slow queries.
+	 */
+	private volatile long fSlowQueryThreshold;
+
+	/**
+	 * Incremented on every change of an object, its content, its parents or
+	 * its Acl.
+	 */
+	private final AtomicLong fModificationCount = new AtomicLong();
 
 	private final String fRepositoryId;
 	private FolderImpl fRootFolder = null;
@@ -158,16 +235,8 @@ public class ObjectStoreImpl implements ObjectStore {
 		return nextUnusedId++;
 	}
 
-	private synchronized Integer getNextAclId() {
-		return nextUnusedAclId++;
-	}
-
-	private void lock() {
-		fLock.lock();
-	}
-
-	private void unlock() {
-		fLock.unlock();
+	public String getRepositoryId() {
+		return fRepositoryId;
 	}
 
 	public Folder getRootFolder() {
@@ -175,37 +244,23 @@ public class ObjectStoreImpl implements ObjectStore {
 	}
 
 	public StoredObject getObjectByPath(String path, String user) {
-		if (path == "/") {
-			return fRootFolder;
+		if (null == path || !path.startsWith(Filing.PATH_SEPARATOR)) {
+			return null;
 		}
-		StoredObject so = fStoredObjectMap.get(path);
-		//StoredObject so = findObjectWithPathInDescendents(path, user,
-		//		Filing.PATH_SEPARATOR, fRootFolder);
-		return so;
-	}
-
-	private Fileable findObjectWithPathInDescendents(String path, String user,
-			String prefix, Fileable fo) {
-		if (path.equals(prefix)) {
-			return fo;
-		} else if (fo instanceof Folder) {
-			List<Fileable> children = getChildren((Folder) fo);
-			for (Fileable child : children) {
-				String foundPath = prefix.length() == 1 ? prefix
-						+ child.getName() : prefix + Filing.PATH_SEPARATOR
-						+ child.getName();
-				if (path.startsWith(foundPath)) {
-					Fileable found = findObjectWithPathInDescendents(path,
-							user, foundPath, child);
-					if (null != found) {
-						return found; // note that there can be multiple folders
-										// with the same prefix like folder1,
-										// folder10
-					}
-				}
+		StoredObject so = fRootFolder;
+		for (String segment : path.split(Filing.PATH_SEPARATOR)) {
+			if (segment.isEmpty()) {
+				continue;
+			}
+			if (!(so instanceof Folder)) {
+				return null;
+			}
+			so = getChildByName((Folder) so, segment);
+			if (null == so) {
+				return null;
 			}
 		}
-		return null;
+		return so;
 	}
 
 	public StoredObject getObjectById(String objectId) {
@@ -223,29 +278,39 @@ public class ObjectStoreImpl implements ObjectStore {
 							+ ". Object does not exist.");
 		}
 
-		if (obj instanceof FolderImpl) {
-			deleteFolder(objectId, user);
-		} else if (obj instanceof DocumentVersion) {
-			DocumentVersion vers = (DocumentVersion) obj;
-			VersionedDocument parentDoc = vers.getParentDocument();
-			boolean otherVersionsExists;
-			if (allVersions != null && allVersions) {
-				otherVersionsExists = false;
-				List<DocumentVersion> allVers = parentDoc.getAllVersions();
-				for (DocumentVersion ver : allVers) {
-					removeObject(ver.getId());
+		String filedId = getFiledObjectId(obj);
+		StoredObject filed = fStoredObjectMap.get(filedId);
+		String[] objectIds = { objectId, filedId };
+		String[] parentIds = filed instanceof Fileable ? ((Fileable) filed)
+				.getParentIds().toArray(NO_IDS) : NO_IDS;
+		fLockManager.lock(objectIds, parentIds);
+		try {
+			if (obj instanceof FolderImpl) {
+				deleteFolder(objectId, user);
+			} else if (obj instanceof DocumentVersion) {
+				DocumentVersion vers = (DocumentVersion) obj;
+				VersionedDocument parentDoc = vers.getParentDocument();
+				boolean otherVersionsExists;
+				if (allVersions != null && allVersions) {
+					otherVersionsExists = false;
+					List<DocumentVersion> allVers = parentDoc.getAllVersions();
+					for (DocumentVersion ver : allVers) {
+						removeObject(ver.getId());
+					}
+				} else {
+					removeObject(objectId);
+					otherVersionsExists = parentDoc.deleteVersion(vers);
+					persistenceManager.deleteFromDisk(vers);
+				}
+
+				if (!otherVersionsExists) {
+					removeObject(parentDoc.getId());
 				}
 			} else {
 				removeObject(objectId);
-				otherVersionsExists = parentDoc.deleteVersion(vers);
-				persistenceManager.deleteFromDisk(vers);
-			}
-
-			if (!otherVersionsExists) {
-				removeObject(parentDoc.getId());
 			}
-		} else {
-			removeObject(objectId);
+		} finally {
+			fLockManager.unlock(objectIds, parentIds);
 		}
 	}
 
@@ -271,19 +336,22 @@ public class ObjectStoreImpl implements ObjectStore {
 			}
 			so.setId(id);
 		}
+		if (null == so.getStore()) {
+			so.setStore(this);
+		}
 
 		if (saveOnExit) {
 			persistenceManager.saveObject(fStoredObjectMap, so, true);
 		}
-		// put by id
-		fStoredObjectMap.put(id, so);
-		// put by path
-		if (so instanceof Fileable) {
-			String path = ((Fileable) so).getPath();
-			if (path != null) {
-				fStoredObjectMap.put(path, so);
-			}
+		if (null == fStoredObjectMap.put(id, so)) {
+			countType(so, 1);
+		}
+		addToParents(so);
+		if (so instanceof Relationship) {
+			fRelationshipIndex.add(so);
 		}
+		updateIndexes(so);
+		fFullTextIndex.update(so);
 
 		return id;
 	}
@@ -295,11 +363,16 @@ public class ObjectStoreImpl implements ObjectStore {
 	void removeObject(String id) {
 		StoredObject obj = fStoredObjectMap.get(id);
 		if (obj instanceof Fileable) {
-			// remove path entry
-			fStoredObjectMap.remove(((Fileable) obj).getPath());
+			removeFromParents(obj);
+		} else if (obj instanceof Relationship) {
+			fRelationshipIndex.remove(obj);
 		}
-		// remove id entry
-		fStoredObjectMap.remove(id);
+		if (null != fStoredObjectMap.remove(id)) {
+			countType(obj, -1);
+		}
+		fChildrenMap.remove(id);
+		fChildNameMap.remove(id);
+		removeFromIndexes(id);
 		persistenceManager.deleteFromDisk(obj);
 		LOG.debug("Deleted " + obj.getName());
 	}
@@ -314,16 +387,243 @@ public class ObjectStoreImpl implements ObjectStore {
 	 */
 
 	public void clear() {
-		lock();
-		fStoredObjectMap.clear();
-		storeObject(fRootFolder);
-		unlock();
+		fLockManager.lockRepository();
+		try {
+			fStoredObjectMap.clear();
+			fTypeCounts.clear();
+			fChildrenMap.clear();
+			fChildNameMap.clear();
+			fRelationshipIndex.clear();
+			for (PropertyIndex index : fPropertyIndexes.values()) {
+				index.clear();
+			}
+			fSecondaryTypeIndex.clear();
+			fFullTextIndex.clear();
+			fModificationCount.incrementAndGet();
+			storeObject(fRootFolder);
+		} finally {
+			fLockManager.unlockRepository();
+		}
 	}
 
 	public long getObjectCount() {
 		return fStoredObjectMap.size();
 	}
 
+	/**
+	 * Declare an index on a custom property and build it from the objects
+	 * already stored. The index is maintained on every later change and can
+	 * be used by queries once it is complete.
+	 * 
+	 * @param propertyId
+	 *            id of the property, system properties (cmis:...) cannot be
+	 *            indexed
+	 * @param sorted
+	 *            true for an index supporting range queries, false for an
+	 *            index supporting only equality
+	 * @return the index
+	 */
+	public PropertyIndex addPropertyIndex(String propertyId, boolean sorted) {
+		if (propertyId.startsWith("cmis:")) {
+			throw new CmisInvalidArgumentException(
+					"System properties cannot be indexed: " + propertyId);
+		}
+		PropertyIndex index = new PropertyIndex(propertyId, sorted);
+		// register first so that concurrent changes are indexed as well
+		fPropertyIndexes.put(propertyId, index);
+		for (StoredObject so : fStoredObjectMap.values()) {
+			index.update(so);
+		}
+		index.setComplete();
+		return index;
+	}
+
+	/**
+	 * Get the index of a property.
+	 * 
+	 * @param propertyId
+	 *            id of the property
+	 * @return the index or null if the property is not indexed or the index
+	 *         is still being built
+	 */
+	public PropertyIndex getPropertyIndex(String propertyId) {
+		PropertyIndex index = fPropertyIndexes.get(propertyId);
+		return null != index && index.isComplete() ? index : null;
+	}
+
+	/**
+	 * Update the property and secondary type indexes after the properties of
+	 * an object were changed outside of {@link #updateObject}, for example by
+	 * a check-in.
+	 * 
+	 * @param so
+	 *            changed object
+	 */
+	public void updateIndexes(StoredObject so) {
+		for (PropertyIndex index : fPropertyIndexes.values()) {
+			index.update(so);
+		}
+		fSecondaryTypeIndex.update(so);
+		fModificationCount.incrementAndGet();
+	}
+
+	/**
+	 * Lock an object shared, so that no write operation changes it while it
+	 * is read outside of a request, for example for a snapshot. The lock must
+	 * be released with {@link #unlockObject(String)} in a finally block.
+	 * 
+	 * @param id
+	 *            id of the object
+	 */
+	public void lockObject(String id) {
+		fLockManager.lock(NO_IDS, new String[] { id });
+	}
+
+	public void unlockObject(String id) {
+		fLockManager.unlock(NO_IDS, new String[] { id });
+	}
+
+	/**
+	 * Get the number of changes of the repository. Results computed before a
+	 * change can be detected as stale by comparing this count.
+	 * 
+	 * @return the modification count
+	 */
+	public long getModificationCount() {
+		return fModificationCount.get();
+	}
+
+	/**
+	 * Get the objects having one of the given secondary types applied.
+	 * 
+	 * @param typeIds
+	 *            ids of secondary types
+	 * @return ids of the objects
+	 */
+	public Set<String> getIdsWithSecondaryType(Collection<String> typeIds) {
+		return fSecondaryTypeIndex.getIds(typeIds);
+	}
+
+	/**
+	 * Count the objects having one of the given secondary types applied.
+	 * 
+	 * @param typeIds
+	 *            ids of secondary types
+	 * @return number of objects, an object with several of the types is
+	 *         counted for each
+	 */
+	public int getCountWithSecondaryType(Collection<String> typeIds) {
+		return fSecondaryTypeIndex.count(typeIds);
+	}
+
+	/**
+	 * Count the objects of the given primary types, including document
+	 * versions.
+	 * 
+	 * @param typeIds
+	 *            ids of primary types
+	 * @return number of objects
+	 */
+	public int getObjectCount(Collection<String> typeIds) {
+		int count = 0;
+		for (String typeId : typeIds) {
+			AtomicInteger typeCount = fTypeCounts.get(typeId);
+			if (null != typeCount) {
+				count += typeCount.get();
+			}
+		}
+		return count;
+	}
+
+	private void countType(StoredObject so, int delta) {
+		if (null != so.getTypeId()) {
+			fTypeCounts.computeIfAbsent(so.getTypeId(), t -> new AtomicInteger()).addAndGet(delta);
+		}
+	}
+
+	public FullTextIndex getFullTextIndex() {
+		return fFullTextIndex;
+	}
+
+	public int getParallelQueryThreshold() {
+		return fParallelQueryThreshold;
+	}
+
+	/**
+	 * Set the number of objects from which on a query checks the objects
+	 * in parallel. Small repositories should keep the sequential scan, it
+	 * does not pay for splitting the work.
+	 * 
+	 * @param threshold
+	 *            minimum number of objects, 0 to disable parallel scans
+	 */
+	public void setParallelQueryThreshold(int threshold) {
+		if (threshold < 0) {
+			throw new CmisInvalidArgumentException("Parallel query threshold must not be negative: " + threshold);
+		}
+		fParallelQueryThreshold = threshold;
+	}
+
+	public boolean isExactQueryCount() {
+		return fExactQueryCount;
+	}
+
+	/**
+	 * Set whether queries count all matches. Without counting, a query
+	 * without ORDER BY stops checking objects once the requested page and
+	 * one more match are found, so that the time to the first page does not
+	 * depend on the size of the repository. The number of items is then
+	 * left out of the result, hasMoreItems stays exact.
+	 * 
+	 * @param exact
+	 *            false to stop unsorted queries after the requested page
+	 */
+	public void setExactQueryCount(boolean exact) {
+		fExactQueryCount = exact;
+	}
+
+	public boolean isProfileQueries() {
+		return fProfileQueries;
+	}
+
+	/**
+	 * Set whether every query returns its profile, not only those asking
+	 * for it by an extension element.
+	 * 
+	 * @param profile
+	 *            true to add the profile to all query results
+	 */
+	public void setProfileQueries(boolean profile) {
+		fProfileQueries = profile;
+	}
+
+	public long getSlowQueryThreshold() {
+		return fSlowQueryThreshold;
+	}
+
+	/**
+	 * Set the time from which on a query is logged as slow, with the time
+	 * spent in each of its stages.
+	 * 
+	 * @param millis
+	 *            milliseconds, 0 to not log slow queries
+	 */
+	public void setSlowQueryThreshold(long millis) {
+		if (millis < 0) {
+			throw new CmisInvalidArgumentException("Slow query threshold must not be negative: " + millis);
+		}
+		fSlowQueryThreshold = millis;
+	}
+
+	private void removeFromIndexes(String id) {
+		for (PropertyIndex index : fPropertyIndexes.values()) {
+			index.remove(id);
+		}
+		fSecondaryTypeIndex.remove(id);
+		fFullTextIndex.remove(id);
+		fModificationCount.incrementAndGet();
+	}
+
 	// /////////////////////////////////////////
 	// private helper methods
 
@@ -346,139 +646,181 @@ public class ObjectStoreImpl implements ObjectStore {
 	public Document createDocument(Map<String, PropertyData<?>> propMap,
 			String user, Folder folder, ContentStream contentStream,
 			List<String> policies, Acl addACEs, Acl removeACEs) {
-		String name = (String) propMap.get(PropertyIds.NAME).getFirstValue();
-		DocumentImpl doc = new DocumentImpl();
-		doc.setStore(this);
-		doc.createSystemBasePropertiesWhenCreated(propMap, user);
-		doc.setCustomProperties(propMap);
-		doc.setRepositoryId(fRepositoryId);
-		doc.setName(name);
-		if (null != folder) {
-			 // allow same multiple name in folder
-			 if (hasChild(folder, name)) {
-				 String message = "Cannot create document an object with name "
-						 + name + " already exists in folder " + getFolderPath(folder.getId());
-				 LOG.error(message);
-				 throw new CmisNameConstraintViolationException(message);
-			 }
-			doc.addParentId(folder.getId());
-		}
-		ContentStream content = setContent(doc, contentStream);
-		doc.setContent(content);
-		int aclId = getAclId(((FolderImpl) folder), addACEs, removeACEs);
-		doc.setAclId(aclId);
-		if (null != policies) {
-			doc.setAppliedPolicies(policies);
-		}
-		String id = storeObject(doc);
-		doc.setId(id);
-		applyAcl(doc, addACEs, removeACEs);
-		return doc;
+		String[] parentIds = { null == folder ? null : folder.getId() };
+		fLockManager.lock(NO_IDS, parentIds);
+		try {
+			String name = (String) propMap.get(PropertyIds.NAME).getFirstValue();
+			DocumentImpl doc = new DocumentImpl();
+			doc.setStore(this);
+			doc.createSystemBasePropertiesWhenCreated(propMap, user);
+			doc.setCustomProperties(propMap);
+			doc.setRepositoryId(fRepositoryId);
+			doc.setName(name);
+			if (null != folder) {
+				 // allow same multiple name in folder
+				 if (!reserveChildName(folder, name)) {
+					 String message = "Cannot create document an object with name "
+							 + name + " already exists in folder " + getFolderPath(folder.getId());
+					 LOG.error(message);
+					 throw new CmisNameConstraintViolationException(message);
+				 }
+				doc.addParentId(folder.getId());
+			}
+			try {
+				ContentStream content = setContent(doc, contentStream);
+				doc.setContent(content);
+				int aclId = getAclId(((FolderImpl) folder), addACEs, removeACEs);
+				doc.setAclId(aclId);
+				if (null != policies) {
+					doc.setAppliedPolicies(policies);
+				}
+				String id = storeObject(doc);
+				doc.setId(id);
+			} finally {
+				releaseChildName(folder, name);
+			}
+			applyAcl(doc, addACEs, removeACEs);
+			return doc;
+		} finally {
+			fLockManager.unlock(NO_IDS, parentIds);
+		}
 	}
 
 	public StoredObject createItem(String name,
 			Map<String, PropertyData<?>> propMap, String user, Folder folder,
 			List<String> policies, Acl addACEs, Acl removeACEs) {
-		ItemImpl item = new ItemImpl();
-		item.createSystemBasePropertiesWhenCreated(propMap, user);
-		item.setCustomProperties(propMap);
-		item.setRepositoryId(fRepositoryId);
-		item.setName(name);
-		if (null != folder) {
-			if (hasChild(folder, name)) {
-				throw new CmisNameConstraintViolationException(
-						"Cannot create document an object with name " + name
-								+ " already exists in folder "
-								+ getFolderPath(folder.getId()));
+		String[] parentIds = { null == folder ? null : folder.getId() };
+		fLockManager.lock(NO_IDS, parentIds);
+		try {
+			ItemImpl item = new ItemImpl();
+			item.createSystemBasePropertiesWhenCreated(propMap, user);
+			item.setCustomProperties(propMap);
+			item.setRepositoryId(fRepositoryId);
+			item.setName(name);
+			if (null != folder) {
+				if (!reserveChildName(folder, name)) {
+					throw new CmisNameConstraintViolationException(
+							"Cannot create document an object with name " + name
+									+ " already exists in folder "
+									+ getFolderPath(folder.getId()));
+				}
+				item.addParentId(folder.getId());
 			}
-			item.addParentId(folder.getId());
-		}
-		if (null != policies) {
-			item.setAppliedPolicies(policies);
+			try {
+				if (null != policies) {
+					item.setAppliedPolicies(policies);
+				}
+				int aclId = getAclId(((FolderImpl) folder), addACEs, removeACEs);
+				item.setAclId(aclId);
+				String id = storeObject(item);
+				item.setId(id);
+			} finally {
+				releaseChildName(folder, name);
+			}
+			applyAcl(item, addACEs, removeACEs);
+			return item;
+		} finally {
+			fLockManager.unlock(NO_IDS, parentIds);
 		}
-		int aclId = getAclId(((FolderImpl) folder), addACEs, removeACEs);
-		item.setAclId(aclId);
-		String id = storeObject(item);
-		item.setId(id);
-		applyAcl(item, addACEs, removeACEs);
-		return item;
 	}
 
 	public DocumentVersion createVersionedDocument(String name,
 			Map<String, PropertyData<?>> propMap, String user, Folder folder,
 			List<String> policies, Acl addACEs, Acl removeACEs,
 			ContentStream contentStream, VersioningState versioningState) {
-		VersionedDocumentImpl doc = new VersionedDocumentImpl();
-		doc.createSystemBasePropertiesWhenCreated(propMap, user);
-		doc.setCustomProperties(propMap);
-		doc.setRepositoryId(fRepositoryId);
-		doc.setStore(this);
-		doc.setName(name);
-		if (null != folder) {
-			if (hasChild(folder, name)) {
-				throw new CmisNameConstraintViolationException(
-						"Cannot create document an object with name " + name
-								+ " already exists in folder "
-								+ getFolderPath(folder.getId()));
+		String[] parentIds = { null == folder ? null : folder.getId() };
+		fLockManager.lock(NO_IDS, parentIds);
+		try {
+			VersionedDocumentImpl doc = new VersionedDocumentImpl();
+			doc.createSystemBasePropertiesWhenCreated(propMap, user);
+			doc.setCustomProperties(propMap);
+			doc.setRepositoryId(fRepositoryId);
+			doc.setStore(this);
+			doc.setName(name);
+			if (null != folder) {
+				if (!reserveChildName(folder, name)) {
+					throw new CmisNameConstraintViolationException(
+							"Cannot create document an object with name " + name
+									+ " already exists in folder "
+									+ getFolderPath(folder.getId()));
+				}
+				doc.addParentId(folder.getId());
 			}
-			doc.addParentId(folder.getId());
-		}
-		String id = storeObject(doc);
-		doc.setId(id);
-		DocumentVersion version = doc.addVersion(versioningState, user);
-		ContentStream content = setContent(version, contentStream);
-		version.setContent(content);
-		version.createSystemBasePropertiesWhenCreated(propMap, user);
-		version.setCustomProperties(propMap);
-		int aclId = getAclId(((FolderImpl) folder), addACEs, removeACEs);
-		doc.setAclId(aclId);
-		if (null != policies) {
-			doc.setAppliedPolicies(policies);
-		}
-		id = storeObject(version);
-		version.setId(id);
-		applyAcl(doc, addACEs, removeACEs);
-		return version;
+			String id;
+			try {
+				id = storeObject(doc);
+				doc.setId(id);
+			} finally {
+				releaseChildName(folder, name);
+			}
+			DocumentVersion version = doc.addVersion(versioningState, user);
+			ContentStream content = setContent(version, contentStream);
+			version.setContent(content);
+			version.createSystemBasePropertiesWhenCreated(propMap, user);
+			version.setCustomProperties(propMap);
+			int aclId = getAclId(((FolderImpl) folder), addACEs, removeACEs);
+			doc.setAclId(aclId);
+			if (null != policies) {
+				doc.setAppliedPolicies(policies);
+			}
+			id = storeObject(version);
+			version.setId(id);
+			applyAcl(doc, addACEs, removeACEs);
+			return version;
+		} finally {
+			fLockManager.unlock(NO_IDS, parentIds);
+		}
 	}
 
 	public Folder createFolder(String name,
 			Map<String, PropertyData<?>> propMap, String user, Folder parent,
 			List<String> policies, Acl addACEs, Acl removeACEs) {
+		String[] parentIds = { null == parent ? null : parent.getId() };
+		fLockManager.lock(NO_IDS, parentIds);
+		try {
 
-		if (null == parent) {
-			throw new CmisInvalidArgumentException("Cannot create root folder.");
-		}
-		else if (hasChild(parent, name)) {
-		    // do not return a 409.
-		    // return 200
-		    String relativePath = persistenceManager.getFile(parent, fStoredObjectMap).getAbsolutePath().replace(persistenceManager.getRootPath(), "");
-		    return (FolderImpl)getObjectByPath(relativePath + "/" + name, user);
-		    /*
-			throw new CmisNameConstraintViolationException(
-			 "Cannot create folder, this name already exists in parent folder.");
-			 */
-		}
-		FolderImpl folder = new FolderImpl(name, parent.getId());
-		if (null != propMap) {
-			folder.createSystemBasePropertiesWhenCreated(propMap, user);
-			folder.setCustomProperties(propMap);
+			if (null == parent) {
+				throw new CmisInvalidArgumentException("Cannot create root folder.");
+			}
+			else if (!reserveChildName(parent, name)) {
+			    // do not return a 409.
+			    // return 200
+			    StoredObject existing = getChildByName(parent, name);
+			    if (existing instanceof Folder) {
+			        return (Folder) existing;
+			    }
+				throw new CmisNameConstraintViolationException(
+				 "Cannot create folder, this name already exists in parent folder.");
+			}
+			FolderImpl folder;
+			try {
+				folder = new FolderImpl(name, parent.getId());
+				if (null != propMap) {
+					folder.createSystemBasePropertiesWhenCreated(propMap, user);
+					folder.setCustomProperties(propMap);
+				}
+				folder.setRepositoryId(fRepositoryId);
+				folder.setStore(this);
+				int aclId = getAclId(((FolderImpl) parent), addACEs, removeACEs);
+				folder.setAclId(aclId);
+				if (null != policies) {
+					folder.setAppliedPolicies(policies);
+				}
+
+				if (persistenceManager.getRootPath() != null) {
+		            String relativePath = persistenceManager.getFile(parent, fStoredObjectMap).getAbsolutePath().replace(persistenceManager.getRootPath(), "");
+		            folder.getProperties().put(PropertyIds.PATH, new PropertyStringImpl(PropertyIds.PATH, relativePath + "/" + folder.getName()));
+		        }
+				String id = storeObject(folder);
+				folder.setId(id);
+			} finally {
+				releaseChildName(parent, name);
+			}
+			applyAcl(folder, addACEs, removeACEs);
+			return folder;
+		} finally {
+			fLockManager.unlock(NO_IDS, parentIds);
 		}
-		folder.setRepositoryId(fRepositoryId);
-		folder.setStore(this);
-		int aclId = getAclId(((FolderImpl) parent), addACEs, removeACEs);
-		folder.setAclId(aclId);
-		if (null != policies) {
-			folder.setAppliedPolicies(policies);
-		}
-
-		if (persistenceManager.getRootPath() != null) {
-            String relativePath = persistenceManager.getFile(parent, fStoredObjectMap).getAbsolutePath().replace(persistenceManager.getRootPath(), "");
-            folder.getProperties().put(PropertyIds.PATH, new PropertyStringImpl(PropertyIds.PATH, relativePath + "/" + folder.getName()));
-        }
-		String id = storeObject(folder);
-		folder.setId(id);
-		applyAcl(folder, addACEs, removeACEs);
-		return folder;
 	}
 
 	public Folder createFolder(String name) {
@@ -537,30 +879,38 @@ public class ObjectStoreImpl implements ObjectStore {
 					"Cannot delete object with id  " + version.getId()
 							+ ". Object does not exist.");
 		}
+		countType(found, -1);
+		removeFromIndexes(found.getId());
 	}
 
 	public void updateObject(StoredObject so,
 			Map<String, PropertyData<?>> newProperties, String user) {
-		// nothing to do
-		Map<String, PropertyData<?>> properties = so.getProperties();
-		for (String key : newProperties.keySet()) {
-			PropertyData<?> value = newProperties.get(key);
-
-			if (key.equals(PropertyIds.SECONDARY_OBJECT_TYPE_IDS)) {
-				properties.put(key, value); // preserve it even if it is empty!
-			} else if (null == value || value.getValues() == null
-					|| value.getFirstValue() == null) {
-				// delete property
-				properties.remove(key);
-			} else {
-				properties.put(key, value);
+		String[] objectIds = { so.getId() };
+		fLockManager.lock(objectIds, NO_IDS);
+		try {
+			Map<String, PropertyData<?>> properties = so.getProperties();
+			for (String key : newProperties.keySet()) {
+				PropertyData<?> value = newProperties.get(key);
+
+				if (key.equals(PropertyIds.SECONDARY_OBJECT_TYPE_IDS)) {
+					properties.put(key, value); // preserve it even if it is empty!
+				} else if (null == value || value.getValues() == null
+						|| value.getFirstValue() == null) {
+					// delete property
+					properties.remove(key);
+				} else {
+					properties.put(key, value);
+				}
 			}
+			// update system properties and secondary object type ids
+			so.updateSystemBasePropertiesWhenModified(properties, user);
+			properties.remove(PropertyIds.SECONDARY_OBJECT_TYPE_IDS);
+			updateIndexes(so);
+			// Save object metadata but not its content
+			persistenceManager.saveObject(fStoredObjectMap, so, false);
+		} finally {
+			fLockManager.unlock(objectIds, NO_IDS);
 		}
-		// update system properties and secondary object type ids
-		so.updateSystemBasePropertiesWhenModified(properties, user);
-		properties.remove(PropertyIds.SECONDARY_OBJECT_TYPE_IDS);
-		// Save object metadata but not its content
-		persistenceManager.saveObject(fStoredObjectMap, so, false);
 	}
 
 	public List<StoredObject> getCheckedOutDocuments(String orderBy,
@@ -583,45 +933,93 @@ public class ObjectStoreImpl implements ObjectStore {
 			List<String> typeIds, RelationshipDirection direction) {
 
 		List<StoredObject> res = new ArrayList<StoredObject>();
-
-		if (typeIds != null && typeIds.size() > 0) {
-			for (String typeId : typeIds) {
-				for (StoredObject so : fStoredObjectMap.values()) {
-					if (so instanceof Relationship
-							&& so.getTypeId().equals(typeId)) {
-						Relationship ro = (Relationship) so;
-						if (ro.getSourceObjectId().equals(objectId)
-								&& (RelationshipDirection.EITHER == direction || RelationshipDirection.SOURCE == direction)) {
-							res.add(so);
-						} else if (ro.getTargetObjectId().equals(objectId)
-								&& (RelationshipDirection.EITHER == direction || RelationshipDirection.TARGET == direction)) {
-							res.add(so);
-						}
-					}
-				}
+		for (String relId : fRelationshipIndex.getRelationshipIds(objectId,
+				typeIds, direction)) {
+			StoredObject so = getObject(relId);
+			if (null != so) {
+				res.add(so);
 			}
-		} else {
-			res = getAllRelationships(objectId, direction);
 		}
 		return res;
 	}
 
 	public String getFolderPath(String folderId) {
-		StringBuilder sb = new StringBuilder();
-		insertPathSegment(sb, folderId);
-		return sb.toString();
+		Folder folder = (Folder) getObjectById(folderId);
+		return folder.getPath();
 	}
 
-	private void insertPathSegment(StringBuilder sb, String folderId) {
-		Folder folder = (Folder) getObjectById(folderId);
-		if (null == folder.getParentId()) {
-			if (sb.length() == 0) {
-				sb.insert(0, Filing.PATH_SEPARATOR);
+	/**
+	 * Check if a folder is another folder or lies below it. The check
+	 * compares the ancestor ids of both folders and does not walk the tree.
+	 * 
+	 * @param folder
+	 *            folder to check
+	 * @param ancestor
+	 *            possible ancestor
+	 * @return true if <code>ancestor</code> is on the path of
+	 *         <code>folder</code>
+	 */
+	public boolean isInFolderTree(Folder folder, Folder ancestor) {
+		if (!(folder instanceof FolderImpl) || !(ancestor instanceof FolderImpl)) {
+			return false;
+		}
+		String[] path = ((FolderImpl) folder).getAncestorIds();
+		int depth = ((FolderImpl) ancestor).getAncestorIds().length - 1;
+		return depth < path.length && ancestor.getId().equals(path[depth]);
+	}
+
+	/**
+	 * Check if an object is filed in a folder or in one of its descendants,
+	 * as required for IN_TREE. Like the navigation services only folders the
+	 * user can read are followed.
+	 * 
+	 * @param so
+	 *            object to check
+	 * @param folderId
+	 *            id of the folder
+	 * @param user
+	 *            user executing the check
+	 * @return true if the object is in the tree of the folder
+	 */
+	public boolean isInTree(StoredObject so, String folderId, String user) {
+		StoredObject folder = fStoredObjectMap.get(folderId);
+		if (!(folder instanceof FolderImpl) || !(so instanceof Fileable)) {
+			return false;
+		}
+		int depth = ((FolderImpl) folder).getAncestorIds().length - 1;
+		for (String parentId : ((Fileable) so).getParentIds()) {
+			StoredObject parent = fStoredObjectMap.get(parentId);
+			if (parent instanceof FolderImpl) {
+				String[] path = ((FolderImpl) parent).getAncestorIds();
+				if (depth < path.length && folderId.equals(path[depth])
+						&& canReadFolders(path, depth, user)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean canReadFolders(String[] path, int from, String user) {
+		for (int i = from; i < path.length; i++) {
+			if (!hasReadAccess(user, fStoredObjectMap.get(path[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reset the cached paths of a folder and of all folders below it after the
+	 * folder got a new name or a new parent.
+	 */
+	private void invalidatePaths(FolderImpl folder) {
+		folder.invalidatePath();
+		for (String childId : getChildIds(folder.getId())) {
+			StoredObject child = getObject(childId);
+			if (child instanceof FolderImpl) {
+				invalidatePaths((FolderImpl) child);
 			}
-		} else {
-			sb.insert(0, folder.getName());
-			sb.insert(0, Filing.PATH_SEPARATOR);
-			insertPathSegment(sb, folder.getParentId());
 		}
 	}
 
@@ -648,13 +1046,7 @@ public class ObjectStoreImpl implements ObjectStore {
 
 	public List<Integer> getAllAclsForUser(String principalId,
 			Permission permission) {
-		List<Integer> acls = new ArrayList<Integer>();
-		for (InMemoryAcl acl : fAcls) {
-			if (acl.hasPermission(principalId, permission)) {
-				acls.add(acl.getId());
-			}
-		}
-		return acls;
+		return fAclRegistry.getAclIds(principalId, permission);
 	}
 
 	public Acl getAcl(int aclId) {
@@ -663,6 +1055,17 @@ public class ObjectStoreImpl implements ObjectStore {
 				.toCommonsAcl();
 	}
 
+	/**
+	 * Get the number of Acls registered in this store. The ids of the Acls
+	 * are dense, each id below this number can be passed to
+	 * {@link #getAcl(int)}.
+	 * 
+	 * @return number of Acls
+	 */
+	public int getAclCount() {
+		return fAclRegistry.size();
+	}
+
 	public int getAclId(StoredObjectImpl so, Acl addACEs, Acl removeACEs) {
 		InMemoryAcl newAcl;
 		boolean removeDefaultAcl = false;
@@ -741,17 +1144,19 @@ public class ObjectStoreImpl implements ObjectStore {
 		}
 
 		// check if children exist
-		List<Fileable> children = getChildren((Folder) folder, -1, -1, user,
-				true).getChildren();
+		Set<String> children = fChildrenMap.get(folderId);
 		if (children != null && !children.isEmpty()) {
 			throw new CmisConstraintException("Cannot delete folder with id:  "
 					+ folderId + ". Folder is not empty.");
 		}
 
-		// remove by path
-		fStoredObjectMap.remove(((FolderImpl) folder).getPath());
-		// remove by id
-		fStoredObjectMap.remove(folderId);
+		if (null != fStoredObjectMap.remove(folderId)) {
+			countType(folder, -1);
+		}
+		fChildrenMap.remove(folderId);
+		fChildNameMap.remove(folderId);
+		removeFromIndexes(folderId);
+		removeFromParents(folder);
 		// Delete on disk
 		persistenceManager.deleteFromDisk(folder);
 	}
@@ -772,19 +1177,14 @@ public class ObjectStoreImpl implements ObjectStore {
 		return new ChildrenResult(children, noItems);
 	}
 
-	private List<Fileable> getChildren(Folder folder) {
-		return getChildren(folder, null, false);
-	}
-
 	private List<Fileable> getChildren(Folder folder, String user,
 			boolean usePwc) {
 		List<Fileable> children = new ArrayList<Fileable>();
-		for (String id : getIds()) {
+		for (String id : getChildIds(folder.getId())) {
 			StoredObject obj = getObject(id);
 			if (obj instanceof Fileable) {
 				Fileable pathObj = (Fileable) obj;
-				if ((null == user || hasReadAccess(user, obj))
-						&& pathObj.getParentIds().contains(folder.getId())) {
+				if (null == user || hasReadAccess(user, obj)) {
 					if (pathObj instanceof VersionedDocument) {
 						DocumentVersion ver;
 						if (usePwc) {
@@ -806,22 +1206,152 @@ public class ObjectStoreImpl implements ObjectStore {
 				}
 			}
 		}
-		// keep only distinct children ()
-		Set<Fileable> uniques = new HashSet<Fileable>(children);
-		return (List<Fileable>)uniques.stream()
-                .collect(Collectors.toList());
+		return children;
+	}
+
+	/**
+	 * Get the ids of all objects filed in a folder.
+	 * 
+	 * @param folderId
+	 *            id of the folder
+	 * @return ids of the children, empty if the folder has no children
+	 */
+	private Set<String> getChildIds(String folderId) {
+		Set<String> childIds = fChildrenMap.get(folderId);
+		return childIds == null ? Collections.<String> emptySet() : childIds;
+	}
+
+	private void addChild(String folderId, StoredObject child) {
+		String childId = getFiledObjectId(child);
+		fChildrenMap.computeIfAbsent(folderId,
+				k -> ConcurrentHashMap.<String> newKeySet()).add(childId);
+		Map<String, String> names = getChildNames(folderId);
+		synchronized (names) {
+			// fills a reservation, for duplicates found on disk the first
+			// object keeps the name
+			if (null == names.get(child.getName())) {
+				names.put(child.getName(), childId);
+			}
+		}
+	}
+
+	private void removeChild(String folderId, StoredObject child) {
+		String childId = getFiledObjectId(child);
+		Set<String> childIds = fChildrenMap.get(folderId);
+		if (null != childIds) {
+			childIds.remove(childId);
+		}
+		Map<String, String> names = fChildNameMap.get(folderId);
+		if (null != names) {
+			synchronized (names) {
+				if (childId.equals(names.get(child.getName()))) {
+					names.remove(child.getName());
+				}
+			}
+		}
+	}
+
+	private void renameChild(String folderId, StoredObject child,
+			String oldName, String newName) {
+		String childId = getFiledObjectId(child);
+		Map<String, String> names = getChildNames(folderId);
+		synchronized (names) {
+			if (childId.equals(names.get(oldName))) {
+				names.remove(oldName);
+			}
+			names.put(newName, childId);
+		}
+	}
+
+	private void addToParents(StoredObject so) {
+		if (so instanceof Fileable && !(so instanceof DocumentVersion)) {
+			for (String parentId : ((Fileable) so).getParentIds()) {
+				addChild(parentId, so);
+			}
+		}
+	}
+
+	private void removeFromParents(StoredObject so) {
+		if (so instanceof Fileable && !(so instanceof DocumentVersion)) {
+			for (String parentId : ((Fileable) so).getParentIds()) {
+				removeChild(parentId, so);
+			}
+		}
+	}
+
+	private Map<String, String> getChildNames(String folderId) {
+		return fChildNameMap.computeIfAbsent(folderId,
+				k -> new HashMap<String, String>());
+	}
+
+	/**
+	 * Atomically check that a folder has no child with the given name and
+	 * reserve the name for an object about to be filed in the folder. Every
+	 * successful reservation must be followed by a call to
+	 * {@link #releaseChildName(Folder, String)} once the object is stored.
+	 * The caller holds the lock of the folder, so that the folder cannot be
+	 * deleted before the object is stored.
+	 * 
+	 * @param folder
+	 *            folder the name is reserved in
+	 * @param name
+	 *            name to reserve
+	 * @return false if the name is already used or reserved in this folder
+	 * @throws CmisObjectNotFoundException
+	 *             if the folder was deleted in the meantime
+	 */
+	private boolean reserveChildName(Folder folder, String name) {
+		if (!fStoredObjectMap.containsKey(folder.getId())) {
+			throw new CmisObjectNotFoundException("Folder "
+					+ folder.getName() + " does not exist any more.");
+		}
+		Map<String, String> names = getChildNames(folder.getId());
+		synchronized (names) {
+			if (names.containsKey(name)) {
+				return false;
+			}
+			names.put(name, null);
+			return true;
+		}
+	}
+
+	/**
+	 * Drop a reservation made by {@link #reserveChildName(Folder, String)}. A
+	 * name already taken over by a stored object is left untouched.
+	 */
+	private void releaseChildName(Folder folder, String name) {
+		if (null == folder) {
+			return;
+		}
+		Map<String, String> names = fChildNameMap.get(folder.getId());
+		if (null != names) {
+			synchronized (names) {
+				if (names.containsKey(name) && null == names.get(name)) {
+					names.remove(name);
+				}
+			}
+		}
+	}
+
+	private StoredObject getChildByName(Folder folder, String name) {
+		Map<String, String> names = fChildNameMap.get(folder.getId());
+		if (null == names) {
+			return null;
+		}
+		String childId;
+		synchronized (names) {
+			childId = names.get(name);
+		}
+		return null == childId ? null : getObject(childId);
 	}
 
 	public ChildrenResult getFolderChildren(Folder folder, int maxItems,
 			int skipCount, String user) {
 		List<Fileable> folderChildren = new ArrayList<Fileable>();
-		for (String id : getIds()) {
+		for (String id : getChildIds(folder.getId())) {
 			StoredObject obj = getObject(id);
-			if (hasReadAccess(user, obj) && obj instanceof Folder) {
-				Folder childFolder = (Folder) obj;
-				if (childFolder.getParentIds().contains(folder.getId())) {
-					folderChildren.add(childFolder);
-				}
+			if (obj instanceof Folder && hasReadAccess(user, obj)) {
+				folderChildren.add((Folder) obj);
 			}
 		}
 		sortFolderList(folderChildren);
@@ -836,14 +1366,18 @@ public class ObjectStoreImpl implements ObjectStore {
 
 	public void move(StoredObject so, Folder oldParent, Folder newParent,
 			String user) {
-		if (hasChild(newParent, so.getName())) {
-			throw new CmisInvalidArgumentException("Cannot move object "
-					+ so.getName() + " to folder "
-					+ getFolderPath(newParent.getId())
-					+ ". A child with this name already exists.");
-		}
+		String[] objectIds = { so.getId() };
+		String[] parentIds = { oldParent.getId(), newParent.getId() };
+		fLockManager.lock(objectIds, parentIds);
+		boolean reserved = false;
 		try {
-			lock();
+			if (!reserveChildName(newParent, so.getName())) {
+				throw new CmisInvalidArgumentException("Cannot move object "
+						+ so.getName() + " to folder "
+						+ getFolderPath(newParent.getId())
+						+ ". A child with this name already exists.");
+			}
+			reserved = true;
 			if (so instanceof MultiFiling) {
 				MultiFiling fi = (MultiFiling) so;
 				// physical move
@@ -851,57 +1385,69 @@ public class ObjectStoreImpl implements ObjectStore {
 				addParentIntern(fi, newParent);
 				removeParentIntern(fi, oldParent);
 			} else if (so instanceof FolderImpl) {
-				// remove MapEntry with old path
-				fStoredObjectMap.remove(((FolderImpl) so).getPath());
+				removeChild(oldParent.getId(), so);
 				((FolderImpl) so).setParentId(newParent.getId());
-				fStoredObjectMap.put(((FolderImpl) so).getPath(), so);
+				addChild(newParent.getId(), so);
+				invalidatePaths((FolderImpl) so);
 			}
+			fModificationCount.incrementAndGet();
 		} catch (IOException e) {
-			LOG.error("Could not move object", e);
+			throw new CmisStorageException("Could not move object "
+					+ so.getName() + ": " + e.getMessage(), e);
 		} finally {
-			unlock();
+			if (reserved) {
+				releaseChildName(newParent, so.getName());
+			}
+			fLockManager.unlock(objectIds, parentIds);
 		}
 	}
 
 	public void rename(StoredObject so, String newName, String user) {
+		String[] objectIds = { so.getId() };
+		String[] parentIds = so instanceof Fileable ? ((Fileable) so)
+				.getParentIds().toArray(NO_IDS) : NO_IDS;
+		fLockManager.lock(objectIds, parentIds);
 		try {
-			lock();
 			if (so.getId().equals(fRootFolder.getId())) {
 				throw new CmisInvalidArgumentException(
 						"Root folder cannot be renamed.");
 			}
 			if (so instanceof Fileable) {
-				for (String folderId : ((Fileable) so).getParentIds()) {
-					Folder folder = (Folder) getObjectById(folderId);
-					if (hasChild(folder, newName)) {
-						throw new CmisNameConstraintViolationException(
-								"Cannot rename object to "
-										+ newName
-										+ ". This path already exists in parent "
-										+ getFolderPath(folder.getId()) + ".");
+				List<Folder> reserved = new ArrayList<Folder>(parentIds.length);
+				try {
+					for (String folderId : parentIds) {
+						Folder folder = (Folder) getObjectById(folderId);
+						if (!reserveChildName(folder, newName)) {
+							throw new CmisNameConstraintViolationException(
+									"Cannot rename object to "
+											+ newName
+											+ ". This path already exists in parent "
+											+ getFolderPath(folder.getId()) + ".");
+						}
+						reserved.add(folder);
+					}
+					String oldName = so.getName();
+					so.setName(newName);
+					for (String folderId : parentIds) {
+						renameChild(folderId, so, oldName, newName);
+					}
+					if (so instanceof FolderImpl) {
+						invalidatePaths((FolderImpl) so);
+					}
+				} finally {
+					for (Folder folder : reserved) {
+						releaseChildName(folder, newName);
 					}
 				}
-				// remove by old path
-				fStoredObjectMap.remove(((Fileable) so).getPath());
+			} else {
+				so.setName(newName);
 			}
-			so.setName(newName);
-			// add by new path
-			fStoredObjectMap.put(((Fileable) so).getPath(), so);
+			fModificationCount.incrementAndGet();
 		} finally {
-			unlock();
+			fLockManager.unlock(objectIds, parentIds);
 		}
 	}
 
-	private boolean hasChild(Folder folder, String name) {
-		List<Fileable> children = getChildren(folder);
-		for (Fileable child : children) {
-			if (child.getName().equals(name)) {
-				return true;
-			}
-		}
-		return false;
-	}
-
 	public List<String> getParentIds(StoredObject so, String user) {
 		List<String> visibleParents = new ArrayList<String>();
 		if (!(so instanceof Fileable)) {
@@ -958,18 +1504,15 @@ public class ObjectStoreImpl implements ObjectStore {
 		if (null != principalId && principalId.equals(ADMIN_PRINCIPAL_ID)) {
 			return true;
 		}
-		List<Integer> aclIds = getAllAclsForUser(principalId, permission);
-		return so == null ? false : aclIds.contains(((StoredObjectImpl) so).getAclId());
+		if (so == null) {
+			return false;
+		}
+		return fAclRegistry.hasPermission(((StoredObjectImpl) so).getAclId(),
+				principalId, permission);
 	}
 
 	private InMemoryAcl getInMemoryAcl(int aclId) {
-
-		for (InMemoryAcl acl : fAcls) {
-			if (aclId == acl.getId()) {
-				return acl;
-			}
-		}
-		return null;
+		return fAclRegistry.get(aclId);
 	}
 
 	private int setAcl(StoredObjectImpl so, Acl acl) {
@@ -983,51 +1526,23 @@ public class ObjectStoreImpl implements ObjectStore {
 		return aclId;
 	}
 
-	/**
-	 * Check if an Acl is already known.
-	 * 
-	 * @param acl
-	 *            acl to be checked
-	 * @return 0 if Acl is not known, id of Acl otherwise
-	 */
-	private int hasAcl(InMemoryAcl acl) {
-		for (InMemoryAcl acl2 : fAcls) {
-			if (acl2.equals(acl)) {
-				return acl2.getId();
-			}
-		}
-		return -1;
-	}
-
 	private int addAcl(InMemoryAcl acl) {
-		int aclId = -1;
-
 		if (null == acl) {
 			return 0;
 		}
-
-		lock();
-		try {
-			aclId = hasAcl(acl);
-			if (aclId < 0) {
-				aclId = getNextAclId();
-				acl.setId(aclId);
-				fAcls.add(acl);
-			}
-		} finally {
-			unlock();
-		}
-		return aclId;
+		return fAclRegistry.add(acl);
 	}
 
 	private Acl applyAcl(StoredObject so, Acl acl) {
 		int aclId = setAcl((StoredObjectImpl) so, acl);
+		fModificationCount.incrementAndGet();
 		return getAcl(aclId);
 	}
 
 	private Acl applyAcl(StoredObject so, Acl addAces, Acl removeAces) {
 		int aclId = getAclId((StoredObjectImpl) so, addAces, removeAces);
 		((StoredObjectImpl) so).setAclId(aclId);
+		fModificationCount.incrementAndGet();
 		return getAcl(aclId);
 	}
 
@@ -1077,43 +1592,17 @@ public class ObjectStoreImpl implements ObjectStore {
 		return result;
 	}
 
-	private List<StoredObject> getAllRelationships(String objectId,
-			RelationshipDirection direction) {
-
-		List<StoredObject> res = new ArrayList<StoredObject>();
-
-		for (StoredObject so : fStoredObjectMap.values()) {
-			if (so instanceof Relationship) {
-				Relationship ro = (Relationship) so;
-				if (ro.getSourceObjectId().equals(objectId)
-						&& (RelationshipDirection.EITHER == direction || RelationshipDirection.SOURCE == direction)) {
-					res.add(so);
-				} else if (ro.getTargetObjectId().equals(objectId)
-						&& (RelationshipDirection.EITHER == direction || RelationshipDirection.TARGET == direction)) {
-					res.add(so);
-				}
-			}
-		}
-		return res;
-	}
-
 	public boolean isTypeInUse(String typeId) {
-		// iterate over all the objects and check for each if the type matches
-		for (String objectId : getIds()) {
-			StoredObject so = getObjectById(objectId);
-			if (so.getTypeId().equals(typeId)
-					|| (so.getSecondaryTypeIds() != null && so
-							.getSecondaryTypeIds().contains(typeId))) {
-				return true;
-			}
-		}
-		return false;
+		return fSecondaryTypeIndex.isUsed(typeId)
+				|| getObjectCount(Collections.singleton(typeId)) > 0;
 	}
 
 	public void addParent(StoredObject so, Folder parent) {
+		String[] objectIds = { so.getId() };
+		String[] parentIds = { parent.getId() };
+		fLockManager.lock(objectIds, parentIds);
 		try {
-			lock();
-			if (hasChild(parent, so.getName())) {
+			if (!reserveChildName(parent, so.getName())) {
 				throw new IllegalArgumentException(
 						"Cannot assign new parent folder, this name already exists in target folder.");
 			}
@@ -1121,19 +1610,23 @@ public class ObjectStoreImpl implements ObjectStore {
 			if (so instanceof MultiFiling) {
 				mfi = (MultiFiling) so;
 			} else {
+				releaseChildName(parent, so.getName());
 				throw new IllegalArgumentException("Object " + so.getId()
 						+ "is not fileable");
 			}
 
 			addParentIntern(mfi, parent);
+			releaseChildName(parent, so.getName());
 		} finally {
-			unlock();
+			fLockManager.unlock(objectIds, parentIds);
 		}
 	}
 
 	public void removeParent(StoredObject so, Folder parent) {
+		String[] objectIds = { so.getId() };
+		String[] parentIds = { parent.getId() };
+		fLockManager.lock(objectIds, parentIds);
 		try {
-			lock();
 			MultiFiling mfi;
 			if (so instanceof MultiFiling) {
 				mfi = (MultiFiling) so;
@@ -1144,16 +1637,29 @@ public class ObjectStoreImpl implements ObjectStore {
 
 			removeParentIntern(mfi, parent);
 		} finally {
-			unlock();
+			fLockManager.unlock(objectIds, parentIds);
 		}
 	}
 
 	private void addParentIntern(MultiFiling so, Folder parent) {
 		so.addParentId(parent.getId());
+		addChild(parent.getId(), (StoredObject) so);
+		fModificationCount.incrementAndGet();
 	}
 
 	private void removeParentIntern(MultiFiling so, Folder parent) {
+		removeChild(parent.getId(), (StoredObject) so);
 		so.removeParentId(parent.getId());
+		fModificationCount.incrementAndGet();
+	}
+
+	// versions share the parents of their versioned document which is the
+	// object registered in the children index
+	private static String getFiledObjectId(StoredObject so) {
+		if (so instanceof DocumentVersion) {
+			return ((DocumentVersion) so).getParentDocument().getId();
+		}
+		return so.getId();
 	}
 
 	private static void sortFolderList(List<? extends StoredObject> list) {
@@ -1243,6 +1749,9 @@ public class ObjectStoreImpl implements ObjectStore {
 					}
 				}
 				content.setContent(newContent);
+				// indexed when the object is stored, the content file may
+				// still be rewritten until then
+				fModificationCount.incrementAndGet();
 				return newContent;
 
 			} else {
@@ -1270,6 +1779,8 @@ public class ObjectStoreImpl implements ObjectStore {
 							"Failed to append content: IO Exception", e);
 				}
 			}
+			fFullTextIndex.update(so);
+			fModificationCount.incrementAndGet();
 		} else {
 			throw new CmisInvalidArgumentException(
 					"Cannot set content, object does not implement interface Content.");
@@ -0,0 +1,459 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.storedobj.impl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+
+/**
+ * Secondary index on the values of one custom property. The index maps each
+ * value to the ids of the objects having this value, for multi-value
+ * properties each value of an object is indexed. A hash index answers
+ * equality lookups, a sorted index additionally answers range lookups.
+ * <p>
+ * Values are indexed by a normalized key so that a query literal finds the
+ * values it compares equal to: all numbers become a {@link BigDecimal}
+ * without trailing zeros and dates their time in milliseconds.
+ * <p>
+ * The index also serves as statistics of the property for the query planner:
+ * the number of objects per value is exact, a range of a sorted index is
+ * estimated from an equi-depth histogram that is rebuilt after a tenth of the
+ * indexed objects changed.
+ * <p>
+ * Only properties held in the property map of an object can be indexed,
+ * system properties like cmis:name are not. Lookups do not lock, updates of
+ * the index are serialized.
+ */
+public class PropertyIndex {
+
+    private static final Object[] NO_KEYS = new Object[0];
+    private static final int HISTOGRAM_BUCKETS = 32;
+    private static final int MIN_CHANGES_FOR_HISTOGRAM = 64;
+
+    /**
+     * Orders keys of different classes by class name, so that a sorted index
+     * survives an inconsistent property type.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final Comparator<Object> KEY_ORDER = new Comparator<Object>() {
+        public int compare(Object o1, Object o2) {
+            if (o1.getClass() != o2.getClass()) {
+                return o1.getClass().getName().compareTo(o2.getClass().getName());
+            }
+            return ((Comparable) o1).compareTo(o2);
+        }
+    };
+
+    private final String fPropertyId;
+    private final boolean fSorted;
+    private final ConcurrentMap<Object, Set<String>> fIdsByKey;
+    private final Map<String, Object[]> fKeysById = new ConcurrentHashMap<String, Object[]>();
+    private volatile boolean fComplete;
+    private volatile int fDistinctCount;
+    private volatile int fChanges;
+    private volatile Histogram fHistogram;
+
+    /**
+     * Create an empty index.
+     *
+     * @param propertyId
+     *            id of the indexed property
+     * @param sorted
+     *            true to support range lookups
+     */
+    public PropertyIndex(String propertyId, boolean sorted) {
+        fPropertyId = propertyId;
+        fSorted = sorted;
+        if (sorted) {
+            fIdsByKey = new ConcurrentSkipListMap<Object, Set<String>>(KEY_ORDER);
+        } else {
+            fIdsByKey = new ConcurrentHashMap<Object, Set<String>>();
+        }
+    }
+
+    public String getPropertyId() {
+        return fPropertyId;
+    }
+
+    public boolean isSorted() {
+        return fSorted;
+    }
+
+    /**
+     * Check if the index contains all objects of the store.
+     *
+     * @return false while the index is being built
+     */
+    public boolean isComplete() {
+        return fComplete;
+    }
+
+    void setComplete() {
+        fComplete = true;
+    }
+
+    /**
+     * Get the number of indexed objects.
+     *
+     * @return number of objects having a value for the property
+     */
+    public int size() {
+        return fKeysById.size();
+    }
+
+    /**
+     * Get the number of distinct values.
+     *
+     * @return number of values having at least one object
+     */
+    public int getDistinctCount() {
+        return fDistinctCount;
+    }
+
+    /**
+     * Index the current values of an object, replacing the values indexed
+     * before.
+     *
+     * @param so
+     *            object to index
+     */
+    public synchronized void update(StoredObject so) {
+        String id = so.getId();
+        Object[] keys = getKeys(so);
+        Object[] oldKeys = keys.length == 0 ? fKeysById.remove(id) : fKeysById.put(id, keys);
+        if (null != oldKeys) {
+            for (Object key : oldKeys) {
+                removeId(key, id);
+            }
+        }
+        for (Object key : keys) {
+            Set<String> ids = fIdsByKey.get(key);
+            if (null == ids) {
+                ids = ConcurrentHashMap.<String> newKeySet();
+                fIdsByKey.put(key, ids);
+                fDistinctCount++;
+            }
+            ids.add(id);
+        }
+        fChanges++;
+    }
+
+    /**
+     * Remove an object from the index.
+     *
+     * @param id
+     *            id of the object
+     */
+    public synchronized void remove(String id) {
+        Object[] oldKeys = fKeysById.remove(id);
+        if (null != oldKeys) {
+            for (Object key : oldKeys) {
+                removeId(key, id);
+            }
+            fChanges++;
+        }
+    }
+
+    public synchronized void clear() {
+        fIdsByKey.clear();
+        fKeysById.clear();
+        fDistinctCount = 0;
+        fHistogram = null;
+    }
+
+    /**
+     * Get the ids of the objects having one of the given values.
+     *
+     * @param values
+     *            values to look up
+     * @return ids of the matching objects
+     */
+    public Set<String> getIds(Collection<?> values) {
+        Set<String> res = new HashSet<String>();
+        for (Object value : values) {
+            Set<String> ids = getIds(value);
+            res.addAll(ids);
+        }
+        return res;
+    }
+
+    /**
+     * Get the ids of the objects having a value.
+     *
+     * @param value
+     *            value to look up, a property value or a query literal
+     * @return ids of the matching objects, a view that must not be modified
+     */
+    public Set<String> getIds(Object value) {
+        Object key = toKey(value);
+        Set<String> ids = null == key ? null : fIdsByKey.get(key);
+        return null == ids ? Collections.<String> emptySet() : ids;
+    }
+
+    /**
+     * Get the ids of the objects having a value in a range. Only supported by
+     * a sorted index.
+     *
+     * @param lower
+     *            lower bound or null if unbounded
+     * @param lowerInclusive
+     *            true if the lower bound is included
+     * @param upper
+     *            upper bound or null if unbounded
+     * @param upperInclusive
+     *            true if the upper bound is included
+     * @return ids of the matching objects
+     */
+    public Set<String> getIds(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        if (!fSorted) {
+            throw new IllegalStateException("Range lookups require a sorted index on " + fPropertyId);
+        }
+        NavigableMap<Object, Set<String>> range = (NavigableMap<Object, Set<String>>) fIdsByKey;
+        Object lowerKey = toKey(lower);
+        Object upperKey = toKey(upper);
+        if (null != lowerKey && null != upperKey) {
+            if (KEY_ORDER.compare(lowerKey, upperKey) > 0) {
+                return Collections.emptySet();
+            }
+            range = range.subMap(lowerKey, lowerInclusive, upperKey, upperInclusive);
+        } else if (null != lowerKey) {
+            range = range.tailMap(lowerKey, lowerInclusive);
+        } else if (null != upperKey) {
+            range = range.headMap(upperKey, upperInclusive);
+        }
+        Set<String> res = new HashSet<String>();
+        for (Set<String> ids : range.values()) {
+            res.addAll(ids);
+        }
+        return res;
+    }
+
+    /**
+     * Estimate the number of objects having a value in a range. Only
+     * supported by a sorted index.
+     *
+     * @param lower
+     *            lower bound or null if unbounded
+     * @param lowerInclusive
+     *            true if the lower bound is included
+     * @param upper
+     *            upper bound or null if unbounded
+     * @param upperInclusive
+     *            true if the upper bound is included
+     * @return estimated number of matching objects
+     */
+    public double estimateCount(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        if (!fSorted) {
+            throw new IllegalStateException("Range estimates require a sorted index on " + fPropertyId);
+        }
+        Histogram histogram = getHistogram();
+        Object lowerKey = toKey(lower);
+        Object upperKey = toKey(upper);
+        double below = null == lowerKey ? 0 : histogram.countBelow(lowerKey, !lowerInclusive);
+        double upTo = null == upperKey ? histogram.total : histogram.countBelow(upperKey, upperInclusive);
+        return Math.max(0, upTo - below);
+    }
+
+    private Histogram getHistogram() {
+        Histogram histogram = fHistogram;
+        if (isStale(histogram)) {
+            synchronized (this) {
+                // rebuilt by another query meanwhile, or changed since
+                histogram = fHistogram;
+                if (isStale(histogram)) {
+                    fChanges = 0;
+                    histogram = new Histogram((NavigableMap<Object, Set<String>>) fIdsByKey);
+                    fHistogram = histogram;
+                }
+            }
+        }
+        return histogram;
+    }
+
+    private boolean isStale(Histogram histogram) {
+        return null == histogram || fChanges > Math.max(MIN_CHANGES_FOR_HISTOGRAM, histogram.total / 10);
+    }
+
+    private void removeId(Object key, String id) {
+        Set<String> ids = fIdsByKey.get(key);
+        if (null != ids) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                fIdsByKey.remove(key);
+                fDistinctCount--;
+            }
+        }
+    }
+
+    private Object[] getKeys(StoredObject so) {
+        PropertyData<?> pd = so.getProperties() == null ? null : so.getProperties().get(fPropertyId);
+        if (null == pd || null == pd.getValues() || pd.getValues().isEmpty()) {
+            return NO_KEYS;
+        }
+        List<?> values = pd.getValues();
+        Set<Object> keys = new HashSet<Object>(values.size());
+        for (Object value : values) {
+            Object key = toKey(value);
+            if (null != key) {
+                keys.add(key);
+            }
+        }
+        return keys.toArray();
+    }
+
+    /**
+     * Normalize a property value or query literal.
+     *
+     * @param value
+     *            value to normalize
+     * @return the key or null if the value cannot be indexed
+     */
+    static Object toKey(Object value) {
+        if (value instanceof String || value instanceof Boolean) {
+            return value;
+        } else if (value instanceof BigDecimal) {
+            return normalize((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            return normalize(new BigDecimal((BigInteger) value));
+        } else if (value instanceof Long || value instanceof Integer) {
+            return normalize(BigDecimal.valueOf(((Number) value).longValue()));
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return Double.isNaN(d) || Double.isInfinite(d) ? null : normalize(BigDecimal.valueOf(d));
+        } else if (value instanceof GregorianCalendar) {
+            return ((GregorianCalendar) value).getTimeInMillis();
+        }
+        return null;
+    }
+
+    private static BigDecimal normalize(BigDecimal value) {
+        return value.signum() == 0 ? BigDecimal.ZERO : value.stripTrailingZeros();
+    }
+
+    /**
+     * Equi-depth histogram of a sorted index: each bucket holds about the
+     * same number of objects and is described by its largest key and the
+     * number of objects up to this key. Within a bucket numbers and dates are
+     * assumed to be evenly distributed.
+     */
+    private static final class Histogram {
+        private final Object[] bounds;
+        private final long[] cumulative;
+        private final Object min;
+        private final long total;
+
+        Histogram(NavigableMap<Object, Set<String>> idsByKey) {
+            long count = 0;
+            for (Set<String> ids : idsByKey.values()) {
+                count += ids.size();
+            }
+            long depth = Math.max(1, (count + HISTOGRAM_BUCKETS - 1) / HISTOGRAM_BUCKETS);
+            List<Object> keys = new ArrayList<Object>(HISTOGRAM_BUCKETS + 1);
+            List<Long> counts = new ArrayList<Long>(HISTOGRAM_BUCKETS + 1);
+            Object first = null;
+            Object last = null;
+            long sum = 0;
+            for (Map.Entry<Object, Set<String>> entry : idsByKey.entrySet()) {
+                if (null == first) {
+                    first = entry.getKey();
+                }
+                last = entry.getKey();
+                sum += entry.getValue().size();
+                if (sum >= (counts.size() + 1) * depth) {
+                    keys.add(last);
+                    counts.add(sum);
+                }
+            }
+            if (null != last && (keys.isEmpty() || keys.get(keys.size() - 1) != last)) {
+                keys.add(last);
+                counts.add(sum);
+            }
+            bounds = keys.toArray();
+            cumulative = new long[counts.size()];
+            for (int i = 0; i < cumulative.length; i++) {
+                cumulative[i] = counts.get(i);
+            }
+            min = first;
+            total = sum;
+        }
+
+        /*
+         * Estimate the number of objects with a key smaller than the given
+         * one, or equal to it if inclusive.
+         */
+        double countBelow(Object key, boolean inclusive) {
+            int lo = 0;
+            int hi = bounds.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (KEY_ORDER.compare(bounds[mid], key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (lo == bounds.length) {
+                return total;
+            }
+            long before = lo == 0 ? 0 : cumulative[lo - 1];
+            long inBucket = cumulative[lo] - before;
+            if (KEY_ORDER.compare(bounds[lo], key) == 0) {
+                return inclusive ? cumulative[lo] : cumulative[lo] - Math.min(inBucket, Math.max(1, inBucket / 2));
+            }
+            return before + inBucket * fraction(lo == 0 ? min : bounds[lo - 1], bounds[lo], key);
+        }
+
+        private static double fraction(Object from, Object to, Object key) {
+            if (KEY_ORDER.compare(key, from) <= 0) {
+                return 0;
+            }
+            double start;
+            double end;
+            double value;
+            if (from instanceof BigDecimal && to instanceof BigDecimal && key instanceof BigDecimal) {
+                start = ((BigDecimal) from).doubleValue();
+                end = ((BigDecimal) to).doubleValue();
+                value = ((BigDecimal) key).doubleValue();
+            } else if (from instanceof Long && to instanceof Long && key instanceof Long) {
+                start = (Long) from;
+                end = (Long) to;
+                value = (Long) key;
+            } else {
+                return 0.5;
+            }
+            return end > start ? Math.min(1, (value - start) / (end - start)) : 0.5;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.storedobj.impl;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.chemistry.opencmis.commons.enums.RelationshipDirection;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.Relationship;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+
+/**
+ * Adjacency lists of the relationships in an object store. For each object
+ * the ids of the relationships having this object as source and as target are
+ * kept, partitioned by relationship type. Looking up the relationships of an
+ * object therefore only costs as much as the number of its relationships.
+ * <p>
+ * All modifications of the entries of one object are done atomically inside
+ * the concurrent map, readers can iterate without locking.
+ */
+class RelationshipIndex {
+
+    private final Map<String, Map<String, Set<String>>> fBySource = new ConcurrentHashMap<String, Map<String, Set<String>>>();
+    private final Map<String, Map<String, Set<String>>> fByTarget = new ConcurrentHashMap<String, Map<String, Set<String>>>();
+
+    /**
+     * Register a stored relationship.
+     *
+     * @param rel
+     *            relationship, must have an id
+     */
+    void add(StoredObject rel) {
+        Relationship ro = (Relationship) rel;
+        add(fBySource, ro.getSourceObjectId(), rel.getTypeId(), rel.getId());
+        add(fByTarget, ro.getTargetObjectId(), rel.getTypeId(), rel.getId());
+    }
+
+    /**
+     * Unregister a relationship that is removed from the store.
+     *
+     * @param rel
+     *            relationship to remove
+     */
+    void remove(StoredObject rel) {
+        Relationship ro = (Relationship) rel;
+        remove(fBySource, ro.getSourceObjectId(), rel.getTypeId(), rel.getId());
+        remove(fByTarget, ro.getTargetObjectId(), rel.getTypeId(), rel.getId());
+    }
+
+    void clear() {
+        fBySource.clear();
+        fByTarget.clear();
+    }
+
+    /**
+     * Get the ids of the relationships of an object.
+     *
+     * @param objectId
+     *            id of the source or target object
+     * @param typeIds
+     *            relationship types to include, all types if null or empty
+     * @param direction
+     *            direction of the relationships
+     * @return ids of the matching relationships, each id only once
+     */
+    Set<String> getRelationshipIds(String objectId, List<String> typeIds, RelationshipDirection direction) {
+        Set<String> res = new LinkedHashSet<String>();
+        if (RelationshipDirection.EITHER == direction || RelationshipDirection.SOURCE == direction) {
+            collect(fBySource.get(objectId), typeIds, res);
+        }
+        if (RelationshipDirection.EITHER == direction || RelationshipDirection.TARGET == direction) {
+            collect(fByTarget.get(objectId), typeIds, res);
+        }
+        return res;
+    }
+
+    private static void collect(Map<String, Set<String>> byType, List<String> typeIds, Set<String> res) {
+        if (null == byType) {
+            return;
+        }
+        if (null == typeIds || typeIds.isEmpty()) {
+            for (Collection<String> ids : byType.values()) {
+                res.addAll(ids);
+            }
+        } else {
+            for (String typeId : typeIds) {
+                Set<String> ids = byType.get(typeId);
+                if (null != ids) {
+                    res.addAll(ids);
+                }
+            }
+        }
+    }
+
+    private static void add(Map<String, Map<String, Set<String>>> index, String objectId, String typeId,
+            final String relId) {
+        if (null == objectId || null == typeId) {
+            return;
+        }
+        index.compute(objectId, (k, byType) -> {
+            if (null == byType) {
+                byType = new ConcurrentHashMap<String, Set<String>>();
+            }
+            byType.computeIfAbsent(typeId, t -> ConcurrentHashMap.<String> newKeySet()).add(relId);
+            return byType;
+        });
+    }
+
+    private static void remove(Map<String, Map<String, Set<String>>> index, String objectId, String typeId,
+            final String relId) {
+        if (null == objectId || null == typeId) {
+            return;
+        }
+        index.computeIfPresent(objectId, (k, byType) -> {
+            Set<String> ids = byType.get(typeId);
+            if (null != ids) {
+                ids.remove(relId);
+                if (ids.isEmpty()) {
+                    byType.remove(typeId);
+                }
+            }
+            return byType.isEmpty() ? null : byType;
+        });
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.storedobj.impl;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+
+/**
+ * Index from a secondary type id to the ids of the objects having this
+ * secondary type applied. A query on a secondary type only looks at these
+ * objects instead of checking the types of all objects.
+ * <p>
+ * Lookups do not lock, updates of the index are serialized.
+ */
+class SecondaryTypeIndex {
+
+    private static final String[] NO_TYPES = new String[0];
+
+    private final Map<String, Set<String>> fByType = new ConcurrentHashMap<String, Set<String>>();
+    private final Map<String, String[]> fTypesByObject = new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * Index the secondary types of a stored or changed object.
+     *
+     * @param so
+     *            object, must have an id
+     */
+    synchronized void update(StoredObject so) {
+        List<String> typeIds = so.getSecondaryTypeIds();
+        String[] newTypes = null == typeIds ? NO_TYPES : typeIds.toArray(NO_TYPES);
+        String[] oldTypes = fTypesByObject.get(so.getId());
+        if (null != oldTypes) {
+            for (String typeId : oldTypes) {
+                removeId(typeId, so.getId());
+            }
+        }
+        for (String typeId : newTypes) {
+            fByType.computeIfAbsent(typeId, t -> ConcurrentHashMap.<String> newKeySet()).add(so.getId());
+        }
+        if (newTypes.length == 0) {
+            fTypesByObject.remove(so.getId());
+        } else {
+            fTypesByObject.put(so.getId(), newTypes);
+        }
+    }
+
+    /**
+     * Remove an object from the index.
+     *
+     * @param id
+     *            id of the removed object
+     */
+    synchronized void remove(String id) {
+        String[] oldTypes = fTypesByObject.remove(id);
+        if (null != oldTypes) {
+            for (String typeId : oldTypes) {
+                removeId(typeId, id);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        fByType.clear();
+        fTypesByObject.clear();
+    }
+
+    /**
+     * Get the objects having one of the given secondary types.
+     *
+     * @param typeIds
+     *            ids of secondary types
+     * @return ids of the objects
+     */
+    Set<String> getIds(Collection<String> typeIds) {
+        Set<String> res = new HashSet<String>();
+        for (String typeId : typeIds) {
+            Set<String> ids = fByType.get(typeId);
+            if (null != ids) {
+                res.addAll(ids);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Count the objects having one of the given secondary types.
+     *
+     * @param typeIds
+     *            ids of secondary types
+     * @return number of objects, an object with several of the types is
+     *         counted for each
+     */
+    int count(Collection<String> typeIds) {
+        int res = 0;
+        for (String typeId : typeIds) {
+            Set<String> ids = fByType.get(typeId);
+            if (null != ids) {
+                res += ids.size();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return true if an object has the given secondary type
+     */
+    boolean isUsed(String typeId) {
+        Set<String> ids = fByType.get(typeId);
+        return null != ids && !ids.isEmpty();
+    }
+
+    private void removeId(String typeId, String id) {
+        Set<String> ids = fByType.get(typeId);
+        if (null != ids) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                fByType.remove(typeId);
+            }
+        }
+    }
+}
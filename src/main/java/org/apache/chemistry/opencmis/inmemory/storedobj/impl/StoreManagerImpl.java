@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.chemistry.opencmis.commons.data.ExtensionsData;
 import org.apache.chemistry.opencmis.commons.data.ObjectList;
 import org.apache.chemistry.opencmis.commons.data.PermissionMapping;
 import org.apache.chemistry.opencmis.commons.data.RepositoryInfo;
@@ -66,6 +67,9 @@ import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
 import org.apache.chemistry.opencmis.inmemory.TypeCreator;
 import org.apache.chemistry.opencmis.inmemory.TypeManagerImpl;
 import org.apache.chemistry.opencmis.inmemory.query.InMemoryQueryProcessor;
+import org.apache.chemistry.opencmis.inmemory.query.QueryCursorCache;
+import org.apache.chemistry.opencmis.inmemory.query.QueryPlanCache;
+import org.apache.chemistry.opencmis.inmemory.query.QueryProfile;
 import org.apache.chemistry.opencmis.inmemory.server.InMemoryServiceContext;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.CmisServiceValidator;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.ObjectStore;
@@ -123,6 +127,18 @@ public class StoreManagerImpl implements StoreManager {
      * Map from repository id to a object store.
      */
     private final Map<String, ObjectStore> fMapRepositoryToObjectStore = new HashMap<String, ObjectStore>();
+
+    /**
+     * Map from repository id to the cache of parsed queries, no entry if
+     * queries are not cached.
+     */
+    private final Map<String, QueryPlanCache> fMapRepositoryToQueryPlanCache = new HashMap<String, QueryPlanCache>();
+
+    /**
+     * Map from repository id to the cursors of queries, no entry if each
+     * page runs the query again.
+     */
+    private final Map<String, QueryCursorCache> fMapRepositoryToQueryCursorCache = new HashMap<String, QueryCursorCache>();
     
     public ObjectStoreImpl getStore(String repositoryId) {
         return (ObjectStoreImpl) fMapRepositoryToObjectStore.get(repositoryId);
@@ -177,11 +193,52 @@ public class StoreManagerImpl implements StoreManager {
     private void internalInit(String repositoryId, Map<String, String> parameters){
 
     	fMapRepositoryToTypeManager.put(repositoryId, new TypeManagerImpl());
-    	fMapRepositoryToObjectStore.put(repositoryId, 
-    			new ObjectStoreImpl(repositoryId, parameters.get(ConfigConstants.TEMP_DIR), new FilePersistence(
-    					fMapRepositoryToTypeManager.get(repositoryId))));
+    	ObjectStoreImpl objStore = new ObjectStoreImpl(repositoryId, parameters.get(ConfigConstants.TEMP_DIR),
+    			new FilePersistence(fMapRepositoryToTypeManager.get(repositoryId)));
+    	addPropertyIndexes(objStore, parameters.get(ConfigConstants.HASH_INDEXES), false);
+    	addPropertyIndexes(objStore, parameters.get(ConfigConstants.SORTED_INDEXES), true);
+    	String parallelQueryThreshold = parameters.get(ConfigConstants.PARALLEL_QUERY_THRESHOLD);
+    	if (null != parallelQueryThreshold) {
+    		objStore.setParallelQueryThreshold(Integer.parseInt(parallelQueryThreshold.trim()));
+    	}
+    	String exactQueryCount = parameters.get(ConfigConstants.QUERY_EXACT_COUNT);
+    	if (null != exactQueryCount) {
+    		objStore.setExactQueryCount(Boolean.parseBoolean(exactQueryCount.trim()));
+    	}
+    	String profileQueries = parameters.get(ConfigConstants.QUERY_PROFILE);
+    	if (null != profileQueries) {
+    		objStore.setProfileQueries(Boolean.parseBoolean(profileQueries.trim()));
+    	}
+    	String slowQueryThreshold = parameters.get(ConfigConstants.SLOW_QUERY_THRESHOLD);
+    	if (null != slowQueryThreshold) {
+    		objStore.setSlowQueryThreshold(Long.parseLong(slowQueryThreshold.trim()));
+    	}
+    	fMapRepositoryToObjectStore.put(repositoryId, objStore);
+    	String planCacheSize = parameters.get(ConfigConstants.QUERY_PLAN_CACHE_SIZE);
+    	int maxPlans = null == planCacheSize ? QueryPlanCache.DEFAULT_SIZE : Integer.parseInt(planCacheSize.trim());
+    	if (maxPlans > 0) {
+    		fMapRepositoryToQueryPlanCache.put(repositoryId,
+    				new QueryPlanCache(fMapRepositoryToTypeManager.get(repositoryId), maxPlans));
+    	}
+    	String cursorTtl = parameters.get(ConfigConstants.QUERY_CURSOR_TTL);
+    	long cursorSeconds = null == cursorTtl ? 0 : Long.parseLong(cursorTtl.trim());
+    	if (cursorSeconds > 0) {
+    		boolean strict = Boolean.parseBoolean(parameters.get(ConfigConstants.QUERY_CURSOR_STRICT));
+    		fMapRepositoryToQueryCursorCache.put(repositoryId, new QueryCursorCache(cursorSeconds * 1000, strict));
+    	}
         fMapRepositoryToInfo.put(repositoryId, createRepositoryInfo(repositoryId, parameters));
     }
+
+    private static void addPropertyIndexes(ObjectStoreImpl objStore, String propertyIds, boolean sorted) {
+        if (null == propertyIds) {
+            return;
+        }
+        for (String propertyId : propertyIds.split(",")) {
+            if (propertyId.trim().length() > 0) {
+                objStore.addPropertyIndex(propertyId.trim(), sorted);
+            }
+        }
+    }
     
     
     public ObjectStore getObjectStore(String repositoryId) {
@@ -606,14 +663,37 @@ public class StoreManagerImpl implements StoreManager {
     
     public ObjectList query(String user, String repositoryId, String statement, Boolean searchAllVersions,
             Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
-            BigInteger maxItems, BigInteger skipCount) {
+            BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
         TypeManager tm = getTypeManager(repositoryId);
         ObjectStore objectStore = getObjectStore(repositoryId);
 
-        InMemoryQueryProcessor queryProcessor = new InMemoryQueryProcessor(getStore(repositoryId));
+        InMemoryQueryProcessor queryProcessor = new InMemoryQueryProcessor(getStore(repositoryId),
+                fMapRepositoryToQueryPlanCache.get(repositoryId), fMapRepositoryToQueryCursorCache.get(repositoryId));
+        queryProcessor.setProfileRequested(QueryProfile.isRequested(extension));
         ObjectList objList = queryProcessor.query(tm, objectStore, user, repositoryId, statement, searchAllVersions,
                 includeAllowableActions, includeRelationships, renditionFilter, maxItems, skipCount);
 
         return objList;
     }
+
+    /**
+     * Run a query and describe the plan chosen for it with the estimated and
+     * actual number of objects.
+     * 
+     * @param user
+     *            user executing the query
+     * @param repositoryId
+     *            id of the repository
+     * @param statement
+     *            query statement
+     * @param searchAllVersions
+     *            search in all versions of documents
+     * @return the description of the plan
+     */
+    public String explainQuery(String user, String repositoryId, String statement, Boolean searchAllVersions) {
+        InMemoryQueryProcessor queryProcessor = new InMemoryQueryProcessor(getStore(repositoryId),
+                fMapRepositoryToQueryPlanCache.get(repositoryId));
+        return queryProcessor.explain(getTypeManager(repositoryId), getObjectStore(repositoryId), user, statement,
+                searchAllVersions);
+    }
 }
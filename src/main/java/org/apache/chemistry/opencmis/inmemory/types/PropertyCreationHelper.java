@@ -272,6 +272,13 @@ public final class PropertyCreationHelper {
     public static Properties getPropertiesFromObject(StoredObject so, ObjectStore objectStore,
             TypeDefinition primaryType, List<TypeDefinition> secondaryTypes, Map<String, String> requestedIds,
             Map<String, String> requestedFuncs) {
+        return getPropertiesFromObject(so, objectStore, primaryType, secondaryTypes, requestedIds, requestedFuncs,
+                BigDecimal.valueOf(1.0));
+    }
+
+    public static Properties getPropertiesFromObject(StoredObject so, ObjectStore objectStore,
+            TypeDefinition primaryType, List<TypeDefinition> secondaryTypes, Map<String, String> requestedIds,
+            Map<String, String> requestedFuncs, BigDecimal score) {
         // build properties collection
 
         List<String> idList = new ArrayList<String>(requestedIds.values());
@@ -357,8 +364,7 @@ public final class PropertyCreationHelper {
                 }
 
                 PropertyDecimalImpl pd = new PropertyDecimalImpl();
-                // fixed dummy value
-                pd.setValue(BigDecimal.valueOf(1.0));
+                pd.setValue(score);
                 pd.setId(queryName);
                 pd.setQueryName(queryName);
                 pd.setLocalName("SCORE");
@@ -463,12 +469,21 @@ public final class PropertyCreationHelper {
             TypeDefinition primaryType, StoredObject so, String user, Map<String, String> requestedProperties,
             Map<String, String> requestedFuncs, List<TypeDefinition> secondaryTypes, Boolean includeAllowableActions,
             IncludeRelationships includeRelationships, String renditionFilter) {
+        return getObjectDataQueryResult(tm, objectStore, primaryType, so, user, requestedProperties, requestedFuncs,
+                BigDecimal.valueOf(1.0), secondaryTypes, includeAllowableActions, includeRelationships,
+                renditionFilter);
+    }
+
+    public static ObjectData getObjectDataQueryResult(TypeManager tm, ObjectStore objectStore,
+            TypeDefinition primaryType, StoredObject so, String user, Map<String, String> requestedProperties,
+            Map<String, String> requestedFuncs, BigDecimal score, List<TypeDefinition> secondaryTypes,
+            Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter) {
 
         ObjectDataImpl od = new ObjectDataImpl();
 
         // build properties collection
         Properties props = getPropertiesFromObject(so, objectStore, primaryType, secondaryTypes, requestedProperties,
-                requestedFuncs);
+                requestedFuncs, score);
 
         // fill output object
         if (null != includeAllowableActions && includeAllowableActions) {
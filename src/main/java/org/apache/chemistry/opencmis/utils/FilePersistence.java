@@ -1,11 +1,19 @@
 package org.apache.chemistry.opencmis.utils;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.math.BigInteger;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
@@ -31,9 +39,9 @@ import org.apache.chemistry.opencmis.commons.impl.MimeTypes;
 import org.apache.chemistry.opencmis.commons.impl.XMLConverter;
 import org.apache.chemistry.opencmis.commons.impl.XMLUtils;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
-import org.apache.chemistry.opencmis.commons.impl.json.JSONObject;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.Document;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.Fileable;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.Filing;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.Folder;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.Relationship;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
@@ -43,7 +51,6 @@ import org.apache.chemistry.opencmis.inmemory.storedobj.impl.FolderImpl;
 import org.apache.chemistry.opencmis.server.support.TypeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.apache.commons.io.FileUtils;
 
 public class FilePersistence extends PersistenceManager {
 
@@ -53,11 +60,35 @@ public class FilePersistence extends PersistenceManager {
 	private String rootId = "@root@";
 
 	private TypeManager typeManager;
+
+	/**
+	 * Journal taking the metadata writes, null to write the metadata files
+	 * directly.
+	 */
+	private volatile MetadataJournal journal;
+
+	private volatile MetadataWriteQueue writeQueue;
 	
 	public FilePersistence(TypeManager typeManager) {
 		this.typeManager = typeManager;
 	}
 
+	public void setJournal(MetadataJournal journal) {
+		this.journal = journal;
+	}
+
+	public MetadataJournal getJournal() {
+		return journal;
+	}
+
+	public void setWriteQueue(MetadataWriteQueue writeQueue) {
+		this.writeQueue = writeQueue;
+	}
+
+	public MetadataWriteQueue getWriteQueue() {
+		return writeQueue;
+	}
+
 	/** Root directory. */
 	private File root = null;
 
@@ -102,13 +133,7 @@ public class FilePersistence extends PersistenceManager {
 			if (so instanceof Fileable) {
 				List<String> parentIds = ((Fileable) so).getParentIds();
 				if (parentIds != null && parentIds.size() > 0) {
-					String id = parentIds.get(0);
-					while (!id.equals(getRootId())) {
-						String folderPath = storedObjectMap.get(id).getName();
-						path = folderPath + "/" + path;
-						id = ((Folder) storedObjectMap.get(id)).getParentId();
-					}
-					path = getRootPath() + "/" + path;
+					path = getFolderDirectory(storedObjectMap.get(parentIds.get(0)));
 				}
 			}
 			return new File(path, so.getName());
@@ -117,6 +142,19 @@ public class FilePersistence extends PersistenceManager {
 		}
 	}
 
+	/**
+	 * Returns the directory of a folder. Directories on disk are named like
+	 * the folders, so the directory is derived from the CMIS path the folder
+	 * caches instead of walking up to the root folder.
+	 */
+	private String getFolderDirectory(StoredObject folder) {
+		String path = ((Folder) folder).getPath();
+		if (Filing.PATH_SEPARATOR.equals(path)) {
+			return getRootPath();
+		}
+		return getRootPath() + path;
+	}
+
 	/**
 	 * Returns the metadataFile from objectId
 	 * 
@@ -283,26 +321,84 @@ public class FilePersistence extends PersistenceManager {
 	}
 
 	/**
-	 * Writes the metadata to disc.
+	 * Writes the metadata to disc, or queues it for the writer threads when
+	 * a {@link MetadataWriteQueue} is set.
 	 */
 	public void writeCMISToDisc(File newFile, StoredObject so) {
 
 		if (root == null)
 			return;
 
+		MetadataWriteQueue writeQueue = this.writeQueue;
+		if (writeQueue != null) {
+			// serialized by the request changing the object, the writers
+			// never see it half updated
+			writeQueue.write(newFile, new StoredObjectJsonSerializer().serialize(so, typeManager));
+			return;
+		}
+		writeMetadata(newFile, so, null, false);
+	}
+
+	/**
+	 * Writes serialized metadata to disc. The metadata is written to a hidden
+	 * temporary file that then replaces the metadata file, so that a crash
+	 * never leaves a partial file and the directory is marked as changed for
+	 * the {@link MetadataSnapshot}. The temporary file is synced to the disc
+	 * before it replaces the metadata file, the caller syncs the directory.
+	 */
+	void writeMetadata(File newFile, String content) {
+		writeMetadata(newFile, null, content, true);
+	}
+
+	/**
+	 * Writes the metadata of an object, or the given serialized metadata if
+	 * it is not null.
+	 */
+	private void writeMetadata(File newFile, StoredObject so, String content, boolean sync) {
+
 		// PrintWriter out = null;
 		String metadataFile = newFile.getAbsolutePath() + ".metadata";
+		MetadataJournal journal = this.journal;
+		if (journal != null) {
+			journal.put(new File(metadataFile), content != null ? content
+					: new StoredObjectJsonSerializer().serialize(so, typeManager));
+			LOG.debug("Journaled metadata of " + metadataFile);
+			return;
+		}
+		File tmpFile = null;
+		FileOutputStream fileOut = null;
+		Writer out = null;
 		try {
-			// out = new PrintWriter();
-			JSONObject json = new StoredObjectJsonSerializer().serialize(so, typeManager);
-			FileUtils.writeStringToFile(new File(
-					metadataFile), json.toString());
+			// a file of its own, the journal compaction or another writer
+			// may write the same metadata file
+			tmpFile = File.createTempFile("." + newFile.getName() + ".metadata.", ".tmp",
+					newFile.getAbsoluteFile().getParentFile());
+			fileOut = new FileOutputStream(tmpFile);
+			out = new BufferedWriter(new OutputStreamWriter(fileOut, Charset.defaultCharset()), 64 * 1024);
+			if (content != null) {
+				out.write(content);
+			} else {
+				new StoredObjectJsonSerializer().serialize(so, typeManager, out);
+			}
+			out.flush();
+			if (sync) {
+				fileOut.getFD().sync();
+			}
+			out.close();
+			Files.move(tmpFile.toPath(), Paths.get(metadataFile),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 			// out.print(json);
 			// out.flush();
 			LOG.info("Writing metadata in " + metadataFile);
 		} catch (IOException e) {
+			IOUtils.closeQuietly(out);
+			if (tmpFile != null) {
+				tmpFile.delete();
+			}
 			throw new CmisStorageException("Could not write metadata: "
 					+ e.getMessage(), e);
+		} finally {
+			IOUtils.closeQuietly(out);
 		}
 	}
 	
@@ -324,22 +420,10 @@ public class FilePersistence extends PersistenceManager {
 				return null;
 		}
 
-		String storedObjectStr = "";
-		try {
-			storedObjectStr = org.apache.commons.io.FileUtils
-					.readFileToString(metadataFile);
-
-			LOG.debug("Read metadata from " + metadataFile.getAbsolutePath());
-			// storedObjectStr = readAllLines(new FileReader(file));
-		} catch (IOException e) {
-			LOG.warn("When filtering with metadata", e);
-			return null;
-		}
-		if (storedObjectStr.equals("")) {
+		if (metadataFile.length() == 0) {
 		    return null;
 		}
 		StoredObject result = null;
-		LOG.debug(storedObjectStr);
 		
 		// check if metadata file is an XML serialization
 		if (metadataFile.getName().endsWith(".xml")) {
@@ -392,7 +476,18 @@ public class FilePersistence extends PersistenceManager {
 	            IOUtils.closeQuietly(stream);
 	        }
 		} else if (metadataFile.getName().endsWith(FilePersistenceLoader.SUFFIXE_METADATA)) {
-			result = new StoredObjectJsonSerializer().deserialize(storedObjectStr, typeManager);
+			Reader in = null;
+			try {
+				in = new BufferedReader(new InputStreamReader(new FileInputStream(metadataFile),
+						Charset.defaultCharset()), 64 * 1024);
+				result = new StoredObjectJsonSerializer().deserialize(in, typeManager);
+				LOG.debug("Read metadata from " + metadataFile.getAbsolutePath());
+			} catch (IOException e) {
+				LOG.warn("When filtering with metadata", e);
+				return null;
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
 		}
 
 		return result;
@@ -433,7 +528,15 @@ public class FilePersistence extends PersistenceManager {
 
 		// delete content file
 		delete(contentFile);
-		// delete metadata file
+		// delete metadata file, also drops queued and journaled writes of it
+		MetadataWriteQueue writeQueue = this.writeQueue;
+		if (writeQueue != null) {
+			writeQueue.cancel(metadataFile);
+		}
+		MetadataJournal journal = this.journal;
+		if (journal != null) {
+			journal.delete(metadataFile);
+		}
 		delete(metadataFile);
 	}
 
@@ -480,12 +583,11 @@ public class FilePersistence extends PersistenceManager {
 			return null;
 		StringBuilder stb = new StringBuilder(so.getName());
 		String parent = getParent(so);
-		while (parent != null && parent.length() > 0) {
+		if (parent != null && parent.length() > 0) {
 			StoredObject parentSO = storedObjectMap.get(parent);
 			if (parentSO == null || parentSO.getName() == null)
 				return null;
-			stb.insert(0, parentSO.getName() + "/");
-			parent = getParent(parentSO);
+			stb.insert(0, getFolderDirectory(parentSO) + "/");
 		}
 		String path = stb.toString();
 		if (path.equals("")) {
@@ -600,13 +702,7 @@ public class FilePersistence extends PersistenceManager {
 
 	private String getFullPath(Map<String, StoredObject> storedObjectMap,
 			String folderId) {
-		String parent = "";
-		while (folderId != null) {
-			StoredObject parentStore = storedObjectMap.get(folderId);
-			parent = parentStore.getName() + File.separator + parent;
-			folderId = ((FolderImpl) parentStore).getParentId();
-		}
-		return parent;
+		return getFolderDirectory(storedObjectMap.get(folderId)) + File.separator;
 	}
 
 	@Override
@@ -615,12 +711,35 @@ public class FilePersistence extends PersistenceManager {
 		// move data
 		File file = getFile(so, storedObjectMap);
 		File metadata = new File(file.getAbsolutePath() + ".metadata");
+		MetadataWriteQueue writeQueue = this.writeQueue;
+		if (writeQueue != null) {
+			// a queued write of the old file is written at the new place
+			writeQueue.cancel(metadata);
+		}
 		org.apache.commons.io.FileUtils.moveToDirectory(
 				file, 
 				getFile(newParent, storedObjectMap), false);
 		// move metadata
-		org.apache.commons.io.FileUtils.moveToDirectory(
-				metadata, 
-				getFile(newParent, storedObjectMap), false);
+		MetadataJournal journal = this.journal;
+		if (journal == null) {
+			// a queued metadata file may not be written yet
+			if (writeQueue == null || metadata.exists()) {
+				org.apache.commons.io.FileUtils.moveToDirectory(
+						metadata, 
+						getFile(newParent, storedObjectMap), false);
+			}
+			if (writeQueue != null) {
+				writeQueue.write(new File(getFile(newParent, storedObjectMap), file.getName()),
+						new StoredObjectJsonSerializer().serialize(so, typeManager));
+			}
+			return;
+		}
+		// the file may not have the journaled changes yet
+		File newMetadata = new File(getFile(newParent, storedObjectMap), metadata.getName());
+		if (metadata.exists()) {
+			org.apache.commons.io.FileUtils.moveFile(metadata, newMetadata);
+		}
+		journal.delete(metadata);
+		journal.put(newMetadata, new StoredObjectJsonSerializer().serialize(so, typeManager));
 	}
 }
\ No newline at end of file
@@ -1,9 +1,16 @@
 package org.apache.chemistry.opencmis.utils;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.chemistry.opencmis.commons.PropertyIds;
 import org.apache.chemistry.opencmis.commons.data.PropertyData;
@@ -16,9 +23,24 @@ import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoreManager;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
 import org.apache.chemistry.opencmis.inmemory.storedobj.impl.DocumentImpl;
 import org.apache.chemistry.opencmis.inmemory.storedobj.impl.FolderImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Loads the objects of a repository from its persistence directory. Each
+ * directory is listed by one task, its sub directories and batches of its
+ * documents are loaded by further tasks on a work-stealing pool, so that
+ * reading and parsing the metadata files runs on all threads. The object
+ * store accepts concurrent inserts.
+ * <p>
+ * The directory listing also tells which metadata and shadow files exist, a
+ * document without metadata is not probed for them.
+ * <p>
+ * If the repository has a {@link MetadataSnapshot}, each directory unchanged
+ * since the snapshot was written is restored from it and only the changed
+ * directories are listed and their metadata files read.
+ */
 public class FilePersistenceLoader {
 
     private static final Logger LOG = LoggerFactory
@@ -28,12 +50,42 @@ public class FilePersistenceLoader {
     public static final String SHADOW_EXT = ".cmis.xml";
     public static final String SHADOW_FOLDER = "cmis.xml";
 
+    /**
+     * Number of documents of a directory loaded by one task.
+     */
+    private static final int DOCUMENTS_PER_TASK = 64;
+
+    /**
+     * Number of loaded objects after which the progress is logged.
+     */
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private final String repositoryId;
+    private final ObjectStore store;
+    private final PersistenceManager persistenceManager;
+    private final MetadataSnapshot snapshot;
+    private final long start = System.nanoTime();
+    private final AtomicLong loadedFolders = new AtomicLong();
+    private final AtomicLong loadedDocuments = new AtomicLong();
+    private final AtomicLong restoredDirectories = new AtomicLong();
+
+    private FilePersistenceLoader(String repositoryId, ObjectStore store, PersistenceManager persistenceManager,
+            MetadataSnapshot snapshot) {
+        this.repositoryId = repositoryId;
+        this.store = store;
+        this.persistenceManager = persistenceManager;
+        this.snapshot = snapshot;
+    }
+
     public static void loadDirectory(StoreManager storeManager,
             Map<String, String> parameters) {
         String repositoryId = parameters.get(ConfigConstants.REPOSITORY_ID);
         ObjectStore store = storeManager.getObjectStore(repositoryId);
         String dir = parameters.get(ConfigConstants.TEMP_DIR);
-        LOG.info("Start Scanning directory...");
+        String threadsStr = parameters.get(ConfigConstants.LOADER_THREADS);
+        int threads = null == threadsStr ? Runtime.getRuntime().availableProcessors() : Math.max(1,
+                Integer.parseInt(threadsStr.trim()));
+        LOG.info("Start Scanning directory with " + threads + " threads...");
         // get the folder
         File folder = new File(dir);
         if (!folder.isDirectory()) {
@@ -42,124 +94,276 @@ public class FilePersistenceLoader {
             //        + " is not a folder!");
         }
 
-        FilenameFilter filenameFilter = new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                return !name.endsWith(SUFFIXE_METADATA) && !name.endsWith(SHADOW_EXT) && !name.equals(SHADOW_FOLDER);
-            }
-        };
         PersistenceManager manager = storeManager
                 .getObjectStore(repositoryId).getPersistenceManager();
-        loadFolder(repositoryId, store, folder, manager.getRootId(), filenameFilter, manager);
+        MetadataSnapshot snapshot = null;
+        if (store instanceof ObjectStoreImpl) {
+            snapshot = MetadataSnapshot.open(manager.getRootPath(), repositoryId);
+        }
+        if (null != snapshot) {
+            LOG.info("Restoring unchanged directories from snapshot of generation " + snapshot.getGeneration());
+            snapshot.restoreAcls((ObjectStoreImpl) store);
+        }
+        FilePersistenceLoader loader = new FilePersistenceLoader(repositoryId, store, manager, snapshot);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(loader.new FolderTask(folder.getAbsoluteFile(), manager.getRootId(), null, null));
+        } finally {
+            pool.shutdown();
+        }
 
-        LOG.info("... End Scanning");
+        LOG.info("... End Scanning, " + loader.describeProgress());
     }
 
-    private static void loadFolder(String repositoryId, ObjectStore store,
-            File folder, String folderId, FilenameFilter filenameFilter,
-            PersistenceManager persistenceManager) {
-        LOG.info("Scanning " + folder.getAbsolutePath());
-        // iterate through children
-        for (File child : folder.listFiles(filenameFilter)) {
-            // skip hidden files
-            if (child.isHidden()) continue;
-
-        	LOG.debug("Loading file " + child.getAbsolutePath());
-        	
-        	boolean toBeSaved = false;
-        	
-            StoredObject so = null;
-            if (child.isDirectory()) {
-                so = new FolderImpl(child.getName(), folderId);
-                so.setName(child.getName());
-                so.setId(persistenceManager.generateId());
-                File metadataFile = new File(child.getAbsolutePath()
-                        + SUFFIXE_METADATA);
-                
-                String relativePath = child.getAbsolutePath().replace(persistenceManager.getRootPath(), "");
-                
-                FolderImpl meta = (FolderImpl) persistenceManager
-                        .readCMISFromDisk(metadataFile);
-                if (meta != null) {
-                    // if metadata file exists then meta is the CMIS Object
-                    so = meta;
-                } else {
-                    LOG.warn("Missing metadata or malformed file for " + child.getAbsolutePath());
-                    so.setProperties(new LinkedHashMap<String, PropertyData<?>>());
-                    so.setTypeId(BaseTypeId.CMIS_FOLDER.value());
-                    so.setName(child.getName());
-                    toBeSaved = true;
-                }
-                Map<String, PropertyData<?>> properties = so.getProperties();
-                if (!properties.containsKey(PropertyIds.PATH) 
-                        || !properties.get(PropertyIds.PATH).getFirstValue().equals(relativePath)) {
-                    LOG.warn("Fixing cmis:path for " + relativePath);
-                    properties.put(PropertyIds.PATH, new PropertyStringImpl(PropertyIds.PATH, relativePath));
-                    toBeSaved = true;
+    /**
+     * Loads a folder and the objects in its directory, its sub directories
+     * and documents are handed to further tasks.
+     */
+    private final class FolderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File folder;
+        private String folderId;
+        private final String parentId;
+        private final Set<String> siblings;
+
+        /**
+         * @param folder
+         *            directory of the folder
+         * @param folderId
+         *            id of the folder if it is already stored, otherwise null
+         * @param parentId
+         *            id of the parent folder if the folder is not stored yet
+         * @param siblings
+         *            names in the directory of the parent folder
+         */
+        FolderTask(File folder, String folderId, String parentId, Set<String> siblings) {
+            this.folder = folder;
+            this.folderId = folderId;
+            this.parentId = parentId;
+            this.siblings = siblings;
+        }
+
+        @Override
+        protected void compute() {
+            if (null == folderId) {
+                // the folder is stored before its children are loaded
+                folderId = loadFolder(folder, parentId, siblings).getId();
+            }
+            if (null != snapshot) {
+                List<StoredObject> entries = snapshot.restore(getRelativePath(folder), folder, folderId);
+                if (null != entries) {
+                    restore(entries);
+                    return;
                 }
-                Folder fso = (Folder) so;
-                if (fso.getTypeId() == null) fso.setTypeId("cmis:folder");
-                if (!folderId.equals(fso.getParentId())) {
-                    LOG.warn("Fixing folder.parentId : setting " + folderId + " into cmis:parentId");
-                    fso.setParentId(folderId);
-                    toBeSaved = true;
+            }
+            LOG.info("Scanning " + folder.getAbsolutePath());
+            File[] children = folder.listFiles();
+            if (null == children) {
+                LOG.warn("Cannot list " + folder.getAbsolutePath());
+                return;
+            }
+            Set<String> names = new HashSet<String>(children.length * 2);
+            for (File child : children) {
+                names.add(child.getName());
+            }
+
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            List<File> documents = new ArrayList<File>();
+            for (File child : children) {
+                String name = child.getName();
+                // skip metadata, shadow and hidden files
+                if (name.endsWith(SUFFIXE_METADATA) || name.endsWith(SHADOW_EXT) || name.equals(SHADOW_FOLDER)
+                        || name.equals(MetadataSnapshot.SNAPSHOT_DIR) || child.isHidden()) {
+                    continue;
                 }
-                so.setRepositoryId(repositoryId);
-            } else {
-                so = new DocumentImpl();
-                File metadataFile = new File(child.getAbsolutePath()
-                        + SUFFIXE_METADATA);
-                so.setId(persistenceManager.generateId());
-
-                DocumentImpl meta = (DocumentImpl) persistenceManager
-                        .readCMISFromDisk(metadataFile);
-                
-                if (meta != null) {
-                    // if metadata file exists then meta is the CMIS Object
-                    so = meta;
+                if (child.isDirectory()) {
+                    tasks.add(new FolderTask(child, null, folderId, names));
                 } else {
-                    LOG.warn("Missing metadata or malformed file for " + child.getAbsolutePath());
-                    so.setProperties(new LinkedHashMap<String, PropertyData<?>>());
-                    so.setName(child.getName());
-                    so.setTypeId(BaseTypeId.CMIS_DOCUMENT.value());
-                    toBeSaved = true;
-                }
-                DocumentImpl dso = (DocumentImpl) so;
-                if(dso.getTypeId() == null) dso.setTypeId("cmis:document");
-                if (dso.getParentIds() == null || 
-                        dso.getParentIds().size() == 0 || 
-                        !dso.getParentIds().contains(folderId)) {
-                    LOG.warn("Fixing document.parentIds : adding " + folderId + " into cmis:parentIds");
-                    /*
-                     * This is a bug fixing patch, in order to fix the orphean documents by adding
-                     * their current physical directory to the list of ParentIds. 
-                     * but we can't know if the orphean situation comes from a 'move' or a 'addToFolder' bug
-                     * therefore it is impossible to state if we have to set the current directory 
-                     * to a unique parentId or just add the missing parentId
-                     * 
-                     * By default it will be : set the current directory to a unique parentId
-                     * 
-                    */
-                    dso.getParentIds().clear();
-                    dso.getParentIds().add(0, folderId);
-                    toBeSaved = true;
+                    documents.add(child);
+                    if (documents.size() == DOCUMENTS_PER_TASK) {
+                        tasks.add(new DocumentsTask(documents, folderId, names));
+                        documents = new ArrayList<File>();
+                    }
                 }
-                // read contentStream
-                ((DocumentImpl) so).setContent(persistenceManager.readContent(child, true));
+            }
+            if (!documents.isEmpty()) {
+                tasks.add(new DocumentsTask(documents, folderId, names));
+            }
+            invokeAll(tasks);
+        }
+
+        /*
+         * Store the objects of an unchanged directory, the directories of
+         * its folders are checked by further tasks.
+         */
+        private void restore(List<StoredObject> entries) {
+            restoredDirectories.incrementAndGet();
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            for (StoredObject so : entries) {
                 so.setRepositoryId(repositoryId);
                 so.setStore(store);
+                store.storeObject(so, false);
+                if (so instanceof Folder) {
+                    loadedFolders.incrementAndGet();
+                    tasks.add(new FolderTask(new File(folder, so.getName()), so.getId(), null, null));
+                } else if (loadedDocuments.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+                    LOG.info("Loading, " + describeProgress());
+                }
             }
-            // save metadata to disk
-            if (toBeSaved) {
-                persistenceManager.writeCMISToDisc(child, so);
-            }
-            // save object in memory
-            store.storeObject(so, false);
-            // invoke recursiveness if needed
-            if (child.isDirectory()) {
-                // recursive loading
-                loadFolder(repositoryId, store, child, so.getId(), filenameFilter, persistenceManager);
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Loads a batch of documents of one directory.
+     */
+    private final class DocumentsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> documents;
+        private final String folderId;
+        private final Set<String> siblings;
+
+        DocumentsTask(List<File> documents, String folderId, Set<String> siblings) {
+            this.documents = documents;
+            this.folderId = folderId;
+            this.siblings = siblings;
+        }
+
+        @Override
+        protected void compute() {
+            for (File child : documents) {
+                loadDocument(child, folderId, siblings);
             }
         }
     }
 
-}
\ No newline at end of file
+    private StoredObject loadFolder(File child, String folderId, Set<String> siblings) {
+        LOG.debug("Loading file " + child.getAbsolutePath());
+        boolean toBeSaved = false;
+        StoredObject so = new FolderImpl(child.getName(), folderId);
+        so.setName(child.getName());
+        so.setId(persistenceManager.generateId());
+
+        String relativePath = getRelativePath(child);
+
+        FolderImpl meta = (FolderImpl) readMetadata(child, true, siblings);
+        if (meta != null) {
+            // if metadata file exists then meta is the CMIS Object
+            so = meta;
+        } else {
+            LOG.warn("Missing metadata or malformed file for " + child.getAbsolutePath());
+            so.setProperties(new LinkedHashMap<String, PropertyData<?>>());
+            so.setTypeId(BaseTypeId.CMIS_FOLDER.value());
+            so.setName(child.getName());
+            toBeSaved = true;
+        }
+        Map<String, PropertyData<?>> properties = so.getProperties();
+        if (!properties.containsKey(PropertyIds.PATH)
+                || !properties.get(PropertyIds.PATH).getFirstValue().equals(relativePath)) {
+            LOG.warn("Fixing cmis:path for " + relativePath);
+            properties.put(PropertyIds.PATH, new PropertyStringImpl(PropertyIds.PATH, relativePath));
+            toBeSaved = true;
+        }
+        Folder fso = (Folder) so;
+        if (fso.getTypeId() == null) fso.setTypeId("cmis:folder");
+        if (!folderId.equals(fso.getParentId())) {
+            LOG.warn("Fixing folder.parentId : setting " + folderId + " into cmis:parentId");
+            fso.setParentId(folderId);
+            toBeSaved = true;
+        }
+        so.setRepositoryId(repositoryId);
+        store(child, so, toBeSaved);
+        loadedFolders.incrementAndGet();
+        return so;
+    }
+
+    private void loadDocument(File child, String folderId, Set<String> siblings) {
+        LOG.debug("Loading file " + child.getAbsolutePath());
+        boolean toBeSaved = false;
+        StoredObject so = new DocumentImpl();
+        so.setId(persistenceManager.generateId());
+
+        DocumentImpl meta = (DocumentImpl) readMetadata(child, false, siblings);
+        if (meta != null) {
+            // if metadata file exists then meta is the CMIS Object
+            so = meta;
+        } else {
+            LOG.warn("Missing metadata or malformed file for " + child.getAbsolutePath());
+            so.setProperties(new LinkedHashMap<String, PropertyData<?>>());
+            so.setName(child.getName());
+            so.setTypeId(BaseTypeId.CMIS_DOCUMENT.value());
+            toBeSaved = true;
+        }
+        DocumentImpl dso = (DocumentImpl) so;
+        if(dso.getTypeId() == null) dso.setTypeId("cmis:document");
+        if (dso.getParentIds() == null ||
+                dso.getParentIds().size() == 0 ||
+                !dso.getParentIds().contains(folderId)) {
+            LOG.warn("Fixing document.parentIds : adding " + folderId + " into cmis:parentIds");
+            /*
+             * This is a bug fixing patch, in order to fix the orphean documents by adding
+             * their current physical directory to the list of ParentIds.
+             * but we can't know if the orphean situation comes from a 'move' or a 'addToFolder' bug
+             * therefore it is impossible to state if we have to set the current directory
+             * to a unique parentId or just add the missing parentId
+             *
+             * By default it will be : set the current directory to a unique parentId
+             *
+            */
+            dso.getParentIds().clear();
+            dso.getParentIds().add(0, folderId);
+            toBeSaved = true;
+        }
+        // read contentStream
+        dso.setContent(persistenceManager.readContent(child, true));
+        so.setRepositoryId(repositoryId);
+        so.setStore(store);
+        store(child, so, toBeSaved);
+        long documents = loadedDocuments.incrementAndGet();
+        if (documents % PROGRESS_INTERVAL == 0) {
+            LOG.info("Loading, " + describeProgress());
+        }
+    }
+
+    /*
+     * Read the metadata of a file or directory from the first of
+     * name.metadata, name/cmis.xml for a directory, and name.cmis.xml that
+     * is listed in its directory.
+     */
+    private StoredObject readMetadata(File child, boolean isFolder, Set<String> siblings) {
+        String name = child.getName();
+        File metadataFile = null;
+        if (siblings.contains(name + SUFFIXE_METADATA)) {
+            metadataFile = new File(child.getAbsolutePath() + SUFFIXE_METADATA);
+        } else if (isFolder && new File(child, SHADOW_FOLDER).isFile()) {
+            metadataFile = new File(child, SHADOW_FOLDER);
+        } else if (siblings.contains(name + SHADOW_EXT)) {
+            metadataFile = new File(child.getAbsolutePath() + SHADOW_EXT);
+        }
+        return null == metadataFile ? null : persistenceManager.readCMISFromDisk(metadataFile);
+    }
+
+    private String getRelativePath(File file) {
+        return file.getAbsolutePath().replace(persistenceManager.getRootPath(), "");
+    }
+
+    private void store(File child, StoredObject so, boolean toBeSaved) {
+        // save metadata to disk
+        if (toBeSaved) {
+            persistenceManager.writeCMISToDisc(child, so);
+        }
+        // save object in memory
+        store.storeObject(so, false);
+    }
+
+    private String describeProgress() {
+        long folders = loadedFolders.get();
+        long documents = loadedDocuments.get();
+        double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+        return String.format(Locale.ROOT,
+                "%d folders and %d documents in %.1f s (%.0f objects/s), %d directories from snapshot", folders,
+                documents, seconds, (folders + documents) / seconds, restoredDirectories.get());
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead journal of the metadata files of a persistence directory.
+ * Instead of rewriting the metadata file of an object on each change, the
+ * new content or the deletion of the file is appended to a single journal
+ * file. A request returns once its record is on disk; concurrent requests
+ * share one fsync of the journal, the first waiting request syncs all
+ * records appended so far.
+ * <p>
+ * In the background the journal is compacted: it is replaced by an empty
+ * one, and the last record of each metadata file in the old journal is
+ * written to the file. At startup a journal left by a crash is compacted
+ * before the directory is loaded, a record cut off by the crash ends the
+ * journal.
+ * <p>
+ * A record is the length and CRC32 of its body, followed by the body: the
+ * type, the path of the metadata file relative to the persistence directory
+ * and for a put the content of the file.
+ */
+public class MetadataJournal {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(MetadataJournal.class.getName());
+
+    public static final String JOURNAL_FILE = "journal";
+    private static final String COMPACTING_FILE = "journal.compacting";
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    /**
+     * Seconds between two compactions of the journal.
+     */
+    private static final int COMPACT_INTERVAL = 10;
+
+    /**
+     * Size of the journal from which on it is compacted without waiting for
+     * the interval.
+     */
+    private static final long COMPACT_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * Largest accepted record, a larger length is a damaged record.
+     */
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private final File root;
+    private final File journalFile;
+    private final File compactingFile;
+    private final ScheduledExecutorService compactor;
+    private final Object syncLock = new Object();
+    private final Object compactLock = new Object();
+
+    // guarded by this
+    private FileChannel channel;
+    private long appended;
+    private long journalSize;
+    private boolean compactionScheduled;
+
+    // guarded by syncLock
+    private long synced;
+
+    private MetadataJournal(File root) {
+        this.root = root;
+        File dir = new File(root, MetadataSnapshot.SNAPSHOT_DIR);
+        journalFile = new File(dir, JOURNAL_FILE);
+        compactingFile = new File(dir, COMPACTING_FILE);
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "InMemoryServer-JournalCompactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Open the journal of a persistence directory. Records left by a
+     * previous run are written to the metadata files first.
+     *
+     * @param rootPath
+     *            persistence directory
+     * @return the journal, compacted in the background until it is closed
+     * @throws IOException
+     *             if the journal cannot be recovered or created
+     */
+    public static MetadataJournal open(String rootPath) throws IOException {
+        final MetadataJournal journal = new MetadataJournal(new File(rootPath));
+        File dir = journal.journalFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir.getAbsolutePath());
+        }
+        journal.recover();
+        journal.channel = FileChannel.open(journal.journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        journal.compactor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                journal.compactQuietly();
+            }
+        }, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.SECONDS);
+        return journal;
+    }
+
+    /**
+     * Record the new content of a metadata file.
+     *
+     * @param metadataFile
+     *            metadata file in the persistence directory
+     * @param content
+     *            content of the file
+     */
+    public void put(File metadataFile, String content) {
+        append(PUT, metadataFile, content);
+    }
+
+    /**
+     * Record the deletion of a metadata file, earlier records of the file
+     * are not applied any more.
+     *
+     * @param metadataFile
+     *            metadata file in the persistence directory
+     */
+    public void delete(File metadataFile) {
+        append(DELETE, metadataFile, null);
+    }
+
+    /**
+     * Write all records to the metadata files and close the journal.
+     */
+    public void close() {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactQuietly();
+        synchronized (syncLock) {
+            synchronized (this) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOG.warn("Could not close metadata journal", e);
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private void append(byte type, File metadataFile, String content) {
+        byte[] record;
+        try {
+            record = encode(type, getRelativePath(metadataFile), content);
+        } catch (IOException e) {
+            throw new CmisStorageException("Could not encode journal record: " + e.getMessage(), e);
+        }
+        long end;
+        boolean compact = false;
+        synchronized (this) {
+            if (null == channel) {
+                throw new CmisStorageException("Metadata journal is closed");
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new CmisStorageException("Could not append to metadata journal: " + e.getMessage(), e);
+            }
+            appended += record.length;
+            journalSize += record.length;
+            end = appended;
+            if (journalSize >= COMPACT_SIZE && !compactionScheduled) {
+                compactionScheduled = compact = true;
+            }
+        }
+        sync(end);
+        if (compact) {
+            try {
+                compactor.execute(new Runnable() {
+                    public void run() {
+                        compactQuietly();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closing, the journal is compacted anyway
+            }
+        }
+    }
+
+    /*
+     * Wait until the journal is synced up to a position. The thread that
+     * gets the lock first syncs the records of all threads waiting behind it.
+     */
+    private void sync(long end) {
+        synchronized (syncLock) {
+            if (synced >= end) {
+                return;
+            }
+            long target;
+            FileChannel current;
+            synchronized (this) {
+                target = appended;
+                current = channel;
+            }
+            try {
+                current.force(false);
+            } catch (IOException e) {
+                throw new CmisStorageException("Could not sync metadata journal: " + e.getMessage(), e);
+            }
+            synced = target;
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            LOG.error("Could not compact metadata journal", e);
+        } catch (RuntimeException e) {
+            LOG.error("Could not compact metadata journal", e);
+        }
+    }
+
+    private void compact() throws IOException {
+        synchronized (compactLock) {
+            // a failed compaction is finished before the journal is rotated
+            if (compactingFile.exists()) {
+                apply(compactingFile);
+            }
+            synchronized (syncLock) {
+                synchronized (this) {
+                    compactionScheduled = false;
+                    if (null == channel || journalSize == 0) {
+                        return;
+                    }
+                    channel.force(false);
+                    channel.close();
+                    Files.move(journalFile.toPath(), compactingFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    journalSize = 0;
+                    synced = appended;
+                }
+            }
+            apply(compactingFile);
+        }
+    }
+
+    private void recover() throws IOException {
+        if (compactingFile.exists()) {
+            apply(compactingFile);
+        }
+        if (journalFile.exists() && journalFile.length() > 0) {
+            Files.move(journalFile.toPath(), compactingFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            apply(compactingFile);
+        }
+    }
+
+    /*
+     * Write the last record of each metadata file in a journal file to the
+     * file, then delete the journal file.
+     */
+    private void apply(File file) throws IOException {
+        Map<String, String> contents = read(file);
+        for (Map.Entry<String, String> entry : contents.entrySet()) {
+            File target = new File(root, entry.getKey());
+            if (null == entry.getValue()) {
+                Files.deleteIfExists(target.toPath());
+            } else if (target.getParentFile().isDirectory()) {
+                write(target, entry.getValue());
+            }
+        }
+        Files.delete(file.toPath());
+        LOG.debug("Compacted " + contents.size() + " metadata files from the journal");
+    }
+
+    private static Map<String, String> read(File file) throws IOException {
+        Map<String, String> contents = new LinkedHashMap<String, String>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum;
+                byte[] body;
+                try {
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        throw new EOFException();
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    LOG.warn("Ignoring incomplete record at the end of " + file.getAbsolutePath());
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("Ignoring damaged record at the end of " + file.getAbsolutePath());
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                String path = readString(record);
+                // the latest record decides, keep the order of first changes
+                contents.remove(path);
+                contents.put(path, type == PUT ? readString(record) : null);
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    private static void write(File target, String content) throws IOException {
+        // not shared with a request writing the same file during close()
+        File tmp = File.createTempFile("." + target.getName() + ".", ".tmp", target.getParentFile());
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(content.getBytes(Charset.defaultCharset()));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // only left over if the write failed
+            tmp.delete();
+        }
+    }
+
+    private String getRelativePath(File metadataFile) {
+        String path = metadataFile.getAbsolutePath();
+        String rootPath = root.getAbsolutePath();
+        if (!path.startsWith(rootPath)) {
+            throw new CmisStorageException(path + " is not in " + rootPath);
+        }
+        return path.substring(rootPath.length());
+    }
+
+    private static byte[] encode(byte type, String path, String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (null == content ? 0 : content.length()));
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(type);
+        writeString(body, path);
+        if (null != content) {
+            writeString(body, content);
+        }
+        body.flush();
+        byte[] bodyBytes = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bodyBytes.length + 8);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(bodyBytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bodyBytes);
+        out.flush();
+        return record.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,750 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.chemistry.opencmis.commons.data.Ace;
+import org.apache.chemistry.opencmis.commons.data.Acl;
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.MutablePropertyData;
+import org.apache.chemistry.opencmis.commons.data.PropertyBoolean;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.data.PropertyDateTime;
+import org.apache.chemistry.opencmis.commons.data.PropertyDecimal;
+import org.apache.chemistry.opencmis.commons.data.PropertyHtml;
+import org.apache.chemistry.opencmis.commons.data.PropertyId;
+import org.apache.chemistry.opencmis.commons.data.PropertyInteger;
+import org.apache.chemistry.opencmis.commons.data.PropertyUri;
+import org.apache.chemistry.opencmis.commons.enums.PropertyType;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlEntryImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlListImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlPrincipalDataImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyBooleanImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyDateTimeImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyDecimalImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyHtmlImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIntegerImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyUriImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.DocumentImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.FilingImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.FolderImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.StoredObjectImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checkpoint of the metadata of a repository in a single binary file, so that
+ * a restart does not have to open and parse one metadata file per object.
+ * <p>
+ * The snapshot holds the Acls of the store and, for each directory, its
+ * modification time and the folders and documents whose files are in it. At
+ * startup the loader restores a directory from the snapshot if its
+ * modification time is unchanged and walks it otherwise. Each change of a
+ * directory entry, including a rewrite of a metadata file, creates, removes
+ * or renames a file in the directory and so touches the directory.
+ * Directories changed shortly before the checkpoint are not recorded, a later
+ * change could keep their modification time.
+ * <p>
+ * The file starts with a header and the Acls, followed by the directories,
+ * each with the byte length of its entries so that the index of the
+ * directories is read without decoding the objects. Strings repeated across
+ * objects, like type and property ids, are written as index into a table
+ * at the end of the file. The last bytes are the offset of this table and a
+ * CRC32 of all bytes before it.
+ */
+public final class MetadataSnapshot {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(MetadataSnapshot.class.getName());
+
+    /**
+     * Directory below the persistence directory holding the snapshot, hidden
+     * from the loader.
+     */
+    public static final String SNAPSHOT_DIR = ".cmis";
+    public static final String SNAPSHOT_FILE = "snapshot";
+
+    private static final int MAGIC = 0x434d4953;
+    private static final int VERSION = 1;
+
+    /**
+     * Milliseconds before a checkpoint in which a changed directory is not
+     * recorded, larger than the resolution of file modification times.
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    private static final byte FOLDER = 'F';
+    private static final byte DOCUMENT = 'D';
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * A recorded directory, its entries start at offset.
+     */
+    private static final class Directory {
+        private final String folderId;
+        private final long modified;
+        private final int count;
+        private final int offset;
+
+        Directory(String folderId, long modified, int count, int offset) {
+            this.folderId = folderId;
+            this.modified = modified;
+            this.count = count;
+            this.offset = offset;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final String[] symbols;
+    private final long generation;
+    private final List<Acl> acls;
+    private final Map<String, Directory> directories;
+    private final Map<String, TimeZone> timeZones = new ConcurrentHashMap<String, TimeZone>();
+    private int[] aclIds;
+
+    private MetadataSnapshot(ByteBuffer buffer, String[] symbols, long generation, List<Acl> acls,
+            Map<String, Directory> directories) {
+        this.buffer = buffer;
+        this.symbols = symbols;
+        this.generation = generation;
+        this.acls = acls;
+        this.directories = directories;
+    }
+
+    /**
+     * Get the snapshot file of a persistence directory.
+     *
+     * @param rootPath
+     *            persistence directory
+     * @return the file, it may not exist
+     */
+    public static File getFile(String rootPath) {
+        return new File(new File(rootPath, SNAPSHOT_DIR), SNAPSHOT_FILE);
+    }
+
+    /**
+     * @return modification count of the store when the snapshot was written
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return number of recorded directories
+     */
+    public int getDirectoryCount() {
+        return directories.size();
+    }
+
+    /**
+     * Open the snapshot of a persistence directory and check that it is
+     * complete and belongs to the repository.
+     *
+     * @param rootPath
+     *            persistence directory
+     * @param repositoryId
+     *            id of the repository
+     * @return the snapshot or null if there is no valid snapshot
+     */
+    public static MetadataSnapshot open(String rootPath, String repositoryId) {
+        File file = getFile(rootPath);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer;
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();
+            }
+            int size = buffer.limit();
+            if (size < 16 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LOG.warn("Ignoring snapshot " + file.getAbsolutePath() + " of unknown format");
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer checked = buffer.duplicate();
+            checked.limit(size - 4);
+            crc.update(checked);
+            if ((int) crc.getValue() != buffer.getInt(size - 4)) {
+                LOG.warn("Ignoring incomplete snapshot " + file.getAbsolutePath());
+                return null;
+            }
+
+            ByteBuffer in = buffer.duplicate();
+            in.position((int) buffer.getLong(size - 12));
+            String[] symbols = new String[in.getInt()];
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = readString(in);
+            }
+
+            in.position(8);
+            String snapshotRepositoryId = readString(in);
+            String snapshotRootPath = readString(in);
+            if (!snapshotRepositoryId.equals(repositoryId) || !snapshotRootPath.equals(rootPath)) {
+                LOG.warn("Ignoring snapshot " + file.getAbsolutePath() + " of repository " + snapshotRepositoryId
+                        + " in " + snapshotRootPath);
+                return null;
+            }
+            long generation = in.getLong();
+            List<Acl> acls = new ArrayList<Acl>();
+            for (int i = in.getInt(); i > 0; i--) {
+                List<Ace> aces = new ArrayList<Ace>();
+                for (int j = in.getInt(); j > 0; j--) {
+                    String principalId = symbols[in.getInt()];
+                    String permission = symbols[in.getInt()];
+                    aces.add(new AccessControlEntryImpl(new AccessControlPrincipalDataImpl(principalId),
+                            Collections.singletonList(permission)));
+                }
+                acls.add(new AccessControlListImpl(aces));
+            }
+            int count = in.getInt();
+            Map<String, Directory> directories = new HashMap<String, Directory>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String path = readString(in);
+                String folderId = readString(in);
+                long modified = in.getLong();
+                int entries = in.getInt();
+                int length = in.getInt();
+                directories.put(path, new Directory(folderId, modified, entries, in.position()));
+                in.position(in.position() + length);
+            }
+            return new MetadataSnapshot(buffer, symbols, generation, acls, directories);
+        } catch (IOException e) {
+            LOG.warn("Cannot read snapshot " + file.getAbsolutePath(), e);
+        } catch (RuntimeException e) {
+            LOG.warn("Ignoring malformed snapshot " + file.getAbsolutePath(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Register the Acls of the snapshot in an empty store. Must be called
+     * before objects are restored, their Acl ids are mapped to the ids
+     * given by the store.
+     *
+     * @param store
+     *            store to fill
+     */
+    public void restoreAcls(ObjectStoreImpl store) {
+        int[] ids = new int[acls.size()];
+        for (int i = 0; i < ids.length; i++) {
+            Acl acl = acls.get(i);
+            ids[i] = acl.getAces().isEmpty() ? 0 : store.getAclId(null, acl, null);
+        }
+        aclIds = ids;
+    }
+
+    /**
+     * Read the objects in a directory if the directory has not changed since
+     * the snapshot was written.
+     *
+     * @param relativePath
+     *            path of the directory relative to the persistence directory,
+     *            the empty string for the persistence directory itself
+     * @param directory
+     *            the directory
+     * @param folderId
+     *            id of the folder of the directory
+     * @return the folders and documents in the directory, not yet stored, or
+     *         null if the directory has to be walked
+     */
+    public List<StoredObject> restore(String relativePath, File directory, String folderId) {
+        Directory record = directories.get(relativePath);
+        if (null == record || !record.folderId.equals(folderId) || record.modified != directory.lastModified()) {
+            return null;
+        }
+        ByteBuffer in = buffer.duplicate();
+        in.position(record.offset);
+        List<StoredObject> objects = new ArrayList<StoredObject>(record.count);
+        for (int i = 0; i < record.count; i++) {
+            objects.add(readObject(in));
+        }
+        return objects;
+    }
+
+    private StoredObject readObject(ByteBuffer in) {
+        byte kind = in.get();
+        StoredObjectImpl so = kind == FOLDER ? new FolderImpl() : new DocumentImpl();
+        so.setId(readString(in));
+        so.setTypeId(readSymbol(in));
+        so.setName(readString(in));
+        so.setCreatedBy(readSymbol(in));
+        so.setCreatedAt(readCalendar(in));
+        so.setModifiedBy(readSymbol(in));
+        so.setModifiedAt(readCalendar(in));
+        so.setDescription(readString(in));
+        int aclId = in.getInt();
+        if (null != aclIds) {
+            aclId = aclId >= 0 && aclId < aclIds.length ? aclIds[aclId] : 0;
+        }
+        so.setAclId(aclId);
+        if (kind == FOLDER) {
+            ((FolderImpl) so).setParentId(readString(in));
+        } else {
+            for (int i = in.getInt(); i > 0; i--) {
+                ((DocumentImpl) so).addParentId(readString(in));
+            }
+        }
+        for (int i = in.getInt(); i > 0; i--) {
+            so.getSecondaryTypeIds().add(readSymbol(in));
+        }
+        int count = in.getInt();
+        if (count >= 0) {
+            Map<String, PropertyData<?>> properties = new LinkedHashMap<String, PropertyData<?>>(count * 2);
+            for (int i = 0; i < count; i++) {
+                PropertyData<?> property = readProperty(in);
+                properties.put(property.getId(), property);
+            }
+            so.setProperties(properties);
+        }
+        if (kind == DOCUMENT && in.get() != 0) {
+            ContentStreamImpl content = new ContentStreamImpl();
+            content.setFileName(readString(in));
+            long length = in.getLong();
+            content.setLength(length < 0 ? null : BigInteger.valueOf(length));
+            content.setMimeType(readSymbol(in));
+            ((DocumentImpl) so).setContent(content);
+        }
+        return so;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PropertyData<?> readProperty(ByteBuffer in) {
+        PropertyType type = PropertyType.fromValue(readSymbol(in));
+        MutablePropertyData<?> property;
+        switch (type) {
+        case BOOLEAN:
+            property = new PropertyBooleanImpl();
+            break;
+        case ID:
+            property = new PropertyIdImpl();
+            break;
+        case INTEGER:
+            property = new PropertyIntegerImpl();
+            break;
+        case DATETIME:
+            property = new PropertyDateTimeImpl();
+            break;
+        case DECIMAL:
+            property = new PropertyDecimalImpl();
+            break;
+        case HTML:
+            property = new PropertyHtmlImpl();
+            break;
+        case URI:
+            property = new PropertyUriImpl();
+            break;
+        default:
+            property = new PropertyStringImpl();
+            break;
+        }
+        property.setId(readSymbol(in));
+        property.setDisplayName(readSymbol(in));
+        property.setLocalName(readSymbol(in));
+        property.setQueryName(readSymbol(in));
+        int count = in.getInt();
+        if (count >= 0) {
+            List<Object> values = new ArrayList<Object>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(readValue(in, type));
+            }
+            ((MutablePropertyData<Object>) property).setValues(values);
+        }
+        return property;
+    }
+
+    private Object readValue(ByteBuffer in, PropertyType type) {
+        switch (type) {
+        case BOOLEAN:
+            byte value = in.get();
+            return value > 1 ? null : Boolean.valueOf(value == 1);
+        case INTEGER:
+            return readBigInteger(in);
+        case DECIMAL:
+            int scale = in.getInt();
+            BigInteger unscaled = readBigInteger(in);
+            return null == unscaled ? null : new BigDecimal(unscaled, scale);
+        case DATETIME:
+            return readCalendar(in);
+        default:
+            return readString(in);
+        }
+    }
+
+    private GregorianCalendar readCalendar(ByteBuffer in) {
+        long millis = in.getLong();
+        if (millis == NO_DATE) {
+            return null;
+        }
+        String zoneId = readSymbol(in);
+        TimeZone zone = timeZones.get(zoneId);
+        if (null == zone) {
+            zone = TimeZone.getTimeZone(zoneId);
+            timeZones.put(zoneId, zone);
+        }
+        GregorianCalendar calendar = new GregorianCalendar(zone);
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
+
+    private String readSymbol(ByteBuffer in) {
+        int index = in.getInt();
+        return index < 0 ? null : symbols[index];
+    }
+
+    private static BigInteger readBigInteger(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new BigInteger(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a snapshot of the metadata of a store to its persistence
+     * directory, replacing the previous snapshot once it is complete. Each
+     * object is read under its lock. Objects may change while the snapshot is
+     * written, the directories of changed objects are walked at the next
+     * start.
+     *
+     * @param store
+     *            store with a persistence directory
+     * @return modification count of the store before the snapshot was taken
+     * @throws IOException
+     *             if the snapshot cannot be written
+     */
+    public static long write(ObjectStoreImpl store) throws IOException {
+        String rootPath = store.getPersistenceManager().getRootPath();
+        long generation = store.getModificationCount();
+        // any directory touched from now on has a later modification time
+        long start = System.currentTimeMillis();
+
+        List<FolderImpl> folders = new ArrayList<FolderImpl>();
+        Map<String, List<StoredObject>> entries = new HashMap<String, List<StoredObject>>();
+        Set<String> incomplete = new HashSet<String>();
+        for (String id : store.getIds()) {
+            StoredObject so = store.getObjectById(id);
+            String parentId = null;
+            store.lockObject(id);
+            try {
+                if (so instanceof FolderImpl) {
+                    folders.add((FolderImpl) so);
+                    parentId = ((FolderImpl) so).getParentId();
+                } else if (so instanceof FilingImpl && !((FilingImpl) so).getParentIds().isEmpty()) {
+                    parentId = ((FilingImpl) so).getParentIds().get(0);
+                    if (!(so instanceof DocumentImpl)) {
+                        // only folders and documents are loaded from a directory
+                        incomplete.add(parentId);
+                    }
+                }
+            } finally {
+                store.unlockObject(id);
+            }
+            if (null != parentId) {
+                List<StoredObject> children = entries.get(parentId);
+                if (null == children) {
+                    children = new ArrayList<StoredObject>();
+                    entries.put(parentId, children);
+                }
+                children.add(so);
+            }
+        }
+
+        List<FolderImpl> recorded = new ArrayList<FolderImpl>(folders.size());
+        List<String> paths = new ArrayList<String>(folders.size());
+        List<Long> modified = new ArrayList<Long>(folders.size());
+        for (FolderImpl folder : folders) {
+            String path = null == folder.getParentId() ? "" : folder.getPath();
+            long lastModified = new File(rootPath + path).lastModified();
+            if (lastModified > 0 && lastModified < start - RACY_MILLIS && !incomplete.contains(folder.getId())) {
+                recorded.add(folder);
+                paths.add(path);
+                modified.add(lastModified);
+            }
+        }
+
+        File file = getFile(rootPath);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir.getAbsolutePath());
+        }
+        File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(
+                new FileOutputStream(tmp), crc), 64 * 1024));
+        try {
+            Writer writer = new Writer();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, store.getRepositoryId());
+            writeString(out, rootPath);
+            out.writeLong(generation);
+            int aclCount = store.getAclCount();
+            out.writeInt(aclCount);
+            for (int i = 0; i < aclCount; i++) {
+                List<Ace> aces = store.getAcl(i).getAces();
+                out.writeInt(aces.size());
+                for (Ace ace : aces) {
+                    writer.writeSymbol(out, ace.getPrincipalId());
+                    writer.writeSymbol(out, ace.getPermissions().get(0));
+                }
+            }
+
+            out.writeInt(recorded.size());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream entryOut = new DataOutputStream(bytes);
+            for (int i = 0; i < recorded.size(); i++) {
+                FolderImpl folder = recorded.get(i);
+                List<StoredObject> children = entries.get(folder.getId());
+                if (null == children) {
+                    children = Collections.emptyList();
+                }
+                bytes.reset();
+                for (StoredObject child : children) {
+                    // a request changing the object waits until it is copied
+                    store.lockObject(child.getId());
+                    try {
+                        writer.writeObject(entryOut, child);
+                    } finally {
+                        store.unlockObject(child.getId());
+                    }
+                }
+                entryOut.flush();
+                writeString(out, paths.get(i));
+                writeString(out, folder.getId());
+                out.writeLong(modified.get(i));
+                out.writeInt(children.size());
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+
+            long symbolsOffset = out.size();
+            out.writeInt(writer.symbols.size());
+            for (String symbol : writer.symbols.keySet()) {
+                writeString(out, symbol);
+            }
+            out.writeLong(symbolsOffset);
+            out.flush();
+            out.writeInt((int) crc.getValue());
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Wrote snapshot of " + recorded.size() + " of " + folders.size() + " directories to "
+                + file.getAbsolutePath());
+        return generation;
+    }
+
+    /**
+     * Writes objects and collects the strings written as symbols.
+     */
+    private static final class Writer {
+        private final Map<String, Integer> symbols = new LinkedHashMap<String, Integer>();
+
+        void writeObject(DataOutputStream out, StoredObject so) throws IOException {
+            boolean folder = so instanceof FolderImpl;
+            out.writeByte(folder ? FOLDER : DOCUMENT);
+            writeString(out, so.getId());
+            writeSymbol(out, so.getTypeId());
+            writeString(out, so.getName());
+            writeSymbol(out, so.getCreatedBy());
+            writeCalendar(out, so.getCreatedAt());
+            writeSymbol(out, so.getModifiedBy());
+            writeCalendar(out, so.getModifiedAt());
+            writeString(out, so.getDescription());
+            out.writeInt(((StoredObjectImpl) so).getAclId());
+            if (folder) {
+                writeString(out, ((FolderImpl) so).getParentId());
+            } else {
+                List<String> parentIds = ((DocumentImpl) so).getParentIds();
+                out.writeInt(parentIds.size());
+                for (String parentId : parentIds) {
+                    writeString(out, parentId);
+                }
+            }
+            List<String> secondaryTypeIds = so.getSecondaryTypeIds();
+            out.writeInt(secondaryTypeIds.size());
+            for (String typeId : secondaryTypeIds) {
+                writeSymbol(out, typeId);
+            }
+            Map<String, PropertyData<?>> properties = so.getProperties();
+            if (null == properties) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(properties.size());
+                for (PropertyData<?> property : properties.values()) {
+                    writeProperty(out, property);
+                }
+            }
+            if (!folder) {
+                ContentStream content = ((DocumentImpl) so).getContent();
+                out.writeByte(null == content ? 0 : 1);
+                if (null != content) {
+                    writeString(out, content.getFileName());
+                    out.writeLong(content.getLength());
+                    writeSymbol(out, content.getMimeType());
+                }
+            }
+        }
+
+        private void writeProperty(DataOutputStream out, PropertyData<?> property) throws IOException {
+            PropertyType type = getPropertyType(property);
+            writeSymbol(out, type.value());
+            writeSymbol(out, property.getId());
+            writeSymbol(out, property.getDisplayName());
+            writeSymbol(out, property.getLocalName());
+            writeSymbol(out, property.getQueryName());
+            List<?> values = property.getValues();
+            if (null == values) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(values.size());
+            for (Object value : values) {
+                switch (type) {
+                case BOOLEAN:
+                    out.writeByte(null == value ? 2 : ((Boolean) value).booleanValue() ? 1 : 0);
+                    break;
+                case INTEGER:
+                    writeBigInteger(out, (BigInteger) value);
+                    break;
+                case DECIMAL:
+                    BigDecimal decimal = (BigDecimal) value;
+                    out.writeInt(null == decimal ? 0 : decimal.scale());
+                    writeBigInteger(out, null == decimal ? null : decimal.unscaledValue());
+                    break;
+                case DATETIME:
+                    writeCalendar(out, (GregorianCalendar) value);
+                    break;
+                default:
+                    writeString(out, null == value ? null : value.toString());
+                    break;
+                }
+            }
+        }
+
+        private void writeCalendar(DataOutputStream out, GregorianCalendar calendar) throws IOException {
+            if (null == calendar) {
+                out.writeLong(NO_DATE);
+            } else {
+                out.writeLong(calendar.getTimeInMillis());
+                writeSymbol(out, calendar.getTimeZone().getID());
+            }
+        }
+
+        void writeSymbol(DataOutputStream out, String symbol) throws IOException {
+            if (null == symbol) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer index = symbols.get(symbol);
+            if (null == index) {
+                index = symbols.size();
+                symbols.put(symbol, index);
+            }
+            out.writeInt(index);
+        }
+    }
+
+    private static PropertyType getPropertyType(PropertyData<?> property) {
+        if (property instanceof PropertyId) {
+            return PropertyType.ID;
+        } else if (property instanceof PropertyBoolean) {
+            return PropertyType.BOOLEAN;
+        } else if (property instanceof PropertyInteger) {
+            return PropertyType.INTEGER;
+        } else if (property instanceof PropertyDateTime) {
+            return PropertyType.DATETIME;
+        } else if (property instanceof PropertyDecimal) {
+            return PropertyType.DECIMAL;
+        } else if (property instanceof PropertyHtml) {
+            return PropertyType.HTML;
+        } else if (property instanceof PropertyUri) {
+            return PropertyType.URI;
+        }
+        return PropertyType.STRING;
+    }
+
+    private static void writeBigInteger(DataOutputStream out, BigInteger value) throws IOException {
+        if (null == value) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (null == value) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
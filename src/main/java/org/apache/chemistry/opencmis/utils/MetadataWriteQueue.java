@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind queue of the metadata files of a {@link FilePersistence}.
+ * A request serializes the changed object and queues the metadata instead of
+ * writing the metadata file, writer threads write the queued metadata. The
+ * writers never read the objects, which may be changed by other requests
+ * meanwhile. An object changed again before it is written is written once,
+ * with its latest state.
+ * <p>
+ * With {@link Durability#GROUP} a request waits until the writers have
+ * written its object and synced it to the disc; the writers collect the
+ * changes of all requests for the flush interval, write them together and
+ * sync each metadata file and once per batch each changed directory. With
+ * {@link Durability#ASYNC} a request returns at once and a crash loses the
+ * changes of about the last flush interval.
+ * <p>
+ * When the queue is full a request either waits for the writers or writes
+ * its metadata file itself.
+ */
+public class MetadataWriteQueue {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(MetadataWriteQueue.class.getName());
+
+    /**
+     * When a request returns compared to the write of its metadata.
+     */
+    public enum Durability {
+        /**
+         * The request writes the metadata file itself, no queue is used.
+         */
+        SYNC,
+        /**
+         * The request waits until a writer has written and synced the
+         * metadata file.
+         */
+        GROUP,
+        /**
+         * The request returns before the metadata file is written.
+         */
+        ASYNC;
+
+        public static Durability fromValue(String value) {
+            return null == value ? SYNC : valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * What a request does when the queue is full.
+     */
+    public enum FullPolicy {
+        /**
+         * Wait until the writers have made room.
+         */
+        BLOCK,
+        /**
+         * Write the metadata file in the request thread.
+         */
+        WRITE;
+
+        public static FullPolicy fromValue(String value) {
+            return null == value ? BLOCK : valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private static class Pending {
+        private File file;
+        private String content;
+        private boolean done;
+        private RuntimeException error;
+
+        Pending(File file, String content) {
+            this.file = file;
+            this.content = content;
+        }
+    }
+
+    private final FilePersistence persistence;
+    private final Durability durability;
+    private final FullPolicy fullPolicy;
+    private final int capacity;
+    private final long flushMillis;
+    private final ExecutorService writers;
+
+    // guarded by this
+    private final Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+    private final Set<String> writing = new HashSet<String>();
+    private int flushRequests;
+    private boolean closed;
+
+    /**
+     * Start the writer threads of a queue.
+     *
+     * @param persistence
+     *            persistence writing the metadata files
+     * @param durability
+     *            {@link Durability#GROUP} or {@link Durability#ASYNC}
+     * @param fullPolicy
+     *            what a request does when the queue is full
+     * @param capacity
+     *            number of objects the queue holds
+     * @param flushMillis
+     *            milliseconds the writers collect changes before writing
+     *            them
+     * @param threads
+     *            number of writer threads
+     */
+    public MetadataWriteQueue(FilePersistence persistence, Durability durability, FullPolicy fullPolicy,
+            int capacity, long flushMillis, int threads) {
+        if (Durability.SYNC == durability) {
+            throw new IllegalArgumentException("A synchronous persistence does not use a queue");
+        }
+        this.persistence = persistence;
+        this.durability = durability;
+        this.fullPolicy = fullPolicy;
+        this.capacity = Math.max(1, capacity);
+        this.flushMillis = Math.max(0, flushMillis);
+        writers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "InMemoryServer-MetadataWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < threads; i++) {
+            writers.execute(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            });
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Queue the metadata of an object. With {@link Durability#GROUP} returns
+     * once the metadata is written.
+     *
+     * @param newFile
+     *            file or directory of the object, the metadata file is next
+     *            to it
+     * @param content
+     *            serialized metadata of the object
+     */
+    public void write(File newFile, String content) {
+        String key = getKey(new File(newFile.getAbsolutePath() + ".metadata"));
+        Pending entry = null;
+        synchronized (this) {
+            while (!closed) {
+                entry = pending.get(key);
+                if (null != entry) {
+                    // not taken by a writer yet, it writes the latest state
+                    entry.file = newFile;
+                    entry.content = content;
+                    break;
+                }
+                if (pending.size() < capacity) {
+                    entry = new Pending(newFile, content);
+                    pending.put(key, entry);
+                    notifyAll();
+                    break;
+                }
+                if (FullPolicy.WRITE == fullPolicy) {
+                    break;
+                }
+                await();
+            }
+            if (null != entry && Durability.GROUP == durability) {
+                while (!entry.done) {
+                    await();
+                }
+                if (null != entry.error) {
+                    throw entry.error;
+                }
+            }
+        }
+        if (null == entry) {
+            // queue full or closed
+            writeNow(key, newFile, content);
+        }
+    }
+
+    /**
+     * Drop the queued write of a metadata file and wait for a writer still
+     * writing it, before the file is deleted or moved.
+     *
+     * @param metadataFile
+     *            the metadata file
+     */
+    public synchronized void cancel(File metadataFile) {
+        String key = getKey(metadataFile);
+        Pending entry = pending.remove(key);
+        if (null != entry) {
+            entry.done = true;
+            notifyAll();
+        }
+        while (writing.contains(key)) {
+            await();
+        }
+    }
+
+    /**
+     * Write all queued objects and wait until they are written.
+     */
+    public synchronized void flush() {
+        flushRequests++;
+        notifyAll();
+        try {
+            while (!pending.isEmpty() || !writing.isEmpty()) {
+                await();
+            }
+        } finally {
+            flushRequests--;
+        }
+    }
+
+    /**
+     * Write all queued objects and stop the writer threads. Later writes are
+     * done by the requests themselves.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        flush();
+        writers.shutdown();
+        try {
+            writers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Map<String, Pending> batch = takeBatch();
+            if (null == batch) {
+                return;
+            }
+            Set<File> dirs = new HashSet<File>();
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                Pending write = entry.getValue();
+                try {
+                    persistence.writeMetadata(write.file, write.content);
+                    dirs.add(write.file.getAbsoluteFile().getParentFile());
+                } catch (RuntimeException e) {
+                    LOG.error("Could not write metadata of " + write.file, e);
+                    write.error = e;
+                }
+            }
+            for (File dir : dirs) {
+                syncDirectory(dir);
+            }
+            synchronized (this) {
+                for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                    writing.remove(entry.getKey());
+                    entry.getValue().done = true;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait for queued objects and the flush interval, then take the queued
+     * objects no other writer is writing.
+     *
+     * @return the objects by metadata file, null once the queue is closed
+     *         and empty
+     */
+    private synchronized Map<String, Pending> takeBatch() {
+        while (true) {
+            while (!closed && pending.isEmpty()) {
+                awaitInterruptibly(0);
+            }
+            if (closed && pending.isEmpty()) {
+                return null;
+            }
+            // collect the changes of further requests
+            long deadline = System.currentTimeMillis() + flushMillis;
+            long remaining = flushMillis;
+            while (remaining > 0 && !closed && flushRequests == 0 && pending.size() < capacity) {
+                awaitInterruptibly(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            Map<String, Pending> batch = new LinkedHashMap<String, Pending>();
+            for (Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Pending> entry = it.next();
+                if (!writing.contains(entry.getKey())) {
+                    it.remove();
+                    writing.add(entry.getKey());
+                    batch.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (!batch.isEmpty()) {
+                // room for blocked requests
+                notifyAll();
+                return batch;
+            }
+            if (!pending.isEmpty()) {
+                // another writer still writes the same files
+                awaitInterruptibly(0);
+            }
+        }
+    }
+
+    private void writeNow(String key, File newFile, String content) {
+        synchronized (this) {
+            while (writing.contains(key)) {
+                await();
+            }
+            writing.add(key);
+        }
+        try {
+            persistence.writeMetadata(newFile, content);
+            syncDirectory(newFile.getAbsoluteFile().getParentFile());
+        } finally {
+            synchronized (this) {
+                writing.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sync the renames of the metadata files in a directory to the disc.
+     */
+    private static void syncDirectory(File dir) {
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // not supported on all platforms, the files are synced anyway
+            LOG.debug("Could not sync directory " + dir, e);
+        }
+    }
+
+    private void await() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CmisStorageException("Interrupted while waiting for the metadata writers", e);
+        }
+    }
+
+    private void awaitInterruptibly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            // only close() stops the writers
+            LOG.debug("Metadata writer interrupted", e);
+        }
+    }
+
+    private static String getKey(File metadataFile) {
+        return metadataFile.getAbsoluteFile().toPath().normalize().toString();
+    }
+}
@@ -1,39 +1,42 @@
 package org.apache.chemistry.opencmis.utils;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.text.ParsePosition;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
-import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.chemistry.opencmis.commons.PropertyIds;
-import org.apache.chemistry.opencmis.commons.data.MutablePropertyData;
 import org.apache.chemistry.opencmis.commons.data.PropertyData;
 import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
-import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionContainer;
 import org.apache.chemistry.opencmis.commons.enums.Cardinality;
-import org.apache.chemistry.opencmis.commons.enums.PropertyType;
 import org.apache.chemistry.opencmis.commons.impl.JSONConstants;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.AbstractPropertyData;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyBooleanImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyDateTimeImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyDecimalImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyHtmlImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIntegerImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringDefinitionImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyUriImpl;
-import org.apache.chemistry.opencmis.commons.impl.json.JSONObject;
+import org.apache.chemistry.opencmis.commons.impl.json.JSONValue;
+import org.apache.chemistry.opencmis.commons.impl.json.parser.ContentHandler;
 import org.apache.chemistry.opencmis.commons.impl.json.parser.JSONParseException;
 import org.apache.chemistry.opencmis.commons.impl.json.parser.JSONParser;
 import org.apache.chemistry.opencmis.inmemory.storedobj.api.Fileable;
@@ -46,99 +49,161 @@ import org.apache.chemistry.opencmis.server.support.TypeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Reads and writes the JSON metadata file of an object. The object is
+ * written field by field to a writer and read from the tokens of the
+ * parser, without building a JSON tree. The cardinality of a property is
+ * taken from the definitions of the type and secondary types of the object.
+ */
 public class StoredObjectJsonSerializer {
     private static final Logger LOG = LoggerFactory
             .getLogger(StoredObjectJsonSerializer.class.getName());
 
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+            .ofPattern("uuuu-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final String PROPERTIES = "properties";
+    private static final String VALUES = "values";
+
     public StoredObjectJsonSerializer() {
     }
 
-    public JSONObject serialize(final StoredObject so, TypeManager typeManager) {
+    public String serialize(final StoredObject so, TypeManager typeManager) {
         if (so == null) {
             return null;
         }
+        StringWriter out = new StringWriter();
+        try {
+            serialize(so, typeManager, out);
+        } catch (IOException e) {
+            // not thrown by a StringWriter
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
 
-        JSONObject result = new JSONObject();
-
-        result.put(PropertyIds.OBJECT_TYPE_ID, so.getTypeId());
-        result.put(PropertyIds.OBJECT_ID, so.getId());
-        result.put(PropertyIds.NAME, so.getName());
+    public void serialize(final StoredObject so, TypeManager typeManager, Writer out) throws IOException {
+        out.write('{');
+        writeEntry(out, PropertyIds.OBJECT_TYPE_ID, so.getTypeId(), true);
+        writeEntry(out, PropertyIds.OBJECT_ID, so.getId(), false);
+        writeEntry(out, PropertyIds.NAME, so.getName(), false);
 
         if (so instanceof Fileable) {
-            result.put(PropertyIds.PARENT_ID, ((Fileable) so).getParentIds());
+            writeEntry(out, PropertyIds.PARENT_ID, ((Fileable) so).getParentIds(), false);
         }
 
         if (so instanceof Folder) {
-            result.put(PropertyIds.PATH, ((Folder) so).getPathSegment());
+            writeEntry(out, PropertyIds.PATH, ((Folder) so).getPathSegment(), false);
         }
-        
-        result.put(PropertyIds.CREATION_DATE, toString(so.getCreatedAt()));
-        result.put(PropertyIds.CREATED_BY, so.getCreatedBy());
-        result.put(PropertyIds.LAST_MODIFICATION_DATE,
-                toString(so.getModifiedAt()));
-        result.put(PropertyIds.LAST_MODIFIED_BY, so.getModifiedBy());
-        result.put(PropertyIds.CHANGE_TOKEN, so.getChangeToken());
 
-        result.put(PropertyIds.DESCRIPTION, so.getDescription());
-        result.put(PropertyIds.SECONDARY_OBJECT_TYPE_IDS,
-                so.getSecondaryTypeIds());
+        writeEntry(out, PropertyIds.CREATION_DATE, toString(so.getCreatedAt()), false);
+        writeEntry(out, PropertyIds.CREATED_BY, so.getCreatedBy(), false);
+        writeEntry(out, PropertyIds.LAST_MODIFICATION_DATE, toString(so.getModifiedAt()), false);
+        writeEntry(out, PropertyIds.LAST_MODIFIED_BY, so.getModifiedBy(), false);
+        writeEntry(out, PropertyIds.CHANGE_TOKEN, so.getChangeToken(), false);
 
-        result.put(JSONConstants.JSON_REPINFO_ID, so.getRepositoryId());
+        writeEntry(out, PropertyIds.DESCRIPTION, so.getDescription(), false);
+        writeEntry(out, PropertyIds.SECONDARY_OBJECT_TYPE_IDS, so.getSecondaryTypeIds(), false);
 
-        result.put("aclId", so.getAclId());
-        result.put("appliedPolicies", so.getAppliedPolicies());
-        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        writeEntry(out, JSONConstants.JSON_REPINFO_ID, so.getRepositoryId(), false);
+
+        writeEntry(out, "aclId", so.getAclId(), false);
+        writeEntry(out, "appliedPolicies", so.getAppliedPolicies(), false);
+
+        writeKey(out, PROPERTIES, false);
+        out.write('{');
         if (so.getProperties() != null) {
+            List<Map<String, PropertyDefinition<?>>> definitions = getPropertyDefinitions(typeManager,
+                    so.getTypeId(), so.getSecondaryTypeIds());
+            boolean first = true;
             for (PropertyData<?> item : so.getProperties().values()) {
-                JSONObject property = new JSONObject();
-                boolean manageValues = findProperty(item.getId(), typeManager).getCardinality().equals(Cardinality.MULTI);
+                boolean manageValues = isMultiValued(definitions, item.getId());
                 String type = getType(item);
-                property.put("id", item.getId());
-                property.put("displayName", item.getDisplayName());
-                property.put("localName", item.getLocalName());
-                property.put("queryName", item.getQueryName());
-                property.put("type", type);
+                writeKey(out, item.getId(), first);
+                first = false;
+                out.write('{');
+                writeEntry(out, "id", item.getId(), true);
+                writeEntry(out, "displayName", item.getDisplayName(), false);
+                writeEntry(out, "localName", item.getLocalName(), false);
+                writeEntry(out, "queryName", item.getQueryName(), false);
+                writeEntry(out, "type", type, false);
                 if (type.equals("dateTime")) {
-                    property.put("firstValue",
-                            toString((GregorianCalendar) item.getFirstValue()));
+                    writeEntry(out, "firstValue", toString((GregorianCalendar) item.getFirstValue()), false);
                     if (manageValues) {
-                    	List<String> values = new ArrayList<String>();
-	                    for (Object value : item.getValues()) {
-	                        values.add(toString((GregorianCalendar) value));
-	                    }
+                        List<String> values = new ArrayList<String>();
+                        for (Object value : item.getValues()) {
+                            values.add(toString((GregorianCalendar) value));
+                        }
+                        writeEntry(out, VALUES, values, false);
                     }
                 } else {
-                    property.put("firstValue", item.getFirstValue());
-                    if (manageValues) property.put("values", item.getValues());
+                    writeEntry(out, "firstValue", item.getFirstValue(), false);
+                    if (manageValues) {
+                        writeEntry(out, VALUES, item.getValues(), false);
+                    }
                 }
-                properties.put(item.getId(), property);
+                out.write('}');
             }
         }
-        result.put("properties", properties);
+        out.write('}');
+        out.write('}');
+    }
 
+    private static void writeKey(Writer out, String key, boolean first) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        out.write('"');
+        out.write(JSONValue.escape(key));
+        out.write("\":");
+    }
+
+    private static void writeEntry(Writer out, String key, Object value, boolean first) throws IOException {
+        writeKey(out, key, first);
+        JSONValue.writeJSONString(value, out);
+    }
+
+    /**
+     * Property definitions of a type and its secondary types, each by
+     * property id.
+     */
+    private static List<Map<String, PropertyDefinition<?>>> getPropertyDefinitions(TypeManager typeManager,
+            String typeId, Collection<String> secondaryTypeIds) {
+        List<Map<String, PropertyDefinition<?>>> result = new ArrayList<Map<String, PropertyDefinition<?>>>();
+        if (null == typeManager) {
+            return result;
+        }
+        addPropertyDefinitions(result, typeManager, typeId);
+        if (null != secondaryTypeIds) {
+            for (String secondaryTypeId : secondaryTypeIds) {
+                addPropertyDefinitions(result, typeManager, secondaryTypeId);
+            }
+        }
         return result;
     }
 
-    private PropertyDefinition<?> findProperty(String propertyId, TypeManager typeManager){
-    	return findProperty(propertyId, typeManager.getTypeDefinitionList());
+    private static void addPropertyDefinitions(List<Map<String, PropertyDefinition<?>>> result,
+            TypeManager typeManager, String typeId) {
+        TypeDefinitionContainer container = null == typeId ? null : typeManager.getTypeById(typeId);
+        if (null != container && null != container.getTypeDefinition().getPropertyDefinitions()) {
+            result.add(container.getTypeDefinition().getPropertyDefinitions());
+        }
     }
-    
-    private PropertyDefinition<?> findProperty(String propertyId, Collection<TypeDefinitionContainer> containers){
-        for (TypeDefinitionContainer typeDefinitionContainer : containers) {
-        	TypeDefinition typeDefinition = typeDefinitionContainer.getTypeDefinition();
-        	if (typeDefinition.getPropertyDefinitions().containsKey(propertyId)) {
-        		return typeDefinition.getPropertyDefinitions().get(propertyId);
-        	}
-        	return findProperty(propertyId, typeDefinitionContainer.getChildren());
-		}
-        // by default return a simple string property
-        PropertyStringDefinitionImpl defaultProperty = new PropertyStringDefinitionImpl();
-        defaultProperty.setCardinality(Cardinality.SINGLE);
-        defaultProperty.setId(propertyId);
-        defaultProperty.setPropertyType(PropertyType.STRING);
-        return defaultProperty;
+
+    /**
+     * A property without definition is single valued.
+     */
+    private static boolean isMultiValued(List<Map<String, PropertyDefinition<?>>> definitions, String propertyId) {
+        for (Map<String, PropertyDefinition<?>> map : definitions) {
+            PropertyDefinition<?> definition = map.get(propertyId);
+            if (null != definition) {
+                return Cardinality.MULTI == definition.getCardinality();
+            }
+        }
+        return false;
     }
-    
+
     private String getType(PropertyData<?> item) {
         if (item instanceof PropertyStringImpl) {
             return "string";
@@ -163,21 +228,21 @@ public class StoredObjectJsonSerializer {
     }
 
     private PropertyData<?> getPropertyDataFromType(String type) {
-        if (type.equals("string")) {
+        if ("string".equals(type)) {
             return new PropertyStringImpl();
-        } else if (type.equals("boolean")) {
+        } else if ("boolean".equals(type)) {
             return new PropertyBooleanImpl();
-        } else if (type.equals("dateTime")) {
+        } else if ("dateTime".equals(type)) {
             return new PropertyDateTimeImpl();
-        } else if (type.equals("decimal")) {
+        } else if ("decimal".equals(type)) {
             return new PropertyDecimalImpl();
-        } else if (type.equals("integer")) {
+        } else if ("integer".equals(type)) {
             return new PropertyIntegerImpl();
-        } else if (type.equals("uri")) {
+        } else if ("uri".equals(type)) {
             return new PropertyUriImpl();
-        } else if (type.equals("html")) {
+        } else if ("html".equals(type)) {
             return new PropertyHtmlImpl();
-        } else if (type.equals("id")) {
+        } else if ("id".equals(type)) {
             return new PropertyIdImpl();
         } else {
             // by default string
@@ -185,112 +250,105 @@ public class StoredObjectJsonSerializer {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public StoredObject deserialize(final String jsonString, TypeManager typeManager) {
         if (jsonString == null) {
             return null;
         }
+        try {
+            return deserialize(new StringReader(jsonString), typeManager);
+        } catch (IOException e) {
+            // not thrown by a StringReader
+            throw new IllegalStateException(e);
+        }
+    }
 
-        JSONObject result = new JSONObject();
+    /**
+     * Read an object from its metadata.
+     *
+     * @return the object, null if the metadata is not valid JSON
+     */
+    public StoredObject deserialize(Reader in, TypeManager typeManager) throws IOException {
+        ObjectHandler handler = new ObjectHandler();
         try {
-            result = (JSONObject) new JSONParser().parse(jsonString);
+            new JSONParser().parse(in, handler);
         } catch (JSONParseException e) {
-            e.printStackTrace();
+            LOG.warn("Invalid metadata", e);
             return null;
         }
+        Map<String, Object> result = handler.values;
+
         StoredObject so = null;
         if ("cmis:folder".equals(result.get(PropertyIds.OBJECT_TYPE_ID))) {
             so = new FolderImpl();
-            if (result.containsKey(PropertyIds.PARENT_ID)
-                    && result.get(PropertyIds.PARENT_ID) != null) {
-                List<String> parentIds = (List<String>) result
-                        .get(PropertyIds.PARENT_ID);
-                if (parentIds != null && parentIds.size() > 0) {
-                    ((Folder) so).setParentId(parentIds.get(0));
-                }
+            List<String> parentIds = getStrings(result.get(PropertyIds.PARENT_ID));
+            if (parentIds != null && parentIds.size() > 0) {
+                ((Folder) so).setParentId(parentIds.get(0));
             }
         } else {
             so = new DocumentImpl();
-            if (result.containsKey(PropertyIds.PARENT_ID)
-                    && result.get(PropertyIds.PARENT_ID) != null) {
-                List<String> parentIds = (List<String>) result
-                        .get(PropertyIds.PARENT_ID);
+            List<String> parentIds = getStrings(result.get(PropertyIds.PARENT_ID));
+            if (parentIds != null) {
                 for (String parent : parentIds) {
                     ((MultiFiling) so).addParentId(parent);
                 }
             }
         }
-        if (result.containsKey(PropertyIds.OBJECT_ID)
-                && result.get(PropertyIds.OBJECT_ID) != null) {
+        if (result.get(PropertyIds.OBJECT_ID) != null) {
             so.setId(result.get(PropertyIds.OBJECT_ID).toString());
         }
-        if (result.containsKey(PropertyIds.CREATION_DATE)
-                && result.get(PropertyIds.CREATION_DATE) != null) {
-            so.setCreatedAt(toGregorianCalendar(result.get(
-                    PropertyIds.CREATION_DATE).toString()));
+        if (result.get(PropertyIds.CREATION_DATE) != null) {
+            so.setCreatedAt(toGregorianCalendar(result.get(PropertyIds.CREATION_DATE).toString()));
         }
-        if (result.containsKey(PropertyIds.CREATED_BY)
-                && result.get(PropertyIds.CREATED_BY) != null) {
+        if (result.get(PropertyIds.CREATED_BY) != null) {
             so.setCreatedBy(result.get(PropertyIds.CREATED_BY).toString());
         }
-        if (result.containsKey(PropertyIds.DESCRIPTION)
-                && result.get(PropertyIds.DESCRIPTION) != null) {
+        if (result.get(PropertyIds.DESCRIPTION) != null) {
             so.setDescription(result.get(PropertyIds.DESCRIPTION).toString());
         }
-        if (result.containsKey(PropertyIds.LAST_MODIFICATION_DATE)
-                && result.get(PropertyIds.LAST_MODIFICATION_DATE) != null) {
-            so.setModifiedAt(toGregorianCalendar(result.get(
-                    PropertyIds.LAST_MODIFICATION_DATE).toString()));
+        if (result.get(PropertyIds.LAST_MODIFICATION_DATE) != null) {
+            so.setModifiedAt(toGregorianCalendar(result.get(PropertyIds.LAST_MODIFICATION_DATE).toString()));
         }
-        if (result.containsKey(PropertyIds.LAST_MODIFIED_BY)
-                && result.get(PropertyIds.LAST_MODIFIED_BY) != null) {
-            so.setModifiedBy(result.get(PropertyIds.LAST_MODIFIED_BY)
-                    .toString());
+        if (result.get(PropertyIds.LAST_MODIFIED_BY) != null) {
+            so.setModifiedBy(result.get(PropertyIds.LAST_MODIFIED_BY).toString());
         }
-        if (result.containsKey(PropertyIds.NAME)
-                && result.get(PropertyIds.NAME) != null) {
+        if (result.get(PropertyIds.NAME) != null) {
             so.setName(result.get(PropertyIds.NAME).toString());
         }
-        if (result.containsKey(JSONConstants.JSON_REPINFO_ID)
-                && result.get(JSONConstants.JSON_REPINFO_ID) != null) {
-            so.setRepositoryId(result.get(JSONConstants.JSON_REPINFO_ID)
-                    .toString());
+        if (result.get(JSONConstants.JSON_REPINFO_ID) != null) {
+            so.setRepositoryId(result.get(JSONConstants.JSON_REPINFO_ID).toString());
         }
-        if (result.containsKey(PropertyIds.OBJECT_TYPE_ID)
-                && result.get(PropertyIds.OBJECT_TYPE_ID) != null) {
+        if (result.get(PropertyIds.OBJECT_TYPE_ID) != null) {
             so.setTypeId(result.get(PropertyIds.OBJECT_TYPE_ID).toString());
         }
 
         Map<String, PropertyData<?>> properties = new LinkedHashMap<String, PropertyData<?>>();
-        if (result.containsKey(PropertyIds.SECONDARY_OBJECT_TYPE_IDS)
-                && result.get(PropertyIds.SECONDARY_OBJECT_TYPE_IDS) != null) {
-            List<String> jsonSecondaryTypes = (List<String>) result
-                    .get(PropertyIds.SECONDARY_OBJECT_TYPE_IDS);
-            PropertyIdImpl secondaryTypes = new PropertyIdImpl(
-                    PropertyIds.SECONDARY_OBJECT_TYPE_IDS, jsonSecondaryTypes);
-            properties.put(PropertyIds.SECONDARY_OBJECT_TYPE_IDS,
-                    secondaryTypes);
+        List<String> secondaryTypeIds = getStrings(result.get(PropertyIds.SECONDARY_OBJECT_TYPE_IDS));
+        if (secondaryTypeIds != null) {
+            PropertyIdImpl secondaryTypes = new PropertyIdImpl(PropertyIds.SECONDARY_OBJECT_TYPE_IDS,
+                    secondaryTypeIds);
+            properties.put(PropertyIds.SECONDARY_OBJECT_TYPE_IDS, secondaryTypes);
             so.getSecondaryTypeIds().addAll(secondaryTypes.getValues());
         }
-        Map<String, Object> jsonProperties = (Map<String, Object>) result
-                .get("properties");
-        for (Map.Entry<String, Object> property : jsonProperties.entrySet()) {
-        	boolean manageValues = findProperty(property.getKey(), typeManager).getCardinality().equals(Cardinality.MULTI);
-            JSONObject jsonPropertyData = (JSONObject) property.getValue();
-            PropertyData<?> propertyData = getPropertyDataFromType((String) jsonPropertyData
-                    .get("type"));
-            ((MutablePropertyData<?>) propertyData)
-                    .setId((String) jsonPropertyData.get("id"));
-            ((MutablePropertyData<?>) propertyData)
-                    .setDisplayName((String) jsonPropertyData
-                            .get("displayName"));
-            ((MutablePropertyData<?>) propertyData)
-                    .setLocalName((String) jsonPropertyData.get("localName"));
-            ((MutablePropertyData<?>) propertyData)
-                    .setQueryName((String) jsonPropertyData.get("queryName"));
-            setValues(propertyData, manageValues ? (List<?>) jsonPropertyData.get("values") : null,
-                    jsonPropertyData.get("firstValue") != null ? jsonPropertyData.get("firstValue").toString() : null);
-            properties.put(property.getKey(), propertyData);
+        List<Map<String, PropertyDefinition<?>>> definitions = getPropertyDefinitions(typeManager,
+                so.getTypeId(), secondaryTypeIds);
+        for (JsonProperty property : handler.properties) {
+            boolean manageValues = isMultiValued(definitions, property.key);
+            PropertyData<?> propertyData = getPropertyDataFromType(property.type);
+            @SuppressWarnings("unchecked")
+            AbstractPropertyData<Object> mutable = (AbstractPropertyData<Object>) propertyData;
+            mutable.setId(property.id);
+            mutable.setDisplayName(property.displayName);
+            mutable.setLocalName(property.localName);
+            mutable.setQueryName(property.queryName);
+            mutable.setValue(toValue(propertyData, property.firstValue));
+            if (manageValues && property.values != null) {
+                List<Object> values = new ArrayList<Object>(property.values.size());
+                for (Object value : property.values) {
+                    values.add(toValue(propertyData, value));
+                }
+                mutable.setValues(values);
+            }
+            properties.put(property.key, propertyData);
         }
         so.setProperties(properties);
 
@@ -298,66 +356,171 @@ public class StoredObjectJsonSerializer {
     }
 
     @SuppressWarnings("unchecked")
-    private void setValues(PropertyData<?> item, List<?> values, Object value) {
-        if (item instanceof PropertyStringImpl) {
-            ((PropertyStringImpl) item).setValue((String) value);
-            if(values != null) ((PropertyStringImpl) item).setValues((List<String>) values);
-        } else if (item instanceof PropertyBooleanImpl) {
-            ((PropertyBooleanImpl) item).setValue(Boolean
-                    .valueOf((String) value));
-            if(values != null) ((PropertyBooleanImpl) item).setValues((List<Boolean>) values);
-        } else if (item instanceof PropertyUriImpl) {
-            ((PropertyUriImpl) item).setValue((String) value);
-            if(values != null) ((PropertyUriImpl) item).setValues((List<String>) values);
-        } else if (item instanceof PropertyHtmlImpl) {
-            ((PropertyHtmlImpl) item).setValue((String) value);
-            if(values != null) ((PropertyHtmlImpl) item).setValues((List<String>) values);
-        } else if (item instanceof PropertyIdImpl) {
-            ((PropertyIdImpl) item).setValue((String) value);
-            if(values != null) ((PropertyIdImpl) item).setValues((List<String>) values);
-        } else if (item instanceof PropertyDateTimeImpl) {
-            ((PropertyDateTimeImpl) item)
-                    .setValue(toGregorianCalendar((String) value));
-            if(values != null) {
-	            List<String> dates = (List<String>) values;
-	            List<GregorianCalendar> datetimes = new ArrayList<GregorianCalendar>();
-	            if(dates != null) {
-		            for (String date : dates) {
-		                datetimes.add(toGregorianCalendar(date));
-		            }
-		            ((PropertyDateTimeImpl) item).setValues(datetimes);
-	            }
-            }
-        } else if (item instanceof PropertyDecimalImpl) {
-            ((PropertyDecimalImpl) item).setValue((BigDecimal) value);
-            if(values != null) ((PropertyDecimalImpl) item).setValues((List<BigDecimal>) values);
+    private static List<String> getStrings(Object value) {
+        return value instanceof List ? (List<String>) value : null;
+    }
+
+    /**
+     * Value of a property from its JSON value.
+     */
+    private Object toValue(PropertyData<?> item, Object value) {
+        if (null == value) {
+            return null;
+        }
+        if (item instanceof PropertyDateTimeImpl) {
+            return toGregorianCalendar(value.toString());
         } else if (item instanceof PropertyIntegerImpl) {
-            ((PropertyIntegerImpl) item).setValue((BigInteger) value);
-            if(values != null) ((PropertyIntegerImpl) item).setValues((List<BigInteger>) values);
+            return value instanceof BigInteger ? value : new BigDecimal(value.toString()).toBigInteger();
+        } else if (item instanceof PropertyDecimalImpl) {
+            return value instanceof BigDecimal ? value : new BigDecimal(value.toString());
+        } else if (item instanceof PropertyBooleanImpl) {
+            return Boolean.valueOf(value.toString());
         } else {
-            ((PropertyIdImpl) item).setValue((String) value);
-            if(values != null) ((PropertyIdImpl) item).setValues((List<String>) values);
+            return value.toString();
         }
     }
 
     private String toString(GregorianCalendar gc) {
-        DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return formatter.format(((GregorianCalendar) gc).getTime());
+        return null == gc ? null : DATE_FORMAT.format(gc.toInstant());
     }
 
     private GregorianCalendar toGregorianCalendar(String value) {
-        DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-        Date date = new Date();
+        GregorianCalendar calendar = new GregorianCalendar(UTC);
         try {
-            date = formatter.parse(value);
-        } catch (ParseException e) {
+            // like a DateFormat, text after the date is ignored
+            LocalDateTime date = LocalDateTime.from(DATE_FORMAT.parse(value, new ParsePosition(0)));
+            calendar.setTimeInMillis(date.toInstant(ZoneOffset.UTC).toEpochMilli());
+        } catch (RuntimeException e) {
             LOG.warn("When converting UTCString to GregorianCalendar", e);
         }
-        Calendar calendar = formatter.getCalendar();
+        return calendar;
+    }
+
+    /**
+     * The fields of a property read from the metadata.
+     */
+    private static class JsonProperty {
+        private final String key;
+        private String id;
+        private String displayName;
+        private String localName;
+        private String queryName;
+        private String type;
+        private Object firstValue;
+        private List<Object> values;
+
+        JsonProperty(String key) {
+            this.key = key;
+        }
+
+        @SuppressWarnings("unchecked")
+        void set(String field, Object value) {
+            if ("id".equals(field)) {
+                id = toString(value);
+            } else if ("displayName".equals(field)) {
+                displayName = toString(value);
+            } else if ("localName".equals(field)) {
+                localName = toString(value);
+            } else if ("queryName".equals(field)) {
+                queryName = toString(value);
+            } else if ("type".equals(field)) {
+                type = toString(value);
+            } else if ("firstValue".equals(field)) {
+                firstValue = value;
+            } else if (VALUES.equals(field) && value instanceof List) {
+                values = (List<Object>) value;
+            }
+        }
+
+        private static String toString(Object value) {
+            return null == value ? null : value.toString();
+        }
+    }
+
+    /**
+     * Collects the top level values of the metadata, with arrays as lists,
+     * and the fields of each property.
+     */
+    private static class ObjectHandler implements ContentHandler {
+        private final Map<String, Object> values = new HashMap<String, Object>();
+        private final List<JsonProperty> properties = new ArrayList<JsonProperty>();
+
+        private int depth;
+        private int arrayDepth;
+        private String key;
+        private String propertyKey;
+        private String field;
+        private List<Object> array;
+        private JsonProperty property;
+
+        public void startJSON() {
+        }
+
+        public void endJSON() {
+        }
+
+        public boolean startObject() {
+            depth++;
+            if (depth == 3 && arrayDepth == 0 && PROPERTIES.equals(key)) {
+                property = new JsonProperty(propertyKey);
+            }
+            return true;
+        }
+
+        public boolean endObject() {
+            if (depth == 3 && null != property) {
+                properties.add(property);
+                property = null;
+            }
+            depth--;
+            return true;
+        }
 
-        calendar.setTime(date);
-        return (GregorianCalendar) calendar;
+        public boolean startObjectEntry(String entryKey) {
+            if (depth == 1) {
+                key = entryKey;
+            } else if (depth == 2) {
+                propertyKey = entryKey;
+            } else if (depth == 3) {
+                field = entryKey;
+            }
+            return true;
+        }
+
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        public boolean startArray() {
+            if (arrayDepth++ == 0) {
+                array = new ArrayList<Object>();
+            }
+            return true;
+        }
+
+        public boolean endArray() {
+            if (--arrayDepth == 0) {
+                setValue(array);
+                array = null;
+            }
+            return true;
+        }
+
+        public boolean primitive(Object value) {
+            if (arrayDepth == 1) {
+                array.add(value);
+            } else if (arrayDepth == 0) {
+                setValue(value);
+            }
+            return true;
+        }
+
+        private void setValue(Object value) {
+            if (depth == 1) {
+                values.put(key, value);
+            } else if (depth == 3 && null != property) {
+                property.set(field, value);
+            }
+        }
     }
 }
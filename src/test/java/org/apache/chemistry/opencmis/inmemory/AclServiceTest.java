@@ -21,6 +21,7 @@ package org.apache.chemistry.opencmis.inmemory;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
@@ -36,7 +37,12 @@ import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
 import org.apache.chemistry.opencmis.commons.enums.VersioningState;
 import org.apache.chemistry.opencmis.commons.impl.jaxb.EnumBasicPermissions;
 import org.apache.chemistry.opencmis.inmemory.ObjectServiceTest.ObjectTestTypeSystemCreator;
+import org.apache.chemistry.opencmis.inmemory.server.InMemoryServiceContext;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
 import org.apache.chemistry.opencmis.inmemory.storedobj.impl.InMemoryAce;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.InMemoryAcl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.Permission;
 import org.apache.chemistry.opencmis.inmemory.types.DocumentTypeCreationHelper;
 import org.junit.After;
 import org.junit.Before;
@@ -248,6 +254,98 @@ public class AclServiceTest extends AbstractServiceTest {
         LOG.info("... testRemoveAllAcls() finished.");
     }
 
+    @Test
+    public void testSharedAcls() {
+        Acl acl = createAdvancedTestAcl();
+        String id1 = createDocument(DOCUMENT_NAME + "-1", fRootFolderId, acl, defaultAcl);
+        ObjectStoreImpl store = getObjectStore();
+        int aclCount = store.getAclCount();
+
+        // an ACL with the same entries is registered once
+        String id2 = createDocument(DOCUMENT_NAME + "-2", fRootFolderId, createAdvancedTestAcl(), defaultAcl);
+        assertEquals(aclCount, store.getAclCount());
+        StoredObject doc1 = store.getObjectById(id1);
+        StoredObject doc2 = store.getObjectById(id2);
+        assertEquals(doc1.getAclId(), doc2.getAclId());
+
+        // changing the ACL of one object does not change the shared one
+        fAclSvc.applyAcl(fRepositoryId, id2, createAclAdd(), createAclRemove(), AclPropagation.OBJECTONLY, null);
+        assertNotSame(doc1.getAclId(), doc2.getAclId());
+        checkAdvancedTestAcl(acl, fAclSvc.getAcl(fRepositoryId, id1, true, null));
+        checkAclAfterAddRemove(fAclSvc.getAcl(fRepositoryId, id2, true, null));
+
+        // going back to the same entries shares the ACL again
+        fAclSvc.applyAcl(fRepositoryId, id2, createAclRemove(), createAclAdd(), AclPropagation.OBJECTONLY, null);
+        assertEquals(doc1.getAclId(), doc2.getAclId());
+        assertEquals(aclCount + 1, store.getAclCount());
+    }
+
+    @Test
+    public void testGrantsAfterApplyAcl() {
+        String id = createDocument(fRootFolderId, createAdvancedTestAcl(), defaultAcl);
+        ObjectStoreImpl store = getObjectStore();
+        StoredObject so = store.getObjectById(id);
+
+        // check first, so that the grants of the principals are cached
+        assertTrue(store.hasReadAccess(ALICE, so));
+        assertFalse(store.hasWriteAccess(ALICE, so));
+        assertTrue(store.hasWriteAccess(BOB, so));
+        assertFalse(store.hasAllAccess(BOB, so));
+        assertTrue(store.hasAllAccess(CHRIS, so));
+        assertFalse(store.hasReadAccess(DAN, so));
+        int oldAclId = so.getAclId();
+        assertTrue(store.getAllAclsForUser(BOB, Permission.WRITE).contains(oldAclId));
+        assertFalse(store.getAllAclsForUser(DAN, Permission.WRITE).contains(oldAclId));
+
+        fAclSvc.applyAcl(fRepositoryId, id, createAclAdd(), createAclRemove(), AclPropagation.OBJECTONLY, null);
+        int newAclId = so.getAclId();
+        assertTrue(store.hasReadAccess(ALICE, so));
+        assertFalse(store.hasWriteAccess(ALICE, so));
+        assertFalse(store.hasReadAccess(BOB, so));
+        assertFalse(store.hasReadAccess(CHRIS, so));
+        assertTrue(store.hasWriteAccess(DAN, so));
+        assertFalse(store.hasAllAccess(DAN, so));
+        assertTrue(store.getAllAclsForUser(DAN, Permission.WRITE).contains(newAclId));
+        assertFalse(store.getAllAclsForUser(BOB, Permission.READ).contains(newAclId));
+        assertTrue(store.getAllAclsForUser(BOB, Permission.WRITE).contains(oldAclId));
+    }
+
+    @Test
+    public void testAnonymousAccess() {
+        List<Acl> acls = Arrays.asList(
+                createAcl(createAce(InMemoryAce.getAnonymousUser(), EnumBasicPermissions.CMIS_READ.value()),
+                        createAce(InMemoryAce.getAnyoneUser(), EnumBasicPermissions.CMIS_WRITE.value())),
+                createAcl(createAce(InMemoryAce.getAnonymousUser(), EnumBasicPermissions.CMIS_ALL.value()),
+                        createAce(InMemoryAce.getAnyoneUser(), EnumBasicPermissions.CMIS_READ.value())),
+                createAcl(createAce(InMemoryAce.getAnyoneUser(), EnumBasicPermissions.CMIS_WRITE.value()),
+                        createAce(ALICE, EnumBasicPermissions.CMIS_ALL.value())),
+                createAcl(createAce(ALICE, EnumBasicPermissions.CMIS_READ.value()),
+                        createAce(InMemoryAce.getAnonymousUser(), EnumBasicPermissions.CMIS_WRITE.value())),
+                createAcl(createAce(ALICE, EnumBasicPermissions.CMIS_ALL.value())));
+        ObjectStoreImpl store = null;
+        for (int i = 0; i < acls.size(); i++) {
+            String id = createDocument(DOCUMENT_NAME + "-" + i, fRootFolderId, null, null);
+            store = getObjectStore();
+            StoredObject so = store.getObjectById(id);
+            store.applyAcl(so, acls.get(i), AclPropagation.OBJECTONLY, null);
+            InMemoryAcl acl = InMemoryAcl.createFromCommonsAcl(store.getAcl(so.getAclId()));
+            assertEquals(acls.get(i).getAces().size(), acl.size());
+
+            // a missing principal gets the same access as the anonymous user,
+            // whichever of both is checked first
+            String[] principals = i % 2 == 0 ? new String[] { null, InMemoryAce.getAnonymousUser() } : new String[] {
+                    InMemoryAce.getAnonymousUser(), null };
+            for (String principalId : principals) {
+                String msg = "ACL " + i + ", principal " + principalId;
+                assertEquals(msg, acl.hasPermission(principalId, Permission.READ),
+                        store.hasReadAccess(principalId, so));
+                assertEquals(msg, acl.hasPermission(principalId, Permission.WRITE),
+                        store.hasWriteAccess(principalId, so));
+                assertEquals(msg, acl.hasPermission(principalId, Permission.ALL), store.hasAllAccess(principalId, so));
+            }
+        }
+    }
+
     private String createDocument(String name, String folderId, Acl addAces, Acl removeAces) {
         return createDocumentNoCatch(name, folderId, DOCUMENT_TYPE_ID, VersioningState.NONE, false, addAces, removeAces);
     }
@@ -331,6 +429,15 @@ public class AclServiceTest extends AbstractServiceTest {
         assertTrue(aclHasPermission(aclReturn, CHRIS, EnumBasicPermissions.CMIS_ALL.value()));
     }
 
+    private Acl createAcl(Ace... aces) {
+        return fFactory.createAccessControlList(Arrays.asList(aces));
+    }
+
+    private ObjectStoreImpl getObjectStore() {
+        return (ObjectStoreImpl) InMemoryServiceContext.getCmisService().getStoreManager()
+                .getObjectStore(fRepositoryId);
+    }
+
     private Ace createAce(String principalId, String permission) {
         return fFactory.createAccessControlEntry(principalId, Collections.singletonList(permission));
     }
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisBaseException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisNameConstraintViolationException;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.BindingsObjectFactoryImpl;
+import org.apache.chemistry.opencmis.commons.spi.BindingsObjectFactory;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.Document;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.Fileable;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.Folder;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Concurrent changes of the same folders directly against the in-memory
+ * object store.
+ */
+public class FolderConcurrencyTest {
+
+    private static final String TEST_REPOSITORY_ID = "TestRepositoryId";
+    private static final String USER = "user";
+    private static final int THREADS = 8;
+    private static final int TIMEOUT_SECONDS = 30;
+
+    private final BindingsObjectFactory fFactory = new BindingsObjectFactoryImpl();
+    private ObjectStoreImpl fStore;
+    private Folder fRoot;
+    private ExecutorService fExecutor;
+
+    @Before
+    public void setUp() {
+        fStore = new ObjectStoreImpl(TEST_REPOSITORY_ID, "", null);
+        fRoot = fStore.getRootFolder();
+        fExecutor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        fExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testCreateSameName() throws Exception {
+        final Folder folder = createFolder("Folder", fRoot);
+        for (int round = 0; round < 20; round++) {
+            final String name = "doc" + round;
+            List<Future<Document>> results = runAll(new Callable<Document>() {
+                public Document call() {
+                    try {
+                        return createDocument(name, folder);
+                    } catch (CmisNameConstraintViolationException e) {
+                        return null;
+                    }
+                }
+            });
+            int created = 0;
+            for (Future<Document> result : results) {
+                if (null != result.get()) {
+                    created++;
+                }
+            }
+            assertEquals("Name " + name + " created more than once", 1, created);
+        }
+        assertEquals(20, getChildCount(folder));
+    }
+
+    @Test
+    public void testCreateSameFolder() throws Exception {
+        final Folder folder = createFolder("Folder", fRoot);
+        List<Future<Folder>> results = runAll(new Callable<Folder>() {
+            public Folder call() {
+                return createFolder("Sub", folder);
+            }
+        });
+        // creating an existing folder returns it
+        String id = results.get(0).get().getId();
+        for (Future<Folder> result : results) {
+            assertEquals(id, result.get().getId());
+        }
+        assertEquals(1, getChildCount(folder));
+    }
+
+    @Test
+    public void testCrossMoves() throws Exception {
+        final Folder a = createFolder("A", fRoot);
+        final Folder b = createFolder("B", fRoot);
+        final int count = 200;
+        final List<Document> inA = new ArrayList<Document>();
+        final List<Document> inB = new ArrayList<Document>();
+        for (int i = 0; i < count; i++) {
+            inA.add(createDocument("a" + i, a));
+            inB.add(createDocument("b" + i, b));
+        }
+
+        Future<?> aToB = fExecutor.submit(new Runnable() {
+            public void run() {
+                for (Document doc : inA) {
+                    fStore.move(doc, a, b, USER);
+                }
+            }
+        });
+        Future<?> bToA = fExecutor.submit(new Runnable() {
+            public void run() {
+                for (Document doc : inB) {
+                    fStore.move(doc, b, a, USER);
+                }
+            }
+        });
+        aToB.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        bToA.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(count, getChildCount(a));
+        assertEquals(count, getChildCount(b));
+        for (int i = 0; i < count; i++) {
+            assertParent(b, inA.get(i));
+            assertParent(a, inB.get(i));
+            assertEquals(inA.get(i), fStore.getObjectByPath("/B/a" + i, USER));
+            assertNull(fStore.getObjectByPath("/A/a" + i, USER));
+        }
+    }
+
+    @Test
+    public void testDeleteWhileCreating() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final Folder folder = createFolder("Folder" + round, fRoot);
+            final String folderId = folder.getId();
+            final int round0 = round;
+            List<Future<Document>> results = runAll(new Callable<Document>() {
+                private int fNext = 0;
+
+                public Document call() {
+                    String name;
+                    synchronized (this) {
+                        name = "doc" + round0 + "-" + fNext++;
+                    }
+                    if (name.endsWith("-0")) {
+                        // one thread deletes the folder, succeeding only
+                        // while it is still empty
+                        try {
+                            fStore.deleteObject(folderId, true, USER);
+                        } catch (CmisBaseException e) {
+                            // not empty any more
+                        }
+                        return null;
+                    }
+                    try {
+                        return createDocument(name, folder);
+                    } catch (CmisBaseException e) {
+                        // folder already deleted
+                        return null;
+                    }
+                }
+            });
+
+            List<Document> created = new ArrayList<Document>();
+            for (Future<Document> result : results) {
+                if (null != result.get()) {
+                    created.add(result.get());
+                }
+            }
+            if (null == fStore.getObjectById(folderId)) {
+                assertTrue("Document created in deleted folder", created.isEmpty());
+            } else {
+                assertEquals(created.size(), getChildCount(folder));
+                for (Document doc : created) {
+                    assertParent(folder, doc);
+                    assertNotNull(fStore.getObjectById(doc.getId()));
+                }
+            }
+        }
+    }
+
+    private <T> List<Future<T>> runAll(Callable<T> task) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> results = new ArrayList<Future<T>>();
+        for (int i = 0; i < THREADS; i++) {
+            final Callable<T> inner = task;
+            results.add(fExecutor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    start.await();
+                    return inner.call();
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<T> result : results) {
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        return results;
+    }
+
+    private void assertParent(Folder parent, Fileable child) {
+        List<String> parentIds = child.getParentIds();
+        assertEquals(1, parentIds.size());
+        assertEquals(parent.getId(), parentIds.get(0));
+    }
+
+    private int getChildCount(Folder folder) {
+        return fStore.getChildren(folder, -1, -1, USER, false).getChildren().size();
+    }
+
+    private Folder createFolder(String name, Folder parent) {
+        return fStore.createFolder(name, null, USER, parent, null, null, null);
+    }
+
+    private Document createDocument(String name, Folder folder) {
+        Map<String, PropertyData<?>> props = new HashMap<String, PropertyData<?>>();
+        props.put(PropertyIds.NAME, fFactory.createPropertyStringData(PropertyIds.NAME, name));
+        props.put(PropertyIds.OBJECT_TYPE_ID,
+                fFactory.createPropertyIdData(PropertyIds.OBJECT_TYPE_ID, BaseTypeId.CMIS_DOCUMENT.value()));
+        return fStore.createDocument(props, USER, folder, null, null, null, null);
+    }
+}
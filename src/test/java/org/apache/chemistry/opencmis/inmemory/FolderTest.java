@@ -94,6 +94,9 @@ public class FolderTest extends TestCase {
         assertEquals(getPath(f2), Filing.PATH_SEPARATOR + newName);
         assertNull(fStore.getObjectByPath(oldPath, USER));
         assertEquals(f2, fStore.getObjectByPath(Filing.PATH_SEPARATOR + newName, USER));
+        // the old name is free again, the new one is taken
+        assertNotSame(f2, createFolder("Folder 2", fRoot));
+        assertSame(f2, createFolder(newName, fRoot));
         try {
             fStore.rename(f2, "Folder 3", USER);
             fail("Should not allow to rename a folder to an existing name");
@@ -129,6 +132,11 @@ public class FolderTest extends TestCase {
         assertNull(fStore.getObjectByPath(oldPath, USER));
         assertEquals(getPath(f1), "/Folder 3/Folder 1");
         assertEquals(f1, fStore.getObjectByPath("/Folder 3/Folder 1", USER));
+        assertEquals(f11, fStore.getObjectByPath("/Folder 3/Folder 1/Folder 1.1", USER));
+        assertEquals("/Folder 3/Folder 1/Folder 1.1", getPath(f11));
+        assertNull(fStore.getObjectByPath("/Folder 1/Folder 1.1", USER));
+        assertEquals(1, fStore.getChildren(f3, -1, -1, USER, false).getChildren().size());
+        assertEquals(3, fStore.getChildren(fRoot, -1, -1, USER, false).getChildren().size());
 
         fStore.rename(f2, "Folder 1", USER);
         try {
@@ -139,6 +147,24 @@ public class FolderTest extends TestCase {
         }
     }
 
+    @Test
+    public void testFolderTree() {
+        assertTrue(fStore.isInFolderTree(f11, f1));
+        assertTrue(fStore.isInFolderTree(f11, fRoot));
+        assertTrue(fStore.isInFolderTree(f1, f1));
+        assertFalse(fStore.isInFolderTree(f1, f11));
+        assertFalse(fStore.isInFolderTree(f11, f3));
+        assertTrue(fStore.isInTree(f11, f1.getId(), USER));
+        assertFalse(fStore.isInTree(f1, f1.getId(), USER));
+
+        fStore.move(f1, fRoot, f3, USER);
+        assertTrue(fStore.isInFolderTree(f11, f3));
+        assertTrue(fStore.isInFolderTree(f1, f3));
+        assertFalse(fStore.isInFolderTree(f3, f1));
+        assertTrue(fStore.isInTree(f11, f3.getId(), USER));
+        assertFalse(fStore.isInTree(f11, f2.getId(), USER));
+    }
+
     @Test
     public void testDeleteFolder() {
         String oldPath = getPath(f2);
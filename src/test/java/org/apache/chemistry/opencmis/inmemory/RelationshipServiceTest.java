@@ -50,12 +50,10 @@ import org.apache.chemistry.opencmis.commons.spi.Holder;
 import org.apache.chemistry.opencmis.inmemory.ObjectServiceTest.ObjectTestTypeSystemCreator;
 import org.junit.After;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@Ignore
 public class RelationshipServiceTest extends AbstractServiceTest {
 
     private static final Logger log = LoggerFactory.getLogger(ObjectServiceTest.class);
@@ -159,6 +157,43 @@ public class RelationshipServiceTest extends AbstractServiceTest {
 
     }
 
+    @Test
+    public void testRelationshipsAfterDelete() {
+        final String id1 = createRelationship("CrossReference1", ObjectServiceTest.TEST_RELATION_TYPE_ID, docId1,
+                targetId, createRelationshipProperties(REL_CUSTOM_PROP_VALUE));
+        String id2 = createRelationship("CrossReference2", ObjectServiceTest.TEST_RELATION_TYPE_ID, docId2,
+                targetId, createRelationshipProperties(REL_CUSTOM_PROP_VALUE));
+
+        // deleting a relationship removes it from its source and target
+        fObjSvc.deleteObject(fRepositoryId, id2, true, null);
+        assertEquals(0, getRelationshipCount(docId2, RelationshipDirection.SOURCE));
+        ObjectList objectList = fRelSvc.getObjectRelationships(REPOSITORY_ID, targetId, false,
+                RelationshipDirection.TARGET, null, null, null, null, null, null);
+        assertEquals(1, objectList.getNumItems().longValue());
+        List<String> ids = new ArrayList<String>(Collections.singletonList(id1));
+        verifyRelation(objectList.getObjects().get(0), ids, ObjectServiceTest.TEST_RELATION_TYPE_ID, targetId,
+                RelationshipDirection.TARGET);
+        assertTrue(ids.isEmpty());
+
+        // deleting the source keeps the relationship
+        fObjSvc.deleteObject(fRepositoryId, docId1, true, null);
+        assertEquals(1, getRelationshipCount(targetId, RelationshipDirection.TARGET));
+
+        fObjSvc.deleteObject(fRepositoryId, id1, true, null);
+        assertEquals(0, getRelationshipCount(targetId, RelationshipDirection.EITHER));
+
+        // the target can get new relationships once all are deleted
+        final String id3 = createRelationship("CrossReference3", ObjectServiceTest.TEST_RELATION_TYPE_ID, docId2,
+                targetId, createRelationshipProperties(REL_CUSTOM_PROP_VALUE));
+        objectList = fRelSvc.getObjectRelationships(REPOSITORY_ID, targetId, false, RelationshipDirection.EITHER,
+                null, null, null, null, null, null);
+        assertEquals(1, objectList.getNumItems().longValue());
+        ids = new ArrayList<String>(Collections.singletonList(id3));
+        verifyRelation(objectList.getObjects().get(0), ids, ObjectServiceTest.TEST_RELATION_TYPE_ID, targetId,
+                RelationshipDirection.TARGET);
+        assertTrue(ids.isEmpty());
+    }
+
     @Test
     public void testRelationToFolder() {
         // test create with a folder as source
@@ -610,6 +645,11 @@ public class RelationshipServiceTest extends AbstractServiceTest {
         assertTrue(ids.isEmpty());
     }
 
+    private long getRelationshipCount(String objectId, RelationshipDirection direction) {
+        return fRelSvc.getObjectRelationships(REPOSITORY_ID, objectId, false, direction, null, null, null, null,
+                null, null).getNumItems().longValue();
+    }
+
     private void verifyRelation(ObjectData objectData, List<String> expectedRelIds, String expectedTypeId,
             String refId, RelationshipDirection direction) {
         String relId = (String) objectData.getProperties().getProperties().get(PropertyIds.OBJECT_ID).getFirstValue();
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ContentStreamDataImpl;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Answers CONTAINS() from the full text index on content persisted in files.
+ */
+public class FullTextQueryTest extends AbstractServiceTest {
+
+    private File persistenceDir;
+
+    @Override
+    @Before
+    public void setUp() {
+        try {
+            persistenceDir = Files.createTempDirectory("fulltext").toFile();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create persistence directory", e);
+        }
+        super.setTypeCreatorClass(UnitTestTypeSystemCreator.class.getName());
+        super.setUp();
+        QueryTestDataCreator dataCreator = new QueryTestDataCreator(fRepositoryId, fRootFolderId, fObjSvc, fVerSvc);
+        dataCreator.createBasicTestData();
+    }
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        parameters.put(ConfigConstants.TEMP_DIR, persistenceDir.getAbsolutePath());
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+        FileUtils.deleteQuietly(persistenceDir);
+    }
+
+    @Test
+    public void testWordIgnoresCase() {
+        assertEquals(names("alpha", "beta", "delta"), getNames(doQuery("CONTAINS('CAT')")));
+    }
+
+    @Test
+    public void testPhrase() {
+        assertEquals(names("beta"), getNames(doQuery("CONTAINS('\"kitty katty\"')")));
+        assertEquals(names(), getNames(doQuery("CONTAINS('\"katty kitty\"')")));
+    }
+
+    @Test
+    public void testTerms() {
+        assertEquals(names("delta"), getNames(doQuery("CONTAINS('cat dog')")));
+        assertEquals(names("alpha", "beta", "gamma", "delta"), getNames(doQuery("CONTAINS('cat OR dog')")));
+        assertEquals(names("gamma", "epsilon"), getNames(doQuery("CONTAINS('-cat')")));
+        assertEquals(names("alpha", "delta"), getNames(doQuery("CONTAINS('cat -kitty')")));
+    }
+
+    @Test
+    public void testScore() {
+        ObjectList res = fDiscSvc.query(fRepositoryId, "SELECT cmis:name, SCORE() FROM " + COMPLEX_TYPE
+                + " WHERE CONTAINS('cat') ORDER BY SEARCH_SCORE DESC", false, false, IncludeRelationships.NONE, null,
+                null, null, null);
+        assertEquals(3, res.getObjects().size());
+        // the shortest document mentioning a cat is the most relevant
+        assertEquals("alpha", getName(res.getObjects().get(0)));
+        BigDecimal first = getScore(res.getObjects().get(0));
+        BigDecimal second = getScore(res.getObjects().get(1));
+        assertEquals(0, BigDecimal.ONE.compareTo(first));
+        assertTrue(second.compareTo(first) < 0);
+    }
+
+    @Test
+    public void testChangedContent() throws IOException {
+        ObjectData alpha = doQuery("CONTAINS('\"a cat\"') AND cmis:name = 'alpha'").getObjects().get(0);
+        ContentStreamDataImpl content = new ContentStreamDataImpl(-1);
+        content.setFileName("data.txt");
+        content.setMimeType("text/plain");
+        content.setContent(new ByteArrayInputStream("I have a bird.".getBytes("UTF-8")));
+        fObjSvc.setContentStream(fRepositoryId, new Holder<String>(alpha.getId()), true, null, content, null);
+
+        assertEquals(names("beta", "delta"), getNames(doQuery("CONTAINS('cat')")));
+        assertEquals(names("alpha"), getNames(doQuery("CONTAINS('bird')")));
+    }
+
+    private ObjectList doQuery(String whereClause) {
+        return fDiscSvc.query(fRepositoryId, "SELECT * FROM " + COMPLEX_TYPE + " WHERE " + whereClause, false,
+                false, IncludeRelationships.NONE, null, BigInteger.valueOf(100), null, null);
+    }
+
+    private static Set<String> names(String... names) {
+        Set<String> res = new HashSet<String>();
+        for (String name : names) {
+            res.add(name);
+        }
+        return res;
+    }
+
+    private static Set<String> getNames(ObjectList results) {
+        Set<String> res = new HashSet<String>();
+        for (ObjectData od : results.getObjects()) {
+            res.add(getName(od));
+        }
+        return res;
+    }
+
+    private static String getName(ObjectData od) {
+        return (String) od.getProperties().getProperties().get(PropertyIds.NAME).getFirstValue();
+    }
+
+    private static BigDecimal getScore(ObjectData od) {
+        return (BigDecimal) od.getProperties().getProperties().get("SEARCH_SCORE").getFirstValue();
+    }
+}
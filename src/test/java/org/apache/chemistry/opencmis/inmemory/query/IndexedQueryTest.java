@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_BOOLEAN;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_DATETIME;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_DECIMAL;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_INT;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_STRING;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_STRING_MULTI_VALUE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.SECONDARY_STRING_PROP;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.SECONDARY_TYPE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.apache.chemistry.opencmis.inmemory.server.InMemoryServiceContext;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
+import org.apache.chemistry.opencmis.server.impl.CallContextImpl;
+import org.apache.chemistry.opencmis.server.support.TypeManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs queries on a repository with property indexes, the results must be the
+ * same as without index. The compiled WHERE clauses must match the same
+ * objects as walking the WHERE tree.
+ */
+public class IndexedQueryTest extends AbstractServiceTest {
+
+    private QueryTestDataCreator dataCreator;
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setTypeCreatorClass(UnitTestTypeSystemCreator.class.getName());
+        super.setUp();
+        dataCreator = new QueryTestDataCreator(fRepositoryId, fRootFolderId, fObjSvc, fVerSvc);
+        dataCreator.createBasicTestData();
+    }
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        parameters.put(ConfigConstants.HASH_INDEXES, PROP_ID_STRING + ", " + PROP_ID_STRING_MULTI_VALUE + ","
+                + SECONDARY_STRING_PROP);
+        parameters.put(ConfigConstants.SORTED_INDEXES, PROP_ID_INT + "," + PROP_ID_DECIMAL);
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void testEquals() {
+        ObjectList res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_STRING + " = 'Beta'");
+        assertEquals(1, res.getObjects().size());
+        assertTrue(resultContains("beta", res));
+
+        res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_STRING + " = 'Zeta'");
+        assertEquals(0, res.getObjects().size());
+    }
+
+    @Test
+    public void testIn() {
+        ObjectList res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_STRING
+                + " IN ('Alpha', 'Delta', 'Zeta')");
+        assertEquals(2, res.getObjects().size());
+        assertTrue(resultContains("alpha", res));
+        assertTrue(resultContains("delta", res));
+    }
+
+    @Test
+    public void testRange() {
+        ObjectList res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_INT + " > 0");
+        assertEquals(2, res.getObjects().size());
+        assertTrue(resultContains("delta", res));
+        assertTrue(resultContains("epsilon", res));
+
+        res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_INT + " <= 0");
+        assertEquals(3, res.getObjects().size());
+
+        res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_INT + " >= -50 AND " + PROP_ID_INT
+                + " < 100");
+        assertEquals(3, res.getObjects().size());
+        assertTrue(resultContains("beta", res));
+        assertTrue(resultContains("gamma", res));
+        assertTrue(resultContains("delta", res));
+
+        res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_DECIMAL + " > 0");
+        assertEquals(3, res.getObjects().size());
+        assertTrue(resultContains("gamma", res));
+        assertTrue(resultContains("delta", res));
+        assertTrue(resultContains("epsilon", res));
+    }
+
+    @Test
+    public void testAndOr() {
+        ObjectList res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_INT
+                + " >= -50 AND cmis:name LIKE '%a'");
+        assertEquals(3, res.getObjects().size());
+        assertTrue(resultContains("beta", res));
+        assertTrue(resultContains("gamma", res));
+        assertTrue(resultContains("delta", res));
+
+        res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_STRING + " = 'Alpha' OR " + PROP_ID_INT
+                + " = 100");
+        assertEquals(2, res.getObjects().size());
+        assertTrue(resultContains("alpha", res));
+        assertTrue(resultContains("epsilon", res));
+
+        // one side without index, all objects are scanned
+        res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_STRING
+                + " = 'Alpha' OR cmis:name = 'beta'");
+        assertEquals(2, res.getObjects().size());
+    }
+
+    @Test
+    public void testAny() {
+        dataCreator.createMultiValueDocuments();
+        ObjectList res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE 'red' = ANY " + PROP_ID_STRING_MULTI_VALUE);
+        assertEquals(2, res.getObjects().size());
+        assertTrue(resultContains("mv-alpha", res));
+        assertTrue(resultContains("mv-beta", res));
+
+        res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE ANY " + PROP_ID_STRING_MULTI_VALUE
+                + " IN ('green', 'black', 'grey')");
+        assertEquals(1, res.getObjects().size());
+        assertTrue(resultContains("mv-alpha", res));
+    }
+
+    @Test
+    public void testIndexFollowsChanges() {
+        dataCreator.createSecondaryTestDocuments();
+        String join = "SELECT * FROM " + COMPLEX_TYPE + " LEFT JOIN " + SECONDARY_TYPE + " ON " + COMPLEX_TYPE
+                + ".cmis:objectId = " + SECONDARY_TYPE + ".cmis:objectId WHERE " + SECONDARY_STRING_PROP;
+        ObjectList res = doQuery(join + " = 'Secondary String'");
+        assertEquals(1, res.getObjects().size());
+        assertTrue(resultContains("docwithsecondary2", res));
+
+        String id = res.getObjects().get(0).getId();
+        List<PropertyData<?>> properties = new ArrayList<PropertyData<?>>();
+        properties.add(fFactory.createPropertyStringData(SECONDARY_STRING_PROP, "Changed"));
+        fObjSvc.updateProperties(fRepositoryId, new Holder<String>(id), null,
+                fFactory.createPropertiesData(properties), null);
+
+        res = doQuery(join + " = 'Secondary String'");
+        assertEquals(0, res.getObjects().size());
+        res = doQuery(join + " = 'Changed'");
+        assertEquals(1, res.getObjects().size());
+        assertTrue(resultContains("docwithsecondary2", res));
+
+        fObjSvc.deleteObject(fRepositoryId, id, true, null);
+        res = doQuery(join + " = 'Changed'");
+        assertEquals(0, res.getObjects().size());
+    }
+
+    @Test
+    public void testCompiledMatchesWalker() {
+        dataCreator.createMultiValueDocuments();
+        dataCreator.createNullTestDocument();
+        dataCreator.createLikeTestDocuments(fRootFolderId);
+        createDocument("50%_off", fRootFolderId, COMPLEX_TYPE, false);
+        createDocument("50 percent off", fRootFolderId, COMPLEX_TYPE, false);
+
+        String[] conditions = {
+                // comparison
+                PROP_ID_INT + " = 100", PROP_ID_INT + " <> 100", PROP_ID_INT + " < 0", PROP_ID_INT + " <= 0",
+                PROP_ID_INT + " > -50", PROP_ID_INT + " >= -50", PROP_ID_DECIMAL + " > 0",
+                PROP_ID_DECIMAL + " <= 1.23456E-6", PROP_ID_STRING + " > 'Beta'", PROP_ID_STRING + " <> 'Beta'",
+                PROP_ID_BOOLEAN + " = true", PROP_ID_BOOLEAN + " <> false",
+                PROP_ID_DATETIME + " < TIMESTAMP '2038-01-20T00:00:00.000Z'",
+                // IN and ANY
+                PROP_ID_STRING + " IN ('Alpha', 'Delta', 'Zeta')", PROP_ID_STRING + " NOT IN ('Alpha', 'Delta')",
+                PROP_ID_INT + " IN (-100, 100)", "'red' = ANY " + PROP_ID_STRING_MULTI_VALUE,
+                "ANY " + PROP_ID_STRING_MULTI_VALUE + " IN ('green', 'black')",
+                "ANY " + PROP_ID_STRING_MULTI_VALUE + " NOT IN ('red')",
+                // LIKE with wildcards and escapes
+                "cmis:name LIKE '%a'", PROP_ID_STRING + " LIKE 'ABC%'", PROP_ID_STRING + " LIKE '_BC%'",
+                PROP_ID_STRING + " NOT LIKE '%C'", "cmis:name LIKE '50\\%%'", "cmis:name LIKE '%\\_%'",
+                "cmis:name LIKE '50%'",
+                // IS NULL
+                PROP_ID_INT + " IS NULL", PROP_ID_STRING + " IS NOT NULL",
+                PROP_ID_STRING_MULTI_VALUE + " IS NULL",
+                // NOT, AND, OR
+                "NOT (" + PROP_ID_INT + " > 0)",
+                PROP_ID_BOOLEAN + " = true AND (" + PROP_ID_INT + " < 0 OR " + PROP_ID_STRING + " = 'Delta')",
+                "NOT (" + PROP_ID_STRING + " = 'Alpha' OR " + PROP_ID_INT + " IS NULL) AND cmis:name LIKE '%a'",
+                PROP_ID_INT + " IS NULL OR NOT " + PROP_ID_STRING + " IN ('Beta')",
+                "IN_FOLDER('" + fRootFolderId + "') AND NOT " + PROP_ID_BOOLEAN + " = false",
+                // an error for each object
+                PROP_ID_INT + " LIKE '1%'" };
+
+        ObjectStoreImpl objStore = (ObjectStoreImpl) InMemoryServiceContext.getCmisService().getStoreManager()
+                .getObjectStore(fRepositoryId);
+        TypeManager tm = InMemoryServiceContext.getCmisService().getStoreManager().getTypeManager(fRepositoryId);
+        // evaluating properties needs the call context of the service
+        InMemoryServiceContext.getCmisService().setCallContext(
+                new CallContextImpl(CallContext.BINDING_LOCAL, CmisVersion.CMIS_1_1, fRepositoryId, null, null, null,
+                        null, null));
+        int matched = 0;
+        for (String condition : conditions) {
+            String statement = "SELECT * FROM " + COMPLEX_TYPE + " WHERE " + condition;
+            InMemoryQueryProcessor queryProcessor = new InMemoryQueryProcessor(objStore);
+            queryProcessor.processQueryAndCatchExc(statement, tm);
+            int checked = 0;
+            for (String id : objStore.getIds()) {
+                StoredObject so = objStore.getObjectById(id);
+                if (!COMPLEX_TYPE.equals(so.getTypeId())) {
+                    continue;
+                }
+                Object walked = match(queryProcessor, so, false);
+                assertEquals(statement + " on " + so.getName(), walked, match(queryProcessor, so, true));
+                if (condition.endsWith("LIKE '1%'")) {
+                    assertEquals(IllegalStateException.class, walked);
+                } else if (Boolean.TRUE.equals(walked)) {
+                    matched++;
+                } else {
+                    assertEquals(statement + " on " + so.getName(), Boolean.FALSE, walked);
+                }
+                checked++;
+            }
+            assertTrue(checked > 10);
+        }
+        assertTrue(matched > conditions.length);
+    }
+
+    private ObjectList doQuery(String queryString) {
+        return fDiscSvc.query(fRepositoryId, queryString, false, false, IncludeRelationships.NONE, null, null, null,
+                null);
+    }
+
+    /*
+     * The result of checking an object or the class of the exception thrown.
+     */
+    private static Object match(InMemoryQueryProcessor queryProcessor, StoredObject so, boolean compiled) {
+        try {
+            return queryProcessor.matchesWhereClause(so, "test", compiled);
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    private static boolean resultContains(String name, ObjectList results) {
+        for (ObjectData od : results.getObjects()) {
+            PropertyData<?> propData = od.getProperties().getProperties().get(PropertyIds.NAME);
+            if (null != propData && name.equals(propData.getFirstValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
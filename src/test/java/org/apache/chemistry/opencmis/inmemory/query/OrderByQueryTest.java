@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_BOOLEAN;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_INT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sorts query results by several columns, complete and paged.
+ */
+public class OrderByQueryTest extends AbstractServiceTest {
+
+    private static final String STATEMENT = "SELECT * FROM " + COMPLEX_TYPE + " ORDER BY " + PROP_ID_BOOLEAN + ", "
+            + PROP_ID_INT + " DESC";
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setTypeCreatorClass(UnitTestTypeSystemCreator.class.getName());
+        super.setUp();
+        QueryTestDataCreator dataCreator = new QueryTestDataCreator(fRepositoryId, fRootFolderId, fObjSvc, fVerSvc);
+        dataCreator.createBasicTestData();
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void testOrderByAllColumns() {
+        ObjectList res = doQuery(STATEMENT, null, null);
+        assertEquals(5, res.getObjects().size());
+        assertEquals("epsilon", getName(res, 0));
+        assertEquals("beta", getName(res, 1));
+        assertEquals("delta", getName(res, 2));
+        assertEquals("gamma", getName(res, 3));
+        assertEquals("alpha", getName(res, 4));
+    }
+
+    @Test
+    public void testPagedOrderBy() {
+        ObjectList res = doQuery(STATEMENT, 1, 0);
+        assertEquals(1, res.getObjects().size());
+        assertEquals("epsilon", getName(res, 0));
+        assertEquals(5, res.getNumItems().intValue());
+        assertTrue(res.hasMoreItems());
+
+        res = doQuery(STATEMENT, 2, 1);
+        assertEquals(2, res.getObjects().size());
+        assertEquals("beta", getName(res, 0));
+        assertEquals("delta", getName(res, 1));
+
+        res = doQuery(STATEMENT, 10, 4);
+        assertEquals(1, res.getObjects().size());
+        assertEquals("alpha", getName(res, 0));
+        assertFalse(res.hasMoreItems());
+    }
+
+    private ObjectList doQuery(String queryString, Integer maxItems, Integer skipCount) {
+        return fDiscSvc.query(fRepositoryId, queryString, false, false, IncludeRelationships.NONE, null,
+                null == maxItems ? null : BigInteger.valueOf(maxItems),
+                null == skipCount ? null : BigInteger.valueOf(skipCount), null);
+    }
+
+    private static String getName(ObjectList results, int index) {
+        return (String) results.getObjects().get(index).getProperties().getProperties().get(PropertyIds.NAME)
+                .getFirstValue();
+    }
+}
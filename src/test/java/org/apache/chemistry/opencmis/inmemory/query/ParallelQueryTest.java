@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_INT;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs queries on a repository scanning all objects in parallel, the results
+ * must be the same as for a sequential scan.
+ */
+public class ParallelQueryTest extends AbstractServiceTest {
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setTypeCreatorClass(UnitTestTypeSystemCreator.class.getName());
+        super.setUp();
+        QueryTestDataCreator dataCreator = new QueryTestDataCreator(fRepositoryId, fRootFolderId, fObjSvc, fVerSvc);
+        dataCreator.createBasicTestData();
+    }
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        parameters.put(ConfigConstants.PARALLEL_QUERY_THRESHOLD, "1");
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void testOrderedScan() {
+        ObjectList res = doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_STRING + " LIKE '%a' ORDER BY "
+                + PROP_ID_INT + " DESC");
+        assertEquals(4, res.getObjects().size());
+        assertEquals("delta", getName(res, 0));
+        assertEquals("gamma", getName(res, 1));
+        assertEquals("beta", getName(res, 2));
+        assertEquals("alpha", getName(res, 3));
+    }
+
+    @Test
+    public void testErrorIsReported() {
+        try {
+            doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_INT + " LIKE 'a%'");
+            fail("LIKE on an integer property should throw exception");
+        } catch (IllegalStateException e) {
+            // expected, thrown by a worker thread
+        }
+    }
+
+    private ObjectList doQuery(String queryString) {
+        return fDiscSvc.query(fRepositoryId, queryString, false, false, IncludeRelationships.NONE, null, null, null,
+                null);
+    }
+
+    private static String getName(ObjectList results, int index) {
+        return (String) results.getObjects().get(index).getProperties().getProperties().get(PropertyIds.NAME)
+                .getFirstValue();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reads the following pages of a query from its cursor.
+ */
+public class QueryCursorTest extends AbstractServiceTest {
+
+    private static final String STATEMENT = "SELECT * FROM " + COMPLEX_TYPE + " ORDER BY cmis:name";
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setTypeCreatorClass(UnitTestTypeSystemCreator.class.getName());
+        super.setUp();
+        QueryTestDataCreator dataCreator = new QueryTestDataCreator(fRepositoryId, fRootFolderId, fObjSvc, fVerSvc);
+        dataCreator.createBasicTestData();
+    }
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        parameters.put(ConfigConstants.QUERY_CURSOR_TTL, "60");
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void testPagesFromCursor() {
+        String epsilonId = fDiscSvc.query(fRepositoryId, "SELECT * FROM " + COMPLEX_TYPE
+                + " WHERE cmis:name = 'epsilon'", false, false, IncludeRelationships.NONE, null, null, null, null)
+                .getObjects().get(0).getId();
+        ObjectList res = doQuery(0);
+        assertEquals(names("alpha", "beta"), getNames(res));
+        assertEquals(5, res.getNumItems().intValue());
+        assertTrue(res.hasMoreItems());
+
+        // a new document is not seen by the following pages of the cursor
+        createDocument("aardvark", fRootFolderId, COMPLEX_TYPE, false);
+        res = doQuery(2);
+        assertEquals(names("delta", "epsilon"), getNames(res));
+        assertEquals(5, res.getNumItems().intValue());
+        assertTrue(res.hasMoreItems());
+
+        // but a deleted one is left out
+        deleteDocument(epsilonId);
+        assertEquals(names("delta"), getNames(doQuery(2)));
+        res = doQuery(4);
+        assertEquals(names("gamma"), getNames(res));
+        assertFalse(res.hasMoreItems());
+
+        // the first page runs the query again
+        res = doQuery(0);
+        assertEquals(names("aardvark", "alpha"), getNames(res));
+        assertEquals(5, res.getNumItems().intValue());
+    }
+
+    @Test
+    public void testStrictAndExpiration() throws InterruptedException {
+        QueryCursorCache.Cursor cursor = new QueryCursorCache.Cursor(new String[] { "1", "2" }, null, 7);
+        QueryCursorCache strict = new QueryCursorCache(60000, true);
+        strict.put("q", cursor);
+        assertSame(cursor, strict.get("q", 7));
+        assertNull(strict.get("q", 8));
+        assertEquals(0, strict.size());
+
+        QueryCursorCache lenient = new QueryCursorCache(60000, false);
+        lenient.put("q", cursor);
+        assertNotNull(lenient.get("q", 8));
+
+        QueryCursorCache shortLived = new QueryCursorCache(1, false);
+        shortLived.put("q", cursor);
+        Thread.sleep(10);
+        assertNull(shortLived.get("q", 7));
+    }
+
+    private ObjectList doQuery(int skipCount) {
+        return fDiscSvc.query(fRepositoryId, STATEMENT, false, false, IncludeRelationships.NONE, null,
+                BigInteger.valueOf(2), BigInteger.valueOf(skipCount), null);
+    }
+
+    private static List<String> names(String... names) {
+        List<String> res = new ArrayList<String>();
+        for (String name : names) {
+            res.add(name);
+        }
+        return res;
+    }
+
+    private static List<String> getNames(ObjectList results) {
+        List<String> res = new ArrayList<String>();
+        for (ObjectData od : results.getObjects()) {
+            res.add((String) od.getProperties().getProperties().get(PropertyIds.NAME).getFirstValue());
+        }
+        return res;
+    }
+}
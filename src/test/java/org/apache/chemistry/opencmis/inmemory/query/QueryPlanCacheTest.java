@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.apache.chemistry.opencmis.inmemory.TypeManagerImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryPlanCacheTest {
+
+    private TypeManagerImpl tm;
+    private QueryPlanCache cache;
+
+    @Before
+    public void setUp() {
+        tm = new TypeManagerImpl();
+        tm.initTypeSystem(null, true);
+        cache = new QueryPlanCache(tm, 2);
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("SELECT * FROM cmis:document WHERE cmis:name = 'a  b'",
+                QueryPlanCache.normalize("  SELECT *\n\tFROM   cmis:document WHERE cmis:name = 'a  b' "));
+        assertEquals("SELECT * FROM t WHERE p = 'it\\'s  x' AND q = 1",
+                QueryPlanCache.normalize("SELECT * FROM t WHERE p = 'it\\'s  x'  AND q = 1"));
+    }
+
+    @Test
+    public void testShape() {
+        QueryPlanCache.Shape shape = QueryPlanCache
+                .shape("  SELECT *\n\tFROM   cmis:document WHERE cmis:name = 'a  b' AND x IN (1, -2.5) ");
+        assertEquals("SELECT * FROM cmis:document WHERE cmis:name = ?s AND x IN ( ?i , ?d )", shape.getKey());
+        assertEquals(Arrays.asList("'a  b'", "1", "-2.5"), shape.getLiterals());
+
+        assertEquals(shape.getKey(),
+                QueryPlanCache.shape("SELECT * FROM cmis:document WHERE cmis:name='c''d' AND x IN (7,1e3)")
+                        .getKey());
+        assertEquals("SELECT * FROM t WHERE d < ?t AND b = ?b",
+                QueryPlanCache.shape("SELECT * FROM t WHERE d < TIMESTAMP '2012-01-01T00:00:00.000Z' AND b = TRUE")
+                        .getKey());
+    }
+
+    @Test
+    public void testContainsIsPartOfShape() {
+        QueryPlanCache.Shape shape = QueryPlanCache.shape("SELECT * FROM t WHERE CONTAINS('foo') AND p = 'foo'");
+        assertEquals("SELECT * FROM t WHERE CONTAINS ( 'foo' ) AND p = ?s", shape.getKey());
+        assertEquals(Arrays.asList("'foo'"), shape.getLiterals());
+        assertFalse(shape.getKey().equals(
+                QueryPlanCache.shape("SELECT * FROM t WHERE CONTAINS('bar') AND p = 'foo'").getKey()));
+    }
+
+    @Test
+    public void testInvalidStatementNotCached() {
+        QueryPlanCache.Shape shape = QueryPlanCache.shape("SELECT * FROM t WHERE p = 'open");
+        assertNull(shape.getKey());
+        cache.put(shape, createPlan(), cache.getTypesVersion());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() {
+        QueryPlan plan1 = createPlan();
+        QueryPlan plan2 = createPlan();
+        cache.put(shape("SELECT * FROM t1"), plan1, cache.getTypesVersion());
+        cache.put(shape("SELECT * FROM t2"), plan2, cache.getTypesVersion());
+        assertSame(plan1, cache.get(shape("SELECT *  FROM t1")));
+
+        cache.put(shape("SELECT * FROM t3"), createPlan(), cache.getTypesVersion());
+        assertEquals(2, cache.size());
+        assertSame(plan1, cache.get(shape("SELECT * FROM t1")));
+        assertNull(cache.get(shape("SELECT * FROM t2")));
+    }
+
+    @Test
+    public void testTypeChangeInvalidates() {
+        long typesVersion = cache.getTypesVersion();
+        cache.put(shape("SELECT * FROM t1"), createPlan(), typesVersion);
+        tm.clearTypeSystem();
+        assertNull(cache.get(shape("SELECT * FROM t1")));
+
+        // a plan parsed before the change is not cached
+        cache.put(shape("SELECT * FROM t1"), createPlan(), typesVersion);
+        assertNull(cache.get(shape("SELECT * FROM t1")));
+    }
+
+    private static QueryPlanCache.Shape shape(String statement) {
+        return QueryPlanCache.shape(statement);
+    }
+
+    private static QueryPlan createPlan() {
+        return new QueryPlan(null, null, null, null, null, null);
+    }
+}
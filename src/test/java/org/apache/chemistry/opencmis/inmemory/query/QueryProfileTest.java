@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_INT;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.data.CmisExtensionElement;
+import org.apache.chemistry.opencmis.commons.data.ExtensionsData;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.CmisExtensionElementImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ExtensionDataImpl;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Returns the profile of a query if the request asks for it.
+ */
+public class QueryProfileTest extends AbstractServiceTest {
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setTypeCreatorClass(UnitTestTypeSystemCreator.class.getName());
+        super.setUp();
+        QueryTestDataCreator dataCreator = new QueryTestDataCreator(fRepositoryId, fRootFolderId, fObjSvc, fVerSvc);
+        dataCreator.createBasicTestData();
+    }
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        parameters.put(ConfigConstants.SORTED_INDEXES, PROP_ID_INT);
+        parameters.put(ConfigConstants.SLOW_QUERY_THRESHOLD, "60000");
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void testProfileRequested() {
+        String statement = "SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_INT + " < 0 AND " + PROP_ID_STRING
+                + " = 'Beta'";
+        ObjectList res = doQuery(statement, profileRequest());
+        Map<String, String> profile = getProfile(res);
+        assertNotNull(profile);
+        assertEquals(String.valueOf(res.getObjects().size()), profile.get("matches"));
+        // objects of other types are not evaluated
+        assertTrue(Integer.parseInt(profile.get("evaluated")) <= Integer.parseInt(profile.get("scanned")));
+        assertEquals("0", profile.get("aclRejected"));
+        assertTrue(profile.get("plan"), profile.get("plan").contains("driving set"));
+        String filter = profile.get("filter");
+        assertTrue(filter, filter.contains(PROP_ID_INT + " < 0") && filter.contains(" AND ")
+                && filter.contains(PROP_ID_STRING + " = 'Beta'"));
+        assertNotNull(profile.get("buildTime"));
+
+        // the statement is parsed once
+        assertEquals("true", getProfile(doQuery(statement, profileRequest())).get("planCached"));
+    }
+
+    @Test
+    public void testLiteralsBoundIntoCachedPlan() {
+        String statement = "SELECT * FROM " + COMPLEX_TYPE + " WHERE " + PROP_ID_STRING + " = ";
+        ObjectList res = doQuery(statement + "'Beta'", profileRequest());
+        assertEquals(1, res.getObjects().size());
+        assertEquals("false", getProfile(res).get("planCached"));
+
+        res = doQuery(statement + " 'Gamma'", profileRequest());
+        assertEquals(1, res.getObjects().size());
+        assertEquals("Gamma", res.getObjects().get(0).getProperties().getProperties().get(PROP_ID_STRING)
+                .getFirstValue());
+        Map<String, String> profile = getProfile(res);
+        assertEquals("true", profile.get("planCached"));
+        assertTrue(profile.get("filter"), profile.get("filter").contains("'Gamma'"));
+
+        assertEquals(0, doQuery(statement + "'Omega'", null).getObjects().size());
+    }
+
+    @Test
+    public void testNoProfile() {
+        ObjectList res = doQuery("SELECT * FROM " + COMPLEX_TYPE, null);
+        assertEquals(5, res.getObjects().size());
+        assertNull(getProfile(res));
+    }
+
+    private ObjectList doQuery(String statement, ExtensionsData extension) {
+        return fDiscSvc.query(fRepositoryId, statement, false, false, IncludeRelationships.NONE, null, null, null,
+                extension);
+    }
+
+    private static ExtensionsData profileRequest() {
+        ExtensionsData extension = new ExtensionDataImpl();
+        extension.setExtensions(Collections.<CmisExtensionElement> singletonList(new CmisExtensionElementImpl(
+                QueryProfile.NAMESPACE, QueryProfile.REQUEST_ELEMENT, null, "")));
+        return extension;
+    }
+
+    private static Map<String, String> getProfile(ObjectList res) {
+        if (null == res.getExtensions()) {
+            return null;
+        }
+        for (CmisExtensionElement element : res.getExtensions()) {
+            if (QueryProfile.RESULT_ELEMENT.equals(element.getName())) {
+                Map<String, String> values = new HashMap<String, String>();
+                for (CmisExtensionElement child : element.getChildren()) {
+                    values.put(child.getName(), child.getValue());
+                }
+                return values;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_INT;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.PROP_ID_STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.BindingsObjectFactoryImpl;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.commons.spi.BindingsObjectFactory;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.PropertyIndex;
+import org.apache.chemistry.opencmis.inmemory.server.InMemoryService;
+import org.apache.chemistry.opencmis.inmemory.server.InMemoryServiceContext;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.StoreManagerImpl;
+import org.apache.chemistry.opencmis.server.impl.CallContextImpl;
+import org.apache.chemistry.opencmis.server.support.wrapper.ConformanceCmisServiceWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Keeps statistics of the property indexes and chooses the driving set of a
+ * query by them.
+ */
+public class QueryStatisticsTest {
+
+    private static final String REPOSITORY_ID = "StatisticsRepository";
+    private static final String USER = "user";
+    private static final int COUNT = 1000;
+
+    private StoreManagerImpl storeManager;
+    private ObjectStoreImpl objStore;
+
+    @Before
+    public void setUp() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(ConfigConstants.HASH_INDEXES, PROP_ID_STRING);
+        parameters.put(ConfigConstants.SORTED_INDEXES, PROP_ID_INT);
+        storeManager = new StoreManagerImpl();
+        storeManager.createAndInitRepository(REPOSITORY_ID, parameters, UnitTestTypeSystemCreator.class.getName());
+        objStore = storeManager.getStore(REPOSITORY_ID);
+        // evaluating properties needs the call context of the service
+        InMemoryService service = new InMemoryService(storeManager);
+        InMemoryServiceContext.setWrapperService(new ConformanceCmisServiceWrapper(service));
+        service.setCallContext(new CallContextImpl(CallContext.BINDING_LOCAL, CmisVersion.CMIS_1_1, REPOSITORY_ID,
+                null, null, null, null, null));
+
+        BindingsObjectFactory factory = new BindingsObjectFactoryImpl();
+        for (int i = 0; i < COUNT; i++) {
+            Map<String, PropertyData<?>> props = new HashMap<String, PropertyData<?>>();
+            props.put(PropertyIds.NAME, factory.createPropertyStringData(PropertyIds.NAME, "doc" + i));
+            props.put(PropertyIds.OBJECT_TYPE_ID,
+                    factory.createPropertyIdData(PropertyIds.OBJECT_TYPE_ID, COMPLEX_TYPE));
+            props.put(PROP_ID_INT, factory.createPropertyIntegerData(PROP_ID_INT, BigInteger.valueOf(i)));
+            // every tenth document has no string value, the others have one of three
+            if (i % 10 != 0) {
+                props.put(PROP_ID_STRING, factory.createPropertyStringData(PROP_ID_STRING, "value" + (i % 3)));
+            }
+            objStore.createDocument(props, USER, null, null, null, null, null);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        InMemoryServiceContext.setWrapperService(null);
+    }
+
+    @Test
+    public void testStatistics() {
+        PropertyIndex strings = objStore.getPropertyIndex(PROP_ID_STRING);
+        assertEquals(3, strings.getDistinctCount());
+        assertEquals(COUNT - COUNT / 10, strings.size());
+
+        PropertyIndex ints = objStore.getPropertyIndex(PROP_ID_INT);
+        assertEquals(COUNT, ints.getDistinctCount());
+        double estimate = ints.estimateCount(BigInteger.valueOf(100), true, BigInteger.valueOf(300), false);
+        assertTrue("estimate " + estimate, Math.abs(estimate - 200) <= COUNT / 32);
+        estimate = ints.estimateCount(null, false, BigInteger.valueOf(10), false);
+        assertTrue("estimate " + estimate, Math.abs(estimate - 10) <= COUNT / 32);
+
+        assertEquals(COUNT, objStore.getObjectCount(Collections.singleton(COMPLEX_TYPE)));
+    }
+
+    @Test
+    public void testDrivingSet() {
+        // a narrow range drives the query rather than a frequent string value
+        String plan = storeManager.explainQuery(USER, REPOSITORY_ID, "SELECT * FROM " + COMPLEX_TYPE + " WHERE "
+                + PROP_ID_STRING + " = 'value1' AND " + PROP_ID_INT + " < 20", false);
+        assertTrue(plan, plan.contains("driving set: index " + PROP_ID_INT));
+        assertTrue(plan, plan.contains("actual 20"));
+        assertTrue(plan, plan.contains("matches: 6"));
+
+        // a condition true for most objects is checked by a scan
+        plan = storeManager.explainQuery(USER, REPOSITORY_ID, "SELECT * FROM " + COMPLEX_TYPE + " WHERE "
+                + PROP_ID_INT + " >= 100", false);
+        assertTrue(plan, plan.contains("driving set: scan of all objects"));
+        assertTrue(plan, plan.contains("matches: 900"));
+    }
+}
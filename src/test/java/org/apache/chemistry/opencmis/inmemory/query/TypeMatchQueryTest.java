@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.LEVEL1_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.LEVEL2_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.SECONDARY_STRING_PROP;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.SECONDARY_TYPE;
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.TOPLEVEL_TYPE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.TypeManagerImpl;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Matches the type of objects by the subtypes of the queried type and by the
+ * index of applied secondary types.
+ */
+public class TypeMatchQueryTest extends AbstractServiceTest {
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setTypeCreatorClass(UnitTestTypeSystemCreator.class.getName());
+        super.setUp();
+        QueryTestDataCreator dataCreator = new QueryTestDataCreator(fRepositoryId, fRootFolderId, fObjSvc, fVerSvc);
+        dataCreator.createBasicTestData();
+        dataCreator.createSecondaryTestDocuments();
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void testTypeAndSubTypeIds() {
+        TypeManagerImpl tm = new TypeManagerImpl();
+        tm.initTypeSystem(UnitTestTypeSystemCreator.getTypesList(), true);
+        Set<String> ids = tm.getTypeAndSubTypeIds(TOPLEVEL_TYPE);
+        assertEquals(3, ids.size());
+        assertTrue(ids.contains(LEVEL2_TYPE));
+        assertTrue(tm.getTypeAndSubTypeIds("cmis:document").contains(LEVEL2_TYPE));
+        assertTrue(tm.getTypeAndSubTypeIds("unknown").isEmpty());
+
+        tm.deleteTypeDefinition(LEVEL2_TYPE);
+        ids = tm.getTypeAndSubTypeIds(TOPLEVEL_TYPE);
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains(LEVEL1_TYPE));
+        assertFalse(ids.contains(LEVEL2_TYPE));
+    }
+
+    @Test
+    public void testSubTypesMatch() {
+        ObjectList res = doQuery("SELECT * FROM cmis:document");
+        assertTrue(getValues(res, PropertyIds.NAME).contains("alpha"));
+        assertTrue(getValues(res, PropertyIds.NAME).contains("docwithsecondary"));
+        assertEquals(0, doQuery("SELECT * FROM " + TOPLEVEL_TYPE).getObjects().size());
+    }
+
+    @Test
+    public void testSecondaryType() {
+        ObjectList res = doQuery("SELECT * FROM " + SECONDARY_TYPE);
+        assertEquals(2, res.getObjects().size());
+        assertTrue(getValues(res, SECONDARY_STRING_PROP).contains("Secondary Property Value"));
+        assertTrue(getValues(res, SECONDARY_STRING_PROP).contains("Secondary String"));
+
+        // remove the secondary type from one document
+        String docId = (String) getValues(doQuery("SELECT * FROM " + COMPLEX_TYPE + " WHERE cmis:name = 'docwithsecondary'"),
+                PropertyIds.OBJECT_ID).get(0);
+        List<PropertyData<?>> props = new ArrayList<PropertyData<?>>();
+        props.add(fFactory.createPropertyIdData(PropertyIds.SECONDARY_OBJECT_TYPE_IDS,
+                Collections.<String> emptyList()));
+        fObjSvc.updateProperties(fRepositoryId, new Holder<String>(docId), null,
+                fFactory.createPropertiesData(props), null);
+
+        res = doQuery("SELECT * FROM " + SECONDARY_TYPE);
+        assertEquals(1, res.getObjects().size());
+        assertEquals("Secondary String", getValues(res, SECONDARY_STRING_PROP).get(0));
+        assertEquals(7, doQuery("SELECT * FROM " + COMPLEX_TYPE).getObjects().size());
+    }
+
+    private ObjectList doQuery(String statement) {
+        return fDiscSvc.query(fRepositoryId, statement, false, false, IncludeRelationships.NONE, null, null, null,
+                null);
+    }
+
+    private static List<Object> getValues(ObjectList results, String propertyId) {
+        List<Object> values = new ArrayList<Object>();
+        for (ObjectData od : results.getObjects()) {
+            PropertyData<?> value = od.getProperties().getProperties().get(propertyId);
+            if (null != value) {
+                values.add(value.getFirstValue());
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.inmemory.query;
+
+import static org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator.COMPLEX_TYPE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stops queries without ORDER BY after the requested page if the repository
+ * does not count all matches.
+ */
+public class UnsortedQueryTest extends AbstractServiceTest {
+
+    private static final String STATEMENT = "SELECT * FROM " + COMPLEX_TYPE;
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setTypeCreatorClass(UnitTestTypeSystemCreator.class.getName());
+        super.setUp();
+        QueryTestDataCreator dataCreator = new QueryTestDataCreator(fRepositoryId, fRootFolderId, fObjSvc, fVerSvc);
+        dataCreator.createBasicTestData();
+    }
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        parameters.put(ConfigConstants.QUERY_EXACT_COUNT, "false");
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void testStopAfterPage() {
+        ObjectList res = doQuery(STATEMENT, 2, 0);
+        assertEquals(2, res.getObjects().size());
+        assertNull(res.getNumItems());
+        assertTrue(res.hasMoreItems());
+
+        res = doQuery(STATEMENT, 2, 2);
+        assertEquals(2, res.getObjects().size());
+        assertTrue(res.hasMoreItems());
+
+        // the scan reaches the end, so the count is known
+        res = doQuery(STATEMENT, 2, 4);
+        assertEquals(1, res.getObjects().size());
+        assertEquals(5, res.getNumItems().intValue());
+        assertFalse(res.hasMoreItems());
+    }
+
+    @Test
+    public void testSortedAndUnlimitedCount() {
+        ObjectList res = doQuery(STATEMENT + " ORDER BY cmis:name", 2, 0);
+        assertEquals(2, res.getObjects().size());
+        assertEquals(5, res.getNumItems().intValue());
+
+        res = fDiscSvc.query(fRepositoryId, STATEMENT, false, false, IncludeRelationships.NONE, null, null, null,
+                null);
+        assertEquals(5, res.getObjects().size());
+        assertEquals(5, res.getNumItems().intValue());
+    }
+
+    private ObjectList doQuery(String statement, int maxItems, int skipCount) {
+        return fDiscSvc.query(fRepositoryId, statement, false, false, IncludeRelationships.NONE, null,
+                BigInteger.valueOf(maxItems), BigInteger.valueOf(skipCount), null);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Runs a repository persisted in a temporary directory, which is kept when
+ * the repository is restarted within a test and deleted after the test.
+ * Subclasses add their parameters by overriding
+ * {@link #addParameters(Map)} and calling it on this class.
+ */
+public abstract class AbstractPersistenceTest extends AbstractServiceTest {
+
+    protected File persistenceDir;
+
+    @Override
+    @Before
+    public void setUp() {
+        if (null == persistenceDir) {
+            try {
+                persistenceDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create persistence directory", e);
+            }
+        }
+        super.setUp();
+    }
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        parameters.put(ConfigConstants.TEMP_DIR, persistenceDir.getAbsolutePath());
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+        FileUtils.deleteQuietly(persistenceDir);
+    }
+
+    /**
+     * Stop the repository, keeping the persistence directory.
+     */
+    protected void stopRepository() {
+        super.tearDown();
+    }
+
+    /**
+     * Start the repository again from the persistence directory.
+     */
+    protected void startRepository() {
+        super.setUp();
+    }
+}
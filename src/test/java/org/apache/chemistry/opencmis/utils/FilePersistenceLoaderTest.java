@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.junit.Test;
+
+/**
+ * Loads a persisted repository on several threads.
+ */
+public class FilePersistenceLoaderTest extends AbstractPersistenceTest {
+
+    private static final int FOLDERS = 3;
+    private static final int DOCUMENTS = 100;
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        super.addParameters(parameters);
+        parameters.put(ConfigConstants.LOADER_THREADS, "4");
+    }
+
+    @Test
+    public void testReload() {
+        String[] docIds = new String[FOLDERS * DOCUMENTS];
+        for (int i = 0; i < FOLDERS; i++) {
+            String folderId = createFolder("folder" + i, fRootFolderId, "cmis:folder");
+            String subFolderId = createFolder("sub", folderId, "cmis:folder");
+            for (int j = 0; j < DOCUMENTS; j++) {
+                docIds[i * DOCUMENTS + j] = createDocument("doc" + j, subFolderId, "cmis:document", true);
+            }
+        }
+
+        stopRepository();
+        startRepository();
+
+        assertEquals(FOLDERS * DOCUMENTS, fDiscSvc.query(fRepositoryId, "SELECT * FROM cmis:document", false,
+                false, IncludeRelationships.NONE, null, null, null, null).getNumItems().intValue());
+        for (int i = 0; i < FOLDERS; i++) {
+            for (int j = 0; j < DOCUMENTS; j += 33) {
+                ObjectData doc = fObjSvc.getObjectByPath(fRepositoryId, "/folder" + i + "/sub/doc" + j, null,
+                        false, IncludeRelationships.NONE, null, false, false, null);
+                assertEquals(docIds[i * DOCUMENTS + j], doc.getId());
+            }
+        }
+        ObjectData folder = fObjSvc.getObjectByPath(fRepositoryId, "/folder1", null, false,
+                IncludeRelationships.NONE, null, false, false, null);
+        assertEquals(1, fNavSvc.getChildren(fRepositoryId, folder.getId(), null, null, false,
+                IncludeRelationships.NONE, null, false, null, null, null).getNumItems().intValue());
+    }
+}
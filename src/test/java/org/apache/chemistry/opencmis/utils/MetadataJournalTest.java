@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Appends metadata changes to a journal and applies it to the metadata
+ * files.
+ */
+public class MetadataJournalTest extends AbstractPersistenceTest {
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        super.addParameters(parameters);
+        parameters.put(ConfigConstants.METADATA_JOURNAL, "true");
+    }
+
+    @Test
+    public void testUpdateSurvivesRestart() {
+        String folderId = createFolder("folder", fRootFolderId, "cmis:folder");
+        String docId = createDocument("doc", folderId, "cmis:document", true);
+        PropertyData<?> description = fFactory.createPropertyStringData(PropertyIds.DESCRIPTION, "journaled");
+        fObjSvc.updateProperties(fRepositoryId, new Holder<String>(docId), null,
+                fFactory.createPropertiesData(Collections.<PropertyData<?>> singletonList(description)), null);
+        assertTrue(new File(persistenceDir, ".cmis/journal").length() > 0);
+
+        stopRepository();
+        startRepository();
+
+        ObjectData doc = fObjSvc.getObjectByPath(fRepositoryId, "/folder/doc", null, false,
+                IncludeRelationships.NONE, null, false, false, null);
+        assertEquals(docId, doc.getId());
+        assertEquals("journaled", doc.getProperties().getProperties().get(PropertyIds.DESCRIPTION).getFirstValue());
+    }
+
+    @Test
+    public void testRecover() throws IOException {
+        File dir = new File(persistenceDir, "recover");
+        assertTrue(dir.mkdir());
+        File x = new File(dir, "x.metadata");
+        File y = new File(dir, "y.metadata");
+        File journalFile = new File(persistenceDir, ".cmis/journal");
+        File copy = new File(persistenceDir, "journal.copy");
+
+        MetadataJournal journal = MetadataJournal.open(persistenceDir.getAbsolutePath());
+        journal.put(x, "one");
+        journal.put(y, "two");
+        journal.delete(y);
+        journal.put(x, "three");
+        journal.put(new File(persistenceDir, "missing/z.metadata"), "z");
+        // keep the synced journal as a crash would leave it
+        FileUtils.copyFile(journalFile, copy);
+        journal.close();
+        assertEquals("three", FileUtils.readFileToString(x, StandardCharsets.UTF_8));
+
+        FileUtils.deleteQuietly(x);
+        FileUtils.copyFile(copy, journalFile);
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        try {
+            // a record cut off by the crash
+            out.write(new byte[] { 0, 0, 1 });
+        } finally {
+            out.close();
+        }
+
+        journal = MetadataJournal.open(persistenceDir.getAbsolutePath());
+        try {
+            assertEquals("three", FileUtils.readFileToString(x, StandardCharsets.UTF_8));
+            assertFalse(y.exists());
+            assertFalse(new File(persistenceDir, "missing").exists());
+            assertEquals(0, journalFile.length());
+        } finally {
+            journal.close();
+        }
+    }
+}
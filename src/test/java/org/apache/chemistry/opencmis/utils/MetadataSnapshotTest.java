@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import org.apache.chemistry.opencmis.commons.data.Ace;
+import org.apache.chemistry.opencmis.commons.data.Acl;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.enums.AclPropagation;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.inmemory.server.InMemoryServiceContext;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.InMemoryAce;
+import org.apache.chemistry.opencmis.inmemory.storedobj.impl.ObjectStoreImpl;
+import org.junit.Test;
+
+/**
+ * Restores unchanged directories from a metadata snapshot.
+ */
+public class MetadataSnapshotTest extends AbstractPersistenceTest {
+
+    private static final int DOCUMENTS = 20;
+
+    @Test
+    public void testRestore() throws IOException {
+        String[] folderIds = new String[2];
+        String[] docIds = new String[2 * DOCUMENTS];
+        for (int i = 0; i < folderIds.length; i++) {
+            folderIds[i] = createFolder("folder" + i, fRootFolderId, "cmis:folder");
+            for (int j = 0; j < DOCUMENTS; j++) {
+                docIds[i * DOCUMENTS + j] = createDocument("doc" + j, folderIds[i], "cmis:document", true);
+            }
+        }
+        // the metadata files do not keep the Acl, only the snapshot does
+        Acl readerAcl = fFactory.createAccessControlList(Collections.singletonList(createAce("Reader", "cmis:read")));
+        Acl anyoneAcl = fFactory.createAccessControlList(Collections.singletonList(createAce(
+                InMemoryAce.getAnyoneUser(), "cmis:all")));
+        fAclSvc.applyAcl(fRepositoryId, docIds[0], readerAcl, anyoneAcl, AclPropagation.OBJECTONLY, null);
+
+        // directories changed right before the snapshot are not recorded
+        backdateDirectories(persistenceDir);
+        assertEquals(getStore().getModificationCount(), MetadataSnapshot.write(getStore()));
+        createDocument("late", folderIds[1], "cmis:document", true);
+
+        MetadataSnapshot snapshot = MetadataSnapshot.open(persistenceDir.getAbsolutePath(), fRepositoryId);
+        assertNotNull(snapshot);
+        assertEquals(3, snapshot.getDirectoryCount());
+
+        stopRepository();
+        startRepository();
+
+        assertEquals(2 * DOCUMENTS + 1, fDiscSvc.query(fRepositoryId, "SELECT * FROM cmis:document", false,
+                false, IncludeRelationships.NONE, null, null, null, null).getNumItems().intValue());
+        for (int i = 0; i < folderIds.length; i++) {
+            assertEquals(folderIds[i], getByPath("/folder" + i).getId());
+            for (int j = 0; j < DOCUMENTS; j += 7) {
+                assertEquals(docIds[i * DOCUMENTS + j], getByPath("/folder" + i + "/doc" + j).getId());
+            }
+        }
+        assertNotNull(getByPath("/folder1/late"));
+        Acl acl = fAclSvc.getAcl(fRepositoryId, docIds[0], false, null);
+        assertEquals(1, acl.getAces().size());
+        assertEquals("Reader", acl.getAces().get(0).getPrincipalId());
+    }
+
+    @Test
+    public void testDamagedSnapshot() throws IOException {
+        String folderId = createFolder("folder", fRootFolderId, "cmis:folder");
+        createDocument("doc", folderId, "cmis:document", true);
+        backdateDirectories(persistenceDir);
+        MetadataSnapshot.write(getStore());
+
+        File file = MetadataSnapshot.getFile(persistenceDir.getAbsolutePath());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertNull(MetadataSnapshot.open(persistenceDir.getAbsolutePath(), fRepositoryId));
+
+        stopRepository();
+        startRepository();
+        assertNotNull(getByPath("/folder/doc"));
+    }
+
+    private ObjectStoreImpl getStore() {
+        return (ObjectStoreImpl) InMemoryServiceContext.getCmisService().getStoreManager()
+                .getObjectStore(fRepositoryId);
+    }
+
+    private ObjectData getByPath(String path) {
+        return fObjSvc.getObjectByPath(fRepositoryId, path, null, false, IncludeRelationships.NONE, null, false,
+                false, null);
+    }
+
+    private Ace createAce(String principalId, String permission) {
+        return fFactory.createAccessControlEntry(principalId, Collections.singletonList(permission));
+    }
+
+    private static void backdateDirectories(File dir) {
+        for (File child : dir.listFiles()) {
+            if (child.isDirectory()) {
+                backdateDirectories(child);
+            }
+        }
+        dir.setLastModified(System.currentTimeMillis() - 60000);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
+import org.apache.chemistry.opencmis.inmemory.ConfigConstants;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Writes metadata behind the requests.
+ */
+public class MetadataWriteQueueTest extends AbstractPersistenceTest {
+
+    private String durability = "async";
+    private String flushMillis = "60000";
+
+    @Override
+    protected void addParameters(Map<String, String> parameters) {
+        super.addParameters(parameters);
+        parameters.put(ConfigConstants.METADATA_DURABILITY, durability);
+        parameters.put(ConfigConstants.METADATA_FLUSH_MILLIS, flushMillis);
+    }
+
+    @Test
+    public void testAsyncWrittenAtShutdown() throws IOException {
+        String folderId = createFolder("folder", fRootFolderId, "cmis:folder");
+        String docId = createDocument("doc", folderId, "cmis:document", true);
+        setDescription(docId, "first");
+        setDescription(docId, "queued");
+        // the writers wait for the flush interval
+        assertFalse(getMetadataFile().exists());
+
+        stopRepository();
+        assertTrue(FileUtils.readFileToString(getMetadataFile(), StandardCharsets.UTF_8).contains("queued"));
+        startRepository();
+
+        assertEquals("queued", getDescription());
+    }
+
+    @Test
+    public void testMoveBeforeWrite() {
+        String folderId = createFolder("folder", fRootFolderId, "cmis:folder");
+        String targetId = createFolder("target", fRootFolderId, "cmis:folder");
+        String docId = createDocument("doc", folderId, "cmis:document", true);
+        // the metadata of the document is still queued
+        assertFalse(getMetadataFile().exists());
+        fObjSvc.moveObject(fRepositoryId, new Holder<String>(docId), targetId, folderId, null);
+
+        stopRepository();
+        assertFalse(getMetadataFile().exists());
+        assertTrue(new File(persistenceDir, "target/doc.metadata").exists());
+        startRepository();
+
+        ObjectData doc = fObjSvc.getObjectByPath(fRepositoryId, "/target/doc", null, false,
+                IncludeRelationships.NONE, null, false, false, null);
+        assertEquals(docId, doc.getId());
+        assertEquals(0, fNavSvc.getChildren(fRepositoryId, getFolderId("/folder"), null, null, false,
+                IncludeRelationships.NONE, null, false, null, null, null).getNumItems().intValue());
+    }
+
+    @Test
+    public void testGroupWaitsForWrite() throws IOException {
+        stopRepository();
+        durability = "group";
+        flushMillis = "5";
+        startRepository();
+
+        String folderId = createFolder("folder", fRootFolderId, "cmis:folder");
+        String docId = createDocument("doc", folderId, "cmis:document", true);
+        setDescription(docId, "written");
+        assertTrue(FileUtils.readFileToString(getMetadataFile(), StandardCharsets.UTF_8).contains("written"));
+
+        stopRepository();
+        startRepository();
+        assertEquals("written", getDescription());
+    }
+
+    private String getFolderId(String path) {
+        return fObjSvc.getObjectByPath(fRepositoryId, path, null, false, IncludeRelationships.NONE, null, false,
+                false, null).getId();
+    }
+
+    private File getMetadataFile() {
+        return new File(persistenceDir, "folder/doc.metadata");
+    }
+
+    private void setDescription(String docId, String value) {
+        PropertyData<?> description = fFactory.createPropertyStringData(PropertyIds.DESCRIPTION, value);
+        fObjSvc.updateProperties(fRepositoryId, new Holder<String>(docId), null,
+                fFactory.createPropertiesData(Collections.<PropertyData<?>> singletonList(description)), null);
+    }
+
+    private Object getDescription() {
+        ObjectData doc = fObjSvc.getObjectByPath(fRepositoryId, "/folder/doc", null, false,
+                IncludeRelationships.NONE, null, false, false, null);
+        return doc.getProperties().getProperties().get(PropertyIds.DESCRIPTION).getFirstValue();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.inmemory.AbstractServiceTest;
+import org.apache.chemistry.opencmis.inmemory.UnitTestTypeSystemCreator;
+import org.apache.chemistry.opencmis.inmemory.server.InMemoryServiceContext;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.MultiFiling;
+import org.apache.chemistry.opencmis.inmemory.storedobj.api.StoredObject;
+import org.apache.chemistry.opencmis.server.support.TypeManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reads and writes the JSON metadata of an object.
+ */
+public class StoredObjectJsonSerializerTest extends AbstractServiceTest {
+
+    // as written by the serializer building a JSON tree
+    private static final String METADATA = "{\"cmis:objectTypeId\":\"ComplexType\",\"cmis:objectId\":\"42\","
+            + "\"cmis:name\":\"doc\",\"cmis:parentId\":[\"100\"],\"cmis:creationDate\":\"2015-03-30T12:55:07\","
+            + "\"cmis:createdBy\":\"admin\",\"cmis:lastModificationDate\":\"2015-03-31T08:00:00\","
+            + "\"cmis:lastModifiedBy\":\"admin\",\"cmis:changeToken\":\"1427788800000\","
+            + "\"cmis:description\":\"a \\\"quoted\\\" text\",\"cmis:secondaryObjectTypeIds\":[],"
+            + "\"repositoryId\":\"UnitTestRepository\",\"aclId\":0,\"appliedPolicies\":null,"
+            + "\"properties\":{"
+            + "\"IntProp\":{\"id\":\"IntProp\",\"displayName\":null,\"localName\":null,\"queryName\":null,"
+            + "\"type\":\"integer\",\"firstValue\":7},"
+            + "\"DecimalProp\":{\"id\":\"DecimalProp\",\"displayName\":null,\"localName\":null,\"queryName\":null,"
+            + "\"type\":\"decimal\",\"firstValue\":1.5},"
+            + "\"DateTimeProp\":{\"id\":\"DateTimeProp\",\"displayName\":null,\"localName\":null,"
+            + "\"queryName\":null,\"type\":\"dateTime\",\"firstValue\":\"2015-03-30T12:55:07\"},"
+            + "\"StringPropMV\":{\"id\":\"StringPropMV\",\"displayName\":null,\"localName\":null,"
+            + "\"queryName\":null,\"type\":\"string\",\"firstValue\":\"a\",\"values\":[\"a\",\"b\"]}}}";
+
+    private TypeManager typeManager;
+
+    @Override
+    @Before
+    public void setUp() {
+        super.setUp();
+        typeManager = InMemoryServiceContext.getCmisService().getStoreManager().getTypeManager(fRepositoryId);
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+    }
+
+    @Test
+    public void testReadMetadata() {
+        StoredObject so = new StoredObjectJsonSerializer().deserialize(METADATA, typeManager);
+        assertEquals("42", so.getId());
+        assertEquals("doc", so.getName());
+        assertEquals("ComplexType", so.getTypeId());
+        assertEquals(Arrays.asList("100"), ((MultiFiling) so).getParentIds());
+        assertEquals("a \"quoted\" text", so.getDescription());
+        assertEquals(date(2015, 2, 30, 12, 55, 7), so.getCreatedAt().getTimeInMillis());
+
+        Map<String, PropertyData<?>> properties = so.getProperties();
+        assertEquals(BigInteger.valueOf(7), properties.get(UnitTestTypeSystemCreator.PROP_ID_INT).getFirstValue());
+        assertEquals(new BigDecimal("1.5"), properties.get(UnitTestTypeSystemCreator.PROP_ID_DECIMAL)
+                .getFirstValue());
+        assertEquals(date(2015, 2, 30, 12, 55, 7), ((GregorianCalendar) properties.get(
+                UnitTestTypeSystemCreator.PROP_ID_DATETIME).getFirstValue()).getTimeInMillis());
+        assertEquals(Arrays.asList("a", "b"), properties.get(UnitTestTypeSystemCreator.PROP_ID_STRING_MULTI_VALUE)
+                .getValues());
+    }
+
+    @Test
+    public void testWriteRead() {
+        StoredObjectJsonSerializer serializer = new StoredObjectJsonSerializer();
+        StoredObject so = serializer.deserialize(METADATA, typeManager);
+        String json = serializer.serialize(so, typeManager);
+        assertTrue(json.startsWith("{\"cmis:objectTypeId\":\"ComplexType\",\"cmis:objectId\":\"42\","));
+        assertTrue(json.contains("\"values\":[\"a\",\"b\"]"));
+
+        StoredObject read = serializer.deserialize(json, typeManager);
+        assertEquals(so.getId(), read.getId());
+        assertEquals(so.getDescription(), read.getDescription());
+        assertEquals(so.getModifiedAt().getTimeInMillis(), read.getModifiedAt().getTimeInMillis());
+        for (PropertyData<?> property : so.getProperties().values()) {
+            PropertyData<?> readProperty = read.getProperties().get(property.getId());
+            assertEquals(property.getId(), property.getValues().size(), readProperty.getValues().size());
+            if (!(property.getFirstValue() instanceof GregorianCalendar)) {
+                assertEquals(property.getFirstValue(), readProperty.getFirstValue());
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidMetadata() {
+        assertNull(new StoredObjectJsonSerializer().deserialize("{\"cmis:objectId\":", typeManager));
+    }
+
+    private static long date(int year, int month, int day, int hour, int minute, int second) {
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+}